@@ -58,6 +58,8 @@ android {
         }
     }
 
+    // Models are memory-mapped straight out of the APK, which needs them stored uncompressed
+    androidResources { noCompress += listOf("tfile", "tflite") }
     lint { abortOnError = false }
     buildFeatures { buildConfig = true }
     compileOptions {
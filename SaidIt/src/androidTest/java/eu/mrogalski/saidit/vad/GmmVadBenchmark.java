@@ -0,0 +1,62 @@
+package eu.mrogalski.saidit.vad;
+
+import static org.junit.Assert.assertTrue;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Measures GmmVad's share of one core at 48 kHz on the device, where the budget applies.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GmmVadBenchmark {
+    private static final String TAG = "GmmVadBenchmark";
+    private static final int RATE = 48000;
+
+    /** One second of a 150 Hz vowel-like tone over faint noise, or the noise alone. */
+    private static ByteBuffer second(boolean voiced, Random random) {
+        ByteBuffer buffer = ByteBuffer.allocate(RATE * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < RATE; i++) {
+            double value = (random.nextDouble() * 2 - 1) * 100;
+            if (voiced) {
+                for (int h = 1; h * 150 < 4000; h++) {
+                    value += 4000.0 / h * Math.sin(2 * Math.PI * h * 150 * i / RATE);
+                }
+            }
+            buffer.putShort((short) Math.max(-32768, Math.min(32767, Math.round(value))));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void testThroughputAt48kHz() {
+        GmmVad vad = new GmmVad();
+        vad.setFrameMs(10);
+        vad.init(RATE);
+        vad.setMode(2);
+        Random random = new Random(1);
+        ByteBuffer voice = second(true, random);
+        ByteBuffer noise = second(false, random);
+        for (int i = 0; i < 20; i++) {
+            vad.process(i % 2 == 0 ? voice : noise);
+        }
+
+        final int seconds = 120;
+        long start = System.nanoTime();
+        for (int i = 0; i < seconds; i++) {
+            vad.process(i % 4 == 0 ? voice : noise);
+        }
+        double load = (System.nanoTime() - start) / (seconds * 1e9);
+        Log.i(TAG, String.format("GmmVad at 48 kHz: %.4f%% of one core", load * 100));
+        assertTrue("Load " + load, load < 0.01);
+    }
+}
@@ -1,9 +1,9 @@
 package eu.mrogalski.saidit;
 
-import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.os.Process;
 import android.util.Log;
 
 import java.io.File;
@@ -11,154 +11,134 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import eu.mrogalski.saidit.export.FragmentedMp4Writer;
+import eu.mrogalski.saidit.export.MediaCodecEncoder;
+import eu.mrogalski.saidit.export.PcmSource;
+
 /**
  * Encodes PCM 16-bit mono to AAC-LC and writes into an MP4 (.m4a) container.
- * Thread-safe for single-producer usage on an audio thread.
+ * Thread-safe for single-producer usage on an audio thread; the encoding itself runs on a
+ * {@link MediaCodecEncoder} thread.
  */
 public class AacMp4Writer implements AutoCloseable {
     private static final String TAG = "AacMp4Writer";
     private static final String MIME_TYPE = MediaFormat.MIMETYPE_AUDIO_AAC; // "audio/mp4a-latm"
-
-    private final File outputFile;
-    private MediaMuxer mediaMuxer;
-    private MediaCodec mediaCodec;
+    // About five seconds at 48 kHz mono that the encoder may fall behind capture by
+    private static final int POOL_BLOCKS = 64;
+    // Audio a crash may lose from a recording
+    private static final int FRAGMENT_MS = 1000;
+
+    private final MediaCodecEncoder encoder;
+    // The memory being recorded, or null when written to
+    private final PcmSource source;
     private final AtomicBoolean isClosed = new AtomicBoolean(false);
     private final Object writeLock = new Object();
-    private long totalBytesWritten = 0;
-    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-    private int trackIndex = -1;
-    private long presentationTimeUs = 0;
-    private int sampleRate;
-
-    // Pending data that couldn't fit in previous input buffer
-    private ByteBuffer pendingData = null;
-    private int pendingDataLen = 0;
+    // Reused while callers pass the same array, as when dumping the ring
+    private ByteBuffer wrapped;
 
     public AacMp4Writer(int sampleRate, int channelCount, int bitRate, File outputFile) throws IOException {
-        this.outputFile = outputFile;
-        this.sampleRate = sampleRate;
+        encoder = new MediaCodecEncoder(createFormat(sampleRate, channelCount, bitRate), createOutput(outputFile),
+                Process.THREAD_PRIORITY_AUDIO, POOL_BLOCKS);
+        source = null;
+    }
 
+    /**
+     * Records memory from fromSample on, as it is written, without copying it anywhere on the way
+     * to the encoder: the encoder thread reads the ring straight into the codec. Call
+     * {@link #onCaptured()} after each write to the memory, and end with {@link #finish(long)};
+     * {@link #write} is not available.
+     *
+     * The file is fragmented MP4, so it stays playable up to its last second should the process
+     * die mid-recording, and closing does not have to write an index of the whole recording.
+     * @param fromSample Absolute position of the first sample, which may lie in the past.
+     */
+    public AacMp4Writer(int sampleRate, int bitRate, File outputFile, AudioMemory memory, long fromSample) throws IOException {
+        source = PcmSource.follow(memory, fromSample);
+        encoder = new MediaCodecEncoder(createFormat(sampleRate, 1, bitRate),
+                FragmentedMp4Writer.output(outputFile, FRAGMENT_MS),
+                Process.THREAD_PRIORITY_AUDIO, source);
+    }
+
+    private static MediaFormat createFormat(int sampleRate, int channelCount, int bitRate) {
         MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, sampleRate, channelCount);
         format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
         format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
         format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 16384);
+        return format;
+    }
+
+    private static MediaCodecEncoder.Output createOutput(File outputFile) throws IOException {
+        return MediaCodecEncoder.muxer(outputFile, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
 
-        mediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
-        mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mediaMuxer = new MediaMuxer(outputFile.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-        mediaCodec.start();
+    /**
+     * Tells the encoder the memory being recorded has new audio. Never waits.
+     */
+    public void onCaptured() {
+        encoder.available();
     }
 
+    /**
+     * Same as {@link #write(ByteBuffer)}, but waits for the encoder instead of dropping audio, for
+     * audio that is not live, such as prepended memory.
+     */
     public void write(byte[] data, int offset, int length) throws IOException {
         synchronized (writeLock) {
             if (isClosed.get()) {
                 throw new IOException("Writer is closed");
             }
-            if (length == 0) {
-                return;
-            }
-
-            // Combine any pending data with new data
-            int totalDataLen = pendingDataLen + length;
-            if (totalDataLen == 0) {
-                return;
-            }
-
-            // Allocate a contiguous buffer with both pending and new data
-            byte[] combinedBuffer = new byte[totalDataLen];
-            int pos = 0;
-            if (pendingData != null && pendingDataLen > 0) {
-                pendingData.rewind();
-                pendingData.get(combinedBuffer, 0, pendingDataLen);
-                pos = pendingDataLen;
-                pendingData = null;
-                pendingDataLen = 0;
-            }
-            System.arraycopy(data, offset, combinedBuffer, pos, length);
-
-            drainEncoder();
-
-            int remaining = totalDataLen;
-            int srcOffset = 0;
-
-            while (remaining > 0) {
-                int inputBufferIndex = mediaCodec.dequeueInputBuffer(-1);
-                if (inputBufferIndex >= 0) {
-                    ByteBuffer inputBuffer = mediaCodec.getInputBuffer(inputBufferIndex);
-                    if (inputBuffer == null) {
-                        throw new IOException("Could not get input buffer");
-                    }
-                    inputBuffer.clear();
-                    int spaceAvailable = inputBuffer.remaining();
-                    if (spaceAvailable == 0) {
-                        continue;
-                    }
-                    int toWrite = Math.min(remaining, spaceAvailable);
-                    inputBuffer.put(combinedBuffer, srcOffset, toWrite);
-                    srcOffset += toWrite;
-                    remaining -= toWrite;
-
-                    int samplesWritten = toWrite / 2;
-                    presentationTimeUs += (long) (1000000L * samplesWritten / sampleRate);
-                    mediaCodec.queueInputBuffer(inputBufferIndex, 0, toWrite, presentationTimeUs, 0);
-                    totalBytesWritten += toWrite;
-                }
+            if (wrapped == null || wrapped.array() != data) {
+                wrapped = ByteBuffer.wrap(data);
             }
+            wrapped.limit(offset + length).position(offset);
+            encoder.write(wrapped, true);
         }
     }
-    
-    private void drainEncoder() {
-        int outputBufferIndex = mediaCodec.dequeueOutputBuffer(bufferInfo, 0);
-        while (outputBufferIndex >= 0) {
-            ByteBuffer outputBuffer = mediaCodec.getOutputBuffer(outputBufferIndex);
-            if (bufferInfo.flags == MediaCodec.BUFFER_FLAG_CODEC_CONFIG) {
-                if (trackIndex == -1) {
-                    MediaFormat newFormat = mediaCodec.getOutputFormat();
-                    trackIndex = mediaMuxer.addTrack(newFormat);
-                    mediaMuxer.start();
-                }
-            } else if (trackIndex != -1 && bufferInfo.size != 0 && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0) {
-                mediaMuxer.writeSampleData(trackIndex, outputBuffer, bufferInfo);
+
+    /**
+     * Queues the bytes between the buffer's position and limit for encoding, leaving both
+     * unchanged, so callers can pass a view of memory they keep using, such as the capture ring.
+     * Encoding happens on the encoder's own thread and this never waits for it; audio it falls
+     * too far behind to take is dropped.
+     */
+    public void write(ByteBuffer data) throws IOException {
+        synchronized (writeLock) {
+            if (isClosed.get()) {
+                throw new IOException("Writer is closed");
+            }
+            if (!encoder.write(data, false)) {
+                Log.w(TAG, "Encoder fell behind, " + encoder.getDropped() + " bytes dropped so far");
             }
-            mediaCodec.releaseOutputBuffer(outputBufferIndex, false);
-            outputBufferIndex = mediaCodec.dequeueOutputBuffer(bufferInfo, 0);
         }
     }
 
     public long getTotalSampleBytesWritten() {
-        return totalBytesWritten;
+        return encoder.getBytesQueued();
     }
     
+    /**
+     * Ends the recording at endSample and waits until the file is complete, which may take a
+     * while after a long prepend: call it off the capture thread. Audio captured meanwhile is
+     * not part of the recording.
+     * @throws IOException if the file could not be completed.
+     */
+    public void finish(long endSample) throws IOException {
+        if (!isClosed.compareAndSet(false, true)) return;
+        if (source != null) source.endAt(endSample);
+        synchronized (writeLock) {
+            encoder.close();
+        }
+    }
+
     @Override
     public void close() {
         if (isClosed.compareAndSet(false, true)) {
             synchronized (writeLock) {
-                closeQuietly(mediaCodec);
-                closeQuietly(mediaMuxer);
-                mediaCodec = null;
-                mediaMuxer = null;
-            }
-        }
-    }
-    
-    private void closeQuietly(Object closeable) {
-        if (closeable != null) {
-            try {
-                if (closeable instanceof MediaCodec) {
-                    MediaCodec codec = (MediaCodec) closeable;
-                    codec.stop();
-                    codec.release();
-                } else if (closeable instanceof MediaMuxer) {
-                    MediaMuxer muxer = (MediaMuxer) closeable;
-                    try {
-                        muxer.stop();
-                    } catch (IllegalStateException e) {
-                        // Muxer might not have been started
-                    }
-                    muxer.release();
+                try {
+                    encoder.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error finishing recording", e);
                 }
-            } catch (Exception e) {
-                Log.e(TAG, "Error closing resource", e);
             }
         }
     }
@@ -1,204 +1,906 @@
 package eu.mrogalski.saidit;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Ring buffer holding the most recent PCM history.
+ *
+ * Single writer, many readers, no locks: {@link #fill} and {@link #allocate} must be called from
+ * the capture thread only, while {@link #read} / {@link #dump} / {@link #getStats} may run on any
+ * thread. The writer publishes a monotonically increasing 64-bit byte sequence; readers copy out
+ * of the ring and then validate, seqlock style, that the writer has not lapped the bytes they
+ * just copied. The capture thread therefore never waits for an export or the analysis loop.
+ *
+ * The ring is made of {@link #CHUNK_SIZE} chunks, so {@link #allocate} can grow or shrink it by
+ * adding or releasing chunks while keeping the newest audio.
+ *
+ * Positions are absolute: sample N is the N-th sample ever written, across reallocations. A
+ * {@link Cursor} tracks one consumer's position so it processes every sample exactly once, or
+ * learns precisely how many it lost when the writer lapped it.
+ *
+ * With {@link #setBackingFile} the ring lives in a memory-mapped {@link AudioMemoryFile} instead
+ * of the native heap, and {@link #allocate} reattaches to whatever history the file still holds
+ * after the process was killed.
+ *
+ * Readers that can work on the ring in place pass a {@link ViewConsumer} instead of a
+ * {@link Consumer} and get read-only views of it rather than copies.
+ *
+ * An optional {@link CompressedHistory} extends the timeline further back: reads that reach past
+ * the oldest raw sample are served from it first.
+ */
 public class AudioMemory {
     static final int CHUNK_SIZE = 1920000;
-    
+    // 16-bit mono PCM
+    public static final int BYTES_PER_SAMPLE = 2;
+    // View reads copy this much just ahead of the writer, where a view would likely be overwritten
+    private static final int VIEW_GUARD_BYTES = CHUNK_SIZE;
+    // View dumps validate after every piece of this size
+    private static final int VIEW_PIECE_BYTES = 256 * 1024;
+
     private final Clock clock;
-    private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
-    
-    // Ring buffer
-    private ByteBuffer ring;
-    private int capacity = 0;
-    private int writePos = 0;
-    private int size = 0;
-    
+
+    // Current ring, swapped wholesale by allocate(). Readers take a snapshot and re-check it
+    // after copying so a concurrent reallocation is treated like an overrun.
+    private volatile Ring ring;
+
     // Fill estimation
     private volatile long fillingStartUptimeMillis;
     private volatile boolean filling = false;
-    private volatile boolean overwriting = false;
-    
-    // Thread-local IO buffer to avoid allocations
+
+    // Optional memory-mapped backing; null keeps the ring in direct buffers
+    private File backingFile;
+    private int backingSampleRate;
+
+    // Optional compressed tier holding history older than the ring
+    private volatile CompressedHistory archive;
+
+    // Where the sequence stood when the ring was released, so the next one carries on from there
+    private volatile long releasedAt;
+    // First sample captured after history was reattached, or -1, and how many samples' worth of
+    // time capture was down before it
+    private volatile long outagePosition = -1;
+    private volatile long outageSamples;
+    // Writer-only staging buffer; readers use the thread-local one below
+    private final byte[] fillBuffer = new byte[32 * 1024];
     private final ThreadLocal<byte[]> ioBuffer = ThreadLocal.withInitial(() -> new byte[32 * 1024]);
-    
+
     public AudioMemory(Clock clock) {
         this.clock = clock;
     }
-    
+
     public interface Consumer {
         int consume(byte[] array, int offset, int count) throws IOException;
     }
-    
-    public void allocate(long sizeToEnsure) {
-        rwLock.writeLock().lock();
-        try {
-            int required = 0;
-            while (required < sizeToEnsure) required += CHUNK_SIZE;
-            if (required == capacity) return;
-            
-            // Clear old buffer first to help GC
-            if (ring != null) {
-                ring.clear();
-                ring = null;
-                System.gc(); // Hint to GC
+
+    /**
+     * Receives audio in place instead of as a copy.
+     */
+    public interface ViewConsumer {
+        /**
+         * @param view Read-only, little-endian samples between position and limit. Only valid
+         *             during the call: the writer reuses the memory afterwards.
+         */
+        void consume(ByteBuffer view) throws IOException;
+    }
+
+    /**
+     * Writes audio straight into the ring, for sources such as AudioRecord that can read into a
+     * direct buffer themselves.
+     */
+    public interface DirectFiller {
+        /**
+         * @param region Writable, direct, little-endian slice of the ring starting at index 0 and
+         *               as long as its limit. Only valid during the call.
+         * @return number of bytes written at the start of region, 0 if nothing was available.
+         */
+        int fill(ByteBuffer region) throws IOException;
+    }
+
+    private static final class Ring {
+        // Byte sequence s lives in chunks[(s / CHUNK_SIZE) % chunks.length] at s % CHUNK_SIZE
+        final ByteBuffer[] chunks;
+        final int capacity;
+        // Sequence number of the first byte ever written into this ring
+        final long origin;
+        // Bytes up to this sequence are readable
+        final AtomicLong published;
+        // Bytes up to this sequence may be in the middle of being written
+        final AtomicLong claimed;
+        // Writer's private views, so their positions never race with readers
+        final ByteBuffer[] writeViews;
+        // Header to keep in step with the ring when file-backed, otherwise null
+        final AudioMemoryFile file;
+
+        Ring(ByteBuffer[] chunks, long origin, long published, long claimed, AudioMemoryFile file) {
+            this.chunks = chunks;
+            this.capacity = chunks.length * CHUNK_SIZE;
+            // Anything the writer may have been overwriting when the process died is lost
+            this.origin = Math.max(origin, claimed - capacity);
+            this.published = new AtomicLong(published);
+            this.claimed = new AtomicLong(published);
+            this.writeViews = new ByteBuffer[chunks.length];
+            for (int i = 0; i < chunks.length; i++) {
+                writeViews[i] = chunks[i].duplicate();
             }
-            
-            ring = (required > 0) ? ByteBuffer.allocateDirect(required) : null;
-            capacity = required;
-            writePos = 0;
-            size = 0;
-            overwriting = false;
-        } finally {
-            rwLock.writeLock().unlock();
+            this.file = file;
+        }
+
+        long oldestReadable(long sequence) {
+            return Math.max(origin, sequence - capacity);
+        }
+
+        int slot(long sequence) {
+            return (int) (sequence / CHUNK_SIZE % chunks.length);
+        }
+
+        /**
+         * Raises the claim before the bytes are written. A plain volatile store would let the
+         * ring writes that follow become visible first, so a reader could copy new bytes and
+         * still validate against the old claim; getAndSet acts as a full fence, the
+         * StoreStore barrier a seqlock writer needs (VarHandle fences need API 33). The file
+         * header is updated ahead of the fence, so it never lags the data either.
+         */
+        void claim(long sequence) {
+            if (file != null) file.onClaim(sequence);
+            claimed.getAndSet(sequence);
+        }
+
+        /**
+         * Publishes the bytes written so far. The fence orders the ring writes before the file
+         * header's published mark.
+         */
+        void publish(long sequence) {
+            published.getAndSet(sequence);
+            if (file != null) file.onPublish(sequence);
+        }
+
+        /**
+         * Re-reads the claim after a copy. getAndAdd acts as a full fence so the preceding ring
+         * reads cannot be reordered past it.
+         */
+        boolean isIntact(long from) {
+            return from >= claimed.getAndAdd(0) - capacity;
+        }
+    }
+
+    /**
+     * Keeps the ring in a memory-mapped file from the next {@link #allocate} on. The file is
+     * reattached only if it was written at the same sample rate and capacity.
+     * @param file Backing file, or null to go back to an in-memory ring.
+     */
+    public void setBackingFile(File file, int sampleRate) {
+        backingFile = file;
+        backingSampleRate = sampleRate;
+    }
+
+    /**
+     * Attaches a compressed tier that {@link #dump} and {@link #read(long, int, Consumer)} fall
+     * back to for samples the ring no longer holds.
+     * @param archive Tier to read from, or null to detach it.
+     */
+    public void setArchive(CompressedHistory archive) {
+        this.archive = archive;
+    }
+
+    public CompressedHistory getArchive() {
+        return archive;
+    }
+
+    public boolean isFileBacked() {
+        Ring r = ring;
+        return r != null && r.file != null;
+    }
+
+    /**
+     * Resizes the ring to the smallest whole number of chunks holding sizeToEnsure bytes. An
+     * in-memory ring keeps its newest audio, adding or releasing chunks as needed; switching to
+     * or from a backing file starts over. Must be called from the capture thread.
+     * @return true if history from a previous process was reattached from the backing file.
+     */
+    public boolean allocate(long sizeToEnsure) {
+        int chunkCount = (int) ((Math.max(0, sizeToEnsure) + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        int required = chunkCount * CHUNK_SIZE;
+        Ring current = ring;
+        int capacity = current != null ? current.capacity : 0;
+        boolean wantFile = backingFile != null && required > 0;
+        if (required == capacity && (current == null || (current.file != null) == wantFile)) return false;
+
+        if (current != null && current.file == null && !wantFile && chunkCount > 0) {
+            ring = resize(current, chunkCount);
+            return false;
         }
+
+        // Keep the sequence monotonic across reallocations and releases; the new ring simply
+        // starts empty
+        long origin = current != null ? current.published.get() : releasedAt;
+        releasedAt = origin;
+        ring = null;
+        if (current != null && current.file != null) {
+            // Unlinking keeps the old mapping valid for readers still holding it
+            current.file.delete();
+        }
+        if (required == 0) return false;
+
+        if (wantFile) {
+            try {
+                AudioMemoryFile file = AudioMemoryFile.open(backingFile, required, backingSampleRate, clock);
+                ByteBuffer[] chunks = sliceChunks(file.data(), chunkCount);
+                if (file.isRestored() && current == null) {
+                    noteOutage(file);
+                    ring = new Ring(chunks, file.origin(), file.published(), file.claimed(), file);
+                    return true;
+                }
+                file.setOrigin(origin);
+                file.onClaim(origin);
+                file.onPublish(origin);
+                ring = new Ring(chunks, origin, origin, origin, file);
+                return false;
+            } catch (IOException e) {
+                // Fall back to the native heap; isFileBacked() tells the caller
+                backingFile = null;
+            }
+        }
+        ByteBuffer[] chunks = new ByteBuffer[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            chunks[i] = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        }
+        ring = new Ring(chunks, origin, origin, origin, null);
+        return false;
+    }
+
+    /**
+     * Works out from the reattached file's anchor how long capture was down since its newest
+     * sample was written.
+     */
+    private void noteOutage(AudioMemoryFile file) {
+        long end = file.published() / BYTES_PER_SAMPLE;
+        // Anything published after the anchor was captured after its time
+        long sinceAnchor = (end - file.anchor() / BYTES_PER_SAMPLE) * 1000 / backingSampleRate;
+        long millis = Math.max(0, clock.currentTimeMillis() - file.anchorTime() - sinceAnchor);
+        outageSamples = millis * backingSampleRate / 1000;
+        outagePosition = end;
+    }
+
+    /**
+     * @return absolute position of the first sample captured after history was reattached from
+     *         the backing file, with a gap in time before it, or -1 if none was.
+     */
+    public long getOutageSamplePosition() {
+        return outagePosition;
     }
-    
+
+    /**
+     * @return how long capture was down before the reattached history was picked up again, in
+     *         samples, or 0 if no history was reattached.
+     */
+    public long getOutageSamples() {
+        return outagePosition >= 0 ? outageSamples : 0;
+    }
+
+    /**
+     * @return position of the sample written the given number of samples' worth of wall-clock
+     *         time before the next one. A window reaching back across the outage before
+     *         reattached history counts the outage as time that passed, so the audio is dated
+     *         correctly rather than joined straight onto the new capture.
+     */
+    public long getPositionBefore(long samples) {
+        long start = getWriteSamplePosition() - samples;
+        long gap = outagePosition;
+        if (gap >= 0 && start < gap) {
+            start = Math.min(gap, start + outageSamples);
+        }
+        return Math.max(0, start);
+    }
+
+    /**
+     * Rebuilds the ring around the newest chunks of the current one. Chunks are moved, not
+     * copied, to the slot their logical chunk number maps to in the new ring; growing allocates
+     * only the added chunks and shrinking drops the oldest ones.
+     */
+    private static Ring resize(Ring current, int chunkCount) {
+        int oldCount = current.chunks.length;
+        long published = current.published.get();
+        long writeChunk = published / CHUNK_SIZE;
+        ByteBuffer[] chunks = new ByteBuffer[chunkCount];
+
+        int keep = Math.min(oldCount, chunkCount);
+        for (long m = Math.max(0, writeChunk - keep + 1); m <= writeChunk; m++) {
+            chunks[(int) (m % chunkCount)] = current.chunks[(int) (m % oldCount)];
+        }
+        long oldestChunk = writeChunk - oldCount;
+        if (chunkCount > oldCount && oldestChunk >= 0) {
+            // The oldest chunk's tail shares a slot with the chunk being written; once they get
+            // separate slots it needs a copy of its own
+            ByteBuffer source = current.chunks[(int) (oldestChunk % oldCount)].duplicate();
+            source.clear();
+            ByteBuffer copy = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            copy.put(source);
+            chunks[(int) (oldestChunk % chunkCount)] = copy;
+        }
+        for (int i = 0; i < chunkCount; i++) {
+            if (chunks[i] == null) chunks[i] = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        }
+
+        long origin = current.oldestReadable(published);
+        if (chunkCount < oldCount) {
+            origin = Math.max(origin, (writeChunk - chunkCount + 1) * CHUNK_SIZE);
+        }
+        return new Ring(chunks, origin, published, published, null);
+    }
+
+    private static ByteBuffer[] sliceChunks(ByteBuffer data, int chunkCount) {
+        ByteBuffer[] chunks = new ByteBuffer[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            ByteBuffer view = data.duplicate();
+            view.position(i * CHUNK_SIZE);
+            view.limit((i + 1) * CHUNK_SIZE);
+            chunks[i] = view.slice();
+        }
+        return chunks;
+    }
+
     public int fill(Consumer filler) throws IOException {
+        Ring r = ring;
+        if (r == null) return 0;
+        filling = true;
+        fillingStartUptimeMillis = clock.uptimeMillis();
+
         int totalRead = 0;
         int read;
-        
-        // Set filling flag
-        rwLock.readLock().lock();
         try {
-            if (capacity == 0 || ring == null) return 0;
-            filling = true;
-            fillingStartUptimeMillis = clock.uptimeMillis();
-        } finally {
-            rwLock.readLock().unlock();
-        }
-        
-        byte[] buffer = ioBuffer.get();
-        
-        while ((read = filler.consume(buffer, 0, buffer.length)) > 0) {
-            rwLock.writeLock().lock();
-            try {
-                if (capacity == 0 || ring == null) break;
-                
-                // Write into ring with wrap-around
-                int first = Math.min(read, capacity - writePos);
-                if (first > 0) {
-                    ring.position(writePos);
-                    ring.put(buffer, 0, first);
-                }
-                
-                int remaining = read - first;
-                if (remaining > 0) {
-                    ring.position(0);
-                    ring.put(buffer, first, remaining);
-                }
-                
-                writePos = (writePos + read) % capacity;
-                int newSize = size + read;
-                if (newSize > capacity) {
-                    overwriting = true;
-                    size = capacity;
-                } else {
-                    size = newSize;
-                }
+            while ((read = filler.consume(fillBuffer, 0, fillBuffer.length)) > 0) {
+                if (ring != r) break;
+                write(r, fillBuffer, read);
                 totalRead += read;
-            } finally {
-                rwLock.writeLock().unlock();
             }
+        } finally {
+            filling = false;
         }
-        
-        // Clear filling flag
-        rwLock.readLock().lock();
+        return totalRead;
+    }
+
+    /**
+     * Calls the filler once for at most maxBytes, for fillers that block until audio arrives and
+     * so cannot be drained by {@link #fill}. Capture thread only.
+     * @return number of bytes written.
+     */
+    public int fillOnce(Consumer filler, int maxBytes) throws IOException {
+        Ring r = ring;
+        if (r == null) return 0;
+        filling = true;
+        fillingStartUptimeMillis = clock.uptimeMillis();
+
+        int read;
         try {
-            filling = false;
+            read = filler.consume(fillBuffer, 0, Math.min(maxBytes, fillBuffer.length));
+            if (read <= 0 || ring != r) return 0;
+            write(r, fillBuffer, read);
         } finally {
-            rwLock.readLock().unlock();
+            filling = false;
         }
-        
-        return totalRead;
+        return read;
     }
-    
-    public void dump(Consumer consumer, int bytesToDump) throws IOException {
-        rwLock.readLock().lock();
+
+    /**
+     * Like {@link #fill(Consumer)}, but the filler writes into the ring itself instead of a
+     * staging array. Capture thread only.
+     * @return number of bytes written.
+     */
+    public int fill(DirectFiller filler) throws IOException {
+        Ring r = ring;
+        if (r == null) return 0;
+        filling = true;
+        fillingStartUptimeMillis = clock.uptimeMillis();
+
+        int totalRead = 0;
+        int read;
         try {
-            if (capacity == 0 || ring == null || size == 0 || bytesToDump <= 0) return;
-            
-            int toCopy = Math.min(bytesToDump, size);
-            int skip = size - toCopy;
-            
-            int start = (writePos - size + capacity) % capacity;
-            int readPos = (start + skip) % capacity;
-            
-            byte[] buffer = ioBuffer.get();
-            int remaining = toCopy;
-            
-            while (remaining > 0) {
-                int chunk = Math.min(Math.min(remaining, capacity - readPos), buffer.length);
-                ring.position(readPos);
-                ring.get(buffer, 0, chunk);
-                consumer.consume(buffer, 0, chunk);
-                remaining -= chunk;
-                readPos = (readPos + chunk) % capacity;
+            while (ring == r && (read = writeDirect(r, filler, fillBuffer.length)) > 0) {
+                totalRead += read;
             }
         } finally {
-            rwLock.readLock().unlock();
+            filling = false;
         }
+        return totalRead;
     }
 
-    public void read(int startOffset, int bytesToRead, Consumer consumer) throws IOException {
-        rwLock.readLock().lock();
+    /**
+     * Like {@link #fillOnce(Consumer, int)}, but the filler writes into the ring itself. A request
+     * that crosses a chunk boundary is split in two calls so each gets one contiguous region.
+     * Capture thread only.
+     * @return number of bytes written.
+     */
+    public int fillOnce(DirectFiller filler, int maxBytes) throws IOException {
+        Ring r = ring;
+        if (r == null) return 0;
+        filling = true;
+        fillingStartUptimeMillis = clock.uptimeMillis();
+
+        int totalRead = 0;
         try {
-            if (capacity == 0 || ring == null || size == 0 || bytesToRead <= 0) return;
-            if (startOffset >= size) return;
-            if (startOffset + bytesToRead > size) {
-                bytesToRead = size - startOffset;
-            }
-            int bufferStartPos = (writePos - size + capacity) % capacity;
-            int readPos = (bufferStartPos + startOffset) % capacity;
-            byte[] buffer = ioBuffer.get();
-            int remaining = bytesToRead;
-            while (remaining > 0) {
-                int toReadFromRing = Math.min(remaining, capacity - readPos);
-                int chunk = Math.min(toReadFromRing, buffer.length);
-                ring.position(readPos);
-                ring.get(buffer, 0, chunk);
-                consumer.consume(buffer, 0, chunk);
-                remaining -= chunk;
-                readPos = (readPos + chunk) % capacity;
+            while (totalRead < maxBytes && ring == r) {
+                long start = r.published.get();
+                int read = writeDirect(r, filler, maxBytes - totalRead);
+                totalRead += read;
+                // Only carry on into the next chunk if this one was filled to its end
+                if (read <= 0 || (start + read) % CHUNK_SIZE != 0) break;
             }
         } finally {
-            rwLock.readLock().unlock();
+            filling = false;
         }
+        return totalRead;
     }
 
-    public long getAllocatedMemorySize() {
-        rwLock.readLock().lock();
+    /**
+     * Lets the filler write up to maxBytes in place, stopping at the end of the current chunk.
+     */
+    private static int writeDirect(Ring r, DirectFiller filler, int maxBytes) throws IOException {
+        long start = r.published.get();
+        int offset = (int) (start % CHUNK_SIZE);
+        int space = Math.min(maxBytes, CHUNK_SIZE - offset);
+        // Claim the whole region up front: the source may write any of it before returning
+        r.claim(start + space);
+
+        ByteBuffer view = r.writeViews[r.slot(start)];
+        int written = 0;
         try {
-            return capacity;
+            view.limit(offset + space);
+            view.position(offset);
+            ByteBuffer region = view.slice().order(ByteOrder.LITTLE_ENDIAN);
+            written = Math.max(0, Math.min(space, filler.fill(region)));
         } finally {
-            rwLock.readLock().unlock();
+            view.limit(view.capacity());
+            // Publish what was written and give back the rest of the claim
+            long end = start + written;
+            r.publish(end);
+            r.claim(end);
+        }
+        return written;
+    }
+
+    private static void write(Ring r, byte[] data, int length) {
+        long start = r.published.get();
+        long end = start + length;
+        // Announce the region first: readers overlapping it will fail validation
+        r.claim(end);
+
+        int done = 0;
+        while (done < length) {
+            long sequence = start + done;
+            int offset = (int) (sequence % CHUNK_SIZE);
+            int count = Math.min(length - done, CHUNK_SIZE - offset);
+            ByteBuffer view = r.writeViews[r.slot(sequence)];
+            view.position(offset);
+            view.put(data, done, count);
+            done += count;
+        }
+        r.publish(end);
+    }
+
+    /**
+     * @return total number of samples ever written, i.e. the position the next sample will get.
+     */
+    public long getWriteSamplePosition() {
+        Ring r = ring;
+        return (r != null ? r.published.get() : releasedAt) / BYTES_PER_SAMPLE;
+    }
+
+    /**
+     * @return position of the oldest sample still held in the ring.
+     */
+    public long getOldestSamplePosition() {
+        Ring r = ring;
+        return r != null ? alignUp(r.oldestReadable(r.published.get())) / BYTES_PER_SAMPLE : 0;
+    }
+
+    /**
+     * Creates an independent reader positioned at the current write position.
+     * @param name Used in logs to tell cursors apart (e.g. "analysis", "export").
+     */
+    public Cursor newCursor(String name) {
+        Cursor cursor = new Cursor(name);
+        cursor.seekToLatest();
+        return cursor;
+    }
+
+    public void dump(Consumer consumer, int bytesToDump) throws IOException {
+        Ring r = ring;
+        if (r == null || bytesToDump <= 0) return;
+        long end = r.published.get();
+        long start = alignUp(Math.max(0, end - bytesToDump));
+        long rawStart = alignUp(r.oldestReadable(end));
+        if (start < rawStart) {
+            start = readArchive(start / BYTES_PER_SAMPLE, rawStart / BYTES_PER_SAMPLE, consumer) * BYTES_PER_SAMPLE;
+        }
+        copy(r, Math.max(start, rawStart), end, consumer, null);
+    }
+
+    public void read(int startOffset, int bytesToRead, Consumer consumer) throws IOException {
+        Ring r = ring;
+        if (r == null || bytesToRead <= 0 || startOffset < 0) return;
+        long end = r.published.get();
+        long bufferStart = r.oldestReadable(end);
+        long start = bufferStart + startOffset;
+        if (start >= end) return;
+        copy(r, start, Math.min(end, start + bytesToRead), consumer, null);
+    }
+
+    /**
+     * Reads samples starting at an absolute sample position.
+     * @return position just past the last sample delivered, or {@code fromSample} if nothing was.
+     */
+    public long read(long fromSample, int samplesToRead, Consumer consumer) throws IOException {
+        Ring r = ring;
+        if (r == null || samplesToRead <= 0) return fromSample;
+        long end = r.published.get();
+        long rawStart = alignUp(r.oldestReadable(end));
+        long stop = Math.min(end, (fromSample + samplesToRead) * BYTES_PER_SAMPLE);
+        long start = fromSample * BYTES_PER_SAMPLE;
+        if (start < rawStart) {
+            start = readArchive(fromSample, Math.min(rawStart, stop) / BYTES_PER_SAMPLE, consumer) * BYTES_PER_SAMPLE;
+        }
+        start = Math.max(start, rawStart);
+        if (start >= stop) return Math.max(fromSample, Math.min(start, stop) / BYTES_PER_SAMPLE);
+        return copy(r, start, stop, consumer, null) / BYTES_PER_SAMPLE;
+    }
+
+    /**
+     * Like {@link #dump(Consumer, int)}, but hands out the ring in place, one view per chunk it
+     * spans. The stretch the writer is about to overwrite, and anything older served from the
+     * compressed tier, is still copied.
+     * @return bytes the writer overwrote while the consumer held them, or before they were
+     *         reached. Normally zero.
+     */
+    public long dump(ViewConsumer consumer, int bytesToDump) throws IOException {
+        Ring r = ring;
+        if (r == null || bytesToDump <= 0) return 0;
+        long end = r.published.get();
+        long start = alignUp(Math.max(0, end - bytesToDump));
+        long rawStart = alignUp(r.oldestReadable(end));
+        Consumer copying = (array, offset, count) -> {
+            consumer.consume(ByteBuffer.wrap(array, offset, count).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN));
+            return count;
+        };
+        if (start < rawStart) {
+            start = readArchive(start / BYTES_PER_SAMPLE, rawStart / BYTES_PER_SAMPLE, copying) * BYTES_PER_SAMPLE;
+        }
+        start = Math.max(start, rawStart);
+        long guardEnd = Math.min(end, alignUp(rawStart + VIEW_GUARD_BYTES));
+        if (start < guardEnd) {
+            start = copy(r, start, guardEnd, copying, null);
         }
+
+        ByteBuffer[] views = new ByteBuffer[r.chunks.length];
+        long lost = 0;
+        long position = start;
+        while (position < end && ring == r) {
+            long oldest = alignUp(r.oldestReadable(r.claimed.get()));
+            if (position < oldest) {
+                lost += oldest - position;
+                position = oldest;
+                continue;
+            }
+            long pieceEnd = Math.min(end, position + VIEW_PIECE_BYTES);
+            if (!deliverViews(r, views, position, pieceEnd, consumer)) {
+                lost += pieceEnd - position;
+            }
+            position = pieceEnd;
+        }
+        return lost;
+    }
+
+    /**
+     * Hands [from, to) to the consumer as views of the ring, then checks the writer did not
+     * reach them in the meantime.
+     * @param views Per-chunk read-only views of r, created on first use.
+     * @return false if it did, in which case the consumer may have seen newer audio.
+     */
+    private boolean deliverViews(Ring r, ByteBuffer[] views, long from, long to, ViewConsumer consumer) throws IOException {
+        long position = from;
+        while (position < to) {
+            int slot = r.slot(position);
+            ByteBuffer view = views[slot];
+            if (view == null) {
+                view = views[slot] = r.chunks[slot].asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+            }
+            int offset = (int) (position % CHUNK_SIZE);
+            int count = (int) Math.min(to - position, CHUNK_SIZE - offset);
+            view.clear();
+            view.position(offset);
+            view.limit(offset + count);
+            consumer.consume(view);
+            position += count;
+        }
+        return r.isIntact(from) && ring == r;
+    }
+
+    /**
+     * Serves [fromSample, toSample) from the compressed tier as far as it reaches.
+     * @return position just past the last sample delivered.
+     */
+    private long readArchive(long fromSample, long toSample, Consumer consumer) throws IOException {
+        CompressedHistory a = archive;
+        if (a == null || fromSample >= toSample) return fromSample;
+        return a.read(Math.max(fromSample, a.getOldestSamplePosition()), toSample, consumer);
+    }
+
+    /**
+     * Copies [from, to) to the consumer one validated piece at a time. If the writer laps the
+     * reader mid-copy, the overwritten bytes are skipped and copying resumes at the oldest bytes
+     * still intact.
+     */
+    private long copy(Ring r, long from, long to, Consumer consumer, Cursor cursor) throws IOException {
+        ByteBuffer[] views = new ByteBuffer[r.chunks.length];
+        byte[] buffer = ioBuffer.get();
+        long position = from;
+        while (position < to) {
+            int chunk = (int) Math.min(to - position, buffer.length);
+            if (!copyOut(r, views, position, buffer, 0, chunk)) {
+                if (ring != r) break;
+                long resumeAt = alignUp(r.oldestReadable(r.claimed.get()));
+                if (cursor != null) cursor.noteOverrun((resumeAt - position) / BYTES_PER_SAMPLE);
+                position = resumeAt;
+                continue;
+            }
+            consumer.consume(buffer, 0, chunk);
+            position += chunk;
+        }
+        return position;
+    }
+
+    /**
+     * Copies length bytes at sequence position into dst and validates them.
+     * @param views Per-chunk read views of r, duplicated on first use.
+     * @return false if the writer overwrote (or reallocated) the region while it was copied.
+     */
+    private boolean copyOut(Ring r, ByteBuffer[] views, long position, byte[] dst, int offset, int length) {
+        if (position < r.oldestReadable(r.published.get())) return false;
+        int done = 0;
+        while (done < length) {
+            long sequence = position + done;
+            int slot = r.slot(sequence);
+            ByteBuffer view = views[slot];
+            if (view == null) view = views[slot] = r.chunks[slot].duplicate();
+            int chunkOffset = (int) (sequence % CHUNK_SIZE);
+            int count = Math.min(length - done, CHUNK_SIZE - chunkOffset);
+            view.position(chunkOffset);
+            view.get(dst, offset + done, count);
+            done += count;
+        }
+        // Fence first: a resize shares chunks with the new ring, so the swap must be seen
+        return r.isIntact(position) && ring == r;
+    }
+
+    private static long alignUp(long position) {
+        return (position + BYTES_PER_SAMPLE - 1) / BYTES_PER_SAMPLE * BYTES_PER_SAMPLE;
+    }
+
+    public long getAllocatedMemorySize() {
+        Ring r = ring;
+        return r != null ? r.capacity : 0;
     }
-    
+
     public Stats getStats(int fillRate) {
-        rwLock.readLock().lock();
-        try {
-            final Stats stats = new Stats();
-            stats.filled = size;
-            stats.total = capacity;
-            stats.writePos = writePos;
-            stats.estimation = (int) (filling ? 
-                (clock.uptimeMillis() - fillingStartUptimeMillis) * fillRate / 1000 : 0);
-            stats.overwriting = overwriting;
-            return stats;
-        } finally {
-            rwLock.readLock().unlock();
+        final Stats stats = new Stats();
+        Ring r = ring;
+        if (r != null) {
+            long written = r.published.get() - r.origin;
+            stats.filled = (int) Math.min(written, r.capacity);
+            stats.total = r.capacity;
+            stats.writePos = (int) (written % r.capacity);
+            stats.overwriting = written > r.capacity;
+        }
+        CompressedHistory a = archive;
+        if (a != null) {
+            stats.archivedBytes = a.getCompressedBytes();
+            long rawOldest = r != null ? alignUp(r.oldestReadable(r.published.get())) / BYTES_PER_SAMPLE : Long.MAX_VALUE;
+            stats.archivedSamples = Math.max(0, Math.min(a.getEndSamplePosition(), rawOldest) - a.getOldestSamplePosition());
         }
+        stats.estimation = (int) (filling ?
+            (clock.uptimeMillis() - fillingStartUptimeMillis) * fillRate / 1000 : 0);
+        return stats;
     }
-    
+
+    /**
+     * A reader's position in the absolute sample timeline. Not thread-safe: each cursor belongs
+     * to the thread that reads through it.
+     */
+    public final class Cursor {
+        private final String name;
+        // Read views for the ring they were made from
+        private Ring viewRing;
+        private ByteBuffer[] views;
+        private ByteBuffer[] readOnlyViews;
+        private long position;
+        private long overrunSamples;
+        private boolean overrun;
+
+        private Cursor(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return absolute position of the next sample this cursor will read.
+         */
+        public long getPosition() {
+            return position;
+        }
+
+        public void seek(long samplePosition) {
+            position = Math.max(0, samplePosition);
+        }
+
+        public void seekToLatest() {
+            position = getWriteSamplePosition();
+        }
+
+        public void seekToOldest() {
+            position = getOldestSamplePosition();
+        }
+
+        /**
+         * @return how many samples have been written but not yet read through this cursor.
+         */
+        public long getLagSamples() {
+            return Math.max(0, getWriteSamplePosition() - position);
+        }
+
+        /**
+         * @return samples available to read right now, after skipping anything already lost.
+         */
+        public long available() {
+            Ring r = ring;
+            if (r == null) return 0;
+            long end = r.published.get() / BYTES_PER_SAMPLE;
+            return end - Math.max(position, getOldestSamplePosition());
+        }
+
+        /**
+         * @return total samples this cursor had to skip because the writer overwrote them.
+         */
+        public long getOverrunSamples() {
+            return overrunSamples;
+        }
+
+        /**
+         * @return true if the cursor was overrun since the last call, then clears the flag.
+         */
+        public boolean checkAndClearOverrun() {
+            boolean result = overrun;
+            overrun = false;
+            return result;
+        }
+
+        /**
+         * Copies up to sampleCount contiguous samples into dst and advances past them. If older
+         * samples were overwritten the cursor first jumps to the oldest intact one.
+         * @return number of samples copied.
+         */
+        public int read(byte[] dst, int offset, int sampleCount) {
+            Ring r = ring;
+            if (r == null || sampleCount <= 0) return 0;
+            useRing(r);
+            while (true) {
+                skipLost(r);
+                long end = r.published.get() / BYTES_PER_SAMPLE;
+                int count = (int) Math.min(sampleCount, end - position);
+                if (count <= 0) return 0;
+                if (copyOut(r, views, position * BYTES_PER_SAMPLE, dst, offset, count * BYTES_PER_SAMPLE)) {
+                    position += count;
+                    return count;
+                }
+                if (ring != r) return 0;
+            }
+        }
+
+        /**
+         * Hands up to sampleCount contiguous samples to the consumer in place and advances past
+         * them. They arrive as one view per ring chunk they span, so a frame is split in two at
+         * most. If the writer reached them while the consumer held the views, this counts as an
+         * overrun.
+         * @return number of samples delivered.
+         */
+        public int read(int sampleCount, ViewConsumer consumer) throws IOException {
+            Ring r = ring;
+            if (r == null || sampleCount <= 0) return 0;
+            useRing(r);
+            skipLost(r);
+            long end = r.published.get() / BYTES_PER_SAMPLE;
+            int count = (int) Math.min(sampleCount, end - position);
+            if (count <= 0) return 0;
+            long from = position * BYTES_PER_SAMPLE;
+            if (readOnlyViews == null) readOnlyViews = new ByteBuffer[r.chunks.length];
+            if (!deliverViews(r, readOnlyViews, from, from + (long) count * BYTES_PER_SAMPLE, consumer)) {
+                noteOverrun(count);
+            }
+            position += count;
+            return count;
+        }
+
+        /**
+         * Like {@link #read(int, ViewConsumer)}, for readers that cannot take back what they were
+         * handed: samples are only delivered in place when they are clear of the stretch the
+         * writer is about to overwrite, and the cursor only advances if they were still intact
+         * once the consumer was done with them.
+         * @return number of samples delivered, or 0 when none were, or when the writer reached
+         *         them meanwhile and the consumer must drop what it was handed. The caller then
+         *         reads by copy instead.
+         */
+        public int readIntact(int sampleCount, ViewConsumer consumer) throws IOException {
+            Ring r = ring;
+            if (r == null || sampleCount <= 0) return 0;
+            useRing(r);
+            long from = position * BYTES_PER_SAMPLE;
+            if (from < alignUp(r.oldestReadable(r.claimed.get())) + VIEW_GUARD_BYTES) return 0;
+            int count = (int) Math.min(sampleCount, r.published.get() / BYTES_PER_SAMPLE - position);
+            if (count <= 0) return 0;
+            if (readOnlyViews == null) readOnlyViews = new ByteBuffer[r.chunks.length];
+            if (!deliverViews(r, readOnlyViews, from, from + (long) count * BYTES_PER_SAMPLE, consumer)) return 0;
+            position += count;
+            return count;
+        }
+
+        /**
+         * Streams up to sampleCount samples to the consumer and advances past them.
+         * @return number of samples the cursor advanced, including any it had to skip.
+         */
+        public long read(long sampleCount, Consumer consumer) throws IOException {
+            Ring r = ring;
+            if (r == null || sampleCount <= 0) return 0;
+            skipLost(r);
+            long end = Math.min(r.published.get() / BYTES_PER_SAMPLE, position + sampleCount);
+            if (end <= position) return 0;
+            long from = position;
+            long reached = copy(r, from * BYTES_PER_SAMPLE, end * BYTES_PER_SAMPLE, consumer, this) / BYTES_PER_SAMPLE;
+            position = Math.max(position, reached);
+            return reached - from;
+        }
+
+        private void useRing(Ring r) {
+            if (viewRing != r) {
+                viewRing = r;
+                views = new ByteBuffer[r.chunks.length];
+                readOnlyViews = null;
+            }
+        }
+
+        private void skipLost(Ring r) {
+            long oldest = alignUp(r.oldestReadable(r.claimed.get())) / BYTES_PER_SAMPLE;
+            if (position < oldest) {
+                noteOverrun(oldest - position);
+                position = oldest;
+            }
+        }
+
+        private void noteOverrun(long samples) {
+            if (samples <= 0) return;
+            overrunSamples += samples;
+            overrun = true;
+        }
+
+        @Override
+        public String toString() {
+            return name + "@" + position + " lag=" + getLagSamples() + " overrun=" + overrunSamples;
+        }
+    }
+
     public static class Stats {
-        public int filled;
-        public int total;
-        public int writePos;
-        public int estimation;
-        public boolean overwriting;
-    }
-}
+        public int filled;
+        public int total;
+        public int writePos;
+        public int estimation;
+        public boolean overwriting;
+        // Compressed tier, zero when there is none. archivedSamples counts only history older
+        // than the ring, so filled + archivedSamples * BYTES_PER_SAMPLE is everything readable.
+        public long archivedBytes;
+        public long archivedSamples;
+    }
+}
@@ -0,0 +1,171 @@
+package eu.mrogalski.saidit;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Preallocated file that holds the {@link AudioMemory} ring, mapped into memory.
+ *
+ * Writes land in the page cache, so the history survives the process being killed and is not
+ * counted against the app heap. A one-page header in front of the data records where the ring
+ * was when the process died:
+ *
+ * <pre>
+ *  0  int  magic
+ *  4  int  version
+ *  8  int  capacity (bytes of ring data)
+ * 12  int  sample rate
+ * 16  long origin    - sequence of the first byte written into this ring
+ * 24  long claimed   - bytes up to here may have been mid-write
+ * 32  long published - bytes up to here are complete
+ * 40  long anchor    - published, as of the anchor time
+ * 48  long anchor time - wall-clock millis when anchor was published
+ * </pre>
+ *
+ * Header fields are plain stores into the mapping. {@link AudioMemory} fences them against its
+ * ring writes, claimed before the data and published after it, so they never misdescribe the
+ * data. The anchor follows published in the same step, so on reattach it tells when the history
+ * ends and how long capture was down since.
+ */
+final class AudioMemoryFile implements Closeable {
+    static final int HEADER_SIZE = 4096;
+    private static final int MAGIC = 0x45434852; // "ECHR"
+    private static final int VERSION = 2;
+
+    private static final int OFF_MAGIC = 0;
+    private static final int OFF_VERSION = 4;
+    private static final int OFF_CAPACITY = 8;
+    private static final int OFF_SAMPLE_RATE = 12;
+    private static final int OFF_ORIGIN = 16;
+    private static final int OFF_CLAIMED = 24;
+    private static final int OFF_PUBLISHED = 32;
+    private static final int OFF_ANCHOR = 40;
+    private static final int OFF_ANCHOR_TIME = 48;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer data;
+    private final boolean restored;
+    private final Clock clock;
+
+    private AudioMemoryFile(File file, RandomAccessFile raf, MappedByteBuffer header,
+                            MappedByteBuffer data, boolean restored, Clock clock) {
+        this.file = file;
+        this.raf = raf;
+        this.header = header;
+        this.data = data;
+        this.restored = restored;
+        this.clock = clock;
+    }
+
+    /**
+     * Maps the file, reattaching to the history in it if it was written with the same capacity
+     * and sample rate, or resetting it otherwise.
+     * @param clock Dates the anchor.
+     */
+    static AudioMemoryFile open(File file, int capacity, int sampleRate, Clock clock) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long length = (long) HEADER_SIZE + capacity;
+            if (raf.length() != length) {
+                raf.setLength(length);
+            }
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE, capacity);
+
+            boolean restored = header.getInt(OFF_MAGIC) == MAGIC
+                    && header.getInt(OFF_VERSION) == VERSION
+                    && header.getInt(OFF_CAPACITY) == capacity
+                    && header.getInt(OFF_SAMPLE_RATE) == sampleRate
+                    && header.getLong(OFF_PUBLISHED) > header.getLong(OFF_ORIGIN);
+            if (!restored) {
+                // Invalidate first so a crash while resetting never looks like valid history
+                header.putInt(OFF_MAGIC, 0);
+                header.putInt(OFF_VERSION, VERSION);
+                header.putInt(OFF_CAPACITY, capacity);
+                header.putInt(OFF_SAMPLE_RATE, sampleRate);
+                header.putLong(OFF_ORIGIN, 0);
+                header.putLong(OFF_CLAIMED, 0);
+                header.putLong(OFF_PUBLISHED, 0);
+                header.putLong(OFF_ANCHOR, 0);
+                header.putLong(OFF_ANCHOR_TIME, 0);
+                header.putInt(OFF_MAGIC, MAGIC);
+            }
+            return new AudioMemoryFile(file, raf, header, data, restored, clock);
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    ByteBuffer data() {
+        return data;
+    }
+
+    /**
+     * @return true if the file already held history for this capacity and sample rate.
+     */
+    boolean isRestored() {
+        return restored;
+    }
+
+    long origin() {
+        return header.getLong(OFF_ORIGIN);
+    }
+
+    long claimed() {
+        return header.getLong(OFF_CLAIMED);
+    }
+
+    long published() {
+        return header.getLong(OFF_PUBLISHED);
+    }
+
+    long anchor() {
+        return header.getLong(OFF_ANCHOR);
+    }
+
+    long anchorTime() {
+        return header.getLong(OFF_ANCHOR_TIME);
+    }
+
+    void setOrigin(long origin) {
+        header.putLong(OFF_ORIGIN, origin);
+    }
+
+    void onClaim(long claimed) {
+        header.putLong(OFF_CLAIMED, claimed);
+    }
+
+    void onPublish(long published) {
+        header.putLong(OFF_PUBLISHED, published);
+        header.putLong(OFF_ANCHOR, published);
+        header.putLong(OFF_ANCHOR_TIME, clock.currentTimeMillis());
+    }
+
+    /**
+     * Unmaps the file and deletes it, dropping the history for good.
+     */
+    void delete() {
+        try {
+            close();
+        } catch (IOException ignored) {
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+}
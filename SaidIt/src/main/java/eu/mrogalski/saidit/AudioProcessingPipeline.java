@@ -1,44 +1,143 @@
 package eu.mrogalski.saidit;
 
+import eu.mrogalski.saidit.pipeline.ClassifierStage;
+import eu.mrogalski.saidit.pipeline.Frame;
+import eu.mrogalski.saidit.pipeline.Link;
+import eu.mrogalski.saidit.pipeline.SegmenterStage;
+import eu.mrogalski.saidit.pipeline.Stage;
+import eu.mrogalski.saidit.pipeline.StageThread;
+import eu.mrogalski.saidit.pipeline.StorageStage;
+import eu.mrogalski.saidit.pipeline.TaggerStage;
+import eu.mrogalski.saidit.pipeline.VadStage;
 import eu.mrogalski.saidit.vad.Vad;
 import eu.mrogalski.saidit.analysis.SegmentationController;
 import eu.mrogalski.saidit.storage.RecordingStoreManager;
 import eu.mrogalski.saidit.ml.TfLiteClassifier;
-import eu.mrogalski.saidit.vad.EnergyVad;
+import eu.mrogalski.saidit.vad.GmmVad;
+import eu.mrogalski.saidit.vad.NoiseFloorVad;
 import eu.mrogalski.saidit.storage.SimpleRecordingStoreManager;
+import eu.mrogalski.saidit.storage.SimpleRecordingStoreManager.Persist;
 import eu.mrogalski.saidit.analysis.SimpleSegmentationController;
 import eu.mrogalski.saidit.ml.AudioEventClassifier;
-import eu.mrogalski.saidit.storage.AudioTag;
+import eu.mrogalski.saidit.ml.ClassifierScheduler;
 
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.os.Process;
 import android.util.Log;
-import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Analysis graph fed one frame at a time from the analysis thread:
+ * <pre>
+ *  VAD -> segmenter -> storage writer
+ *              \-> classifier -> tagger -> storage writer
+ * </pre>
+ * The VAD runs inline on the caller. Every other stage is either inline as well or on its own
+ * thread behind a bounded queue of pooled frames, as {@link Config} says. The classifier's queue
+ * drops frames when inference falls behind, so model latency never holds up segmentation;
+ * storage queues make the producer wait instead, so segment audio is never lost.
+ */
 public class AudioProcessingPipeline {
     private static final String TAG = "AudioProcessingPipeline";
-    
+    // Largest frame a queued link carries without splitting it
+    private static final int FRAME_MS = 20;
+    private static final float TAG_MIN_CONFIDENCE = 0.3f;
+
+    /**
+     * Threading of each stage after the VAD. Queue sizes are in frames.
+     */
+    public static class Config {
+        public boolean segmenterThread = false;
+        public boolean classifierThread = true;
+        public boolean taggerThread = false;
+        public boolean storageThread = true;
+        public int segmenterQueueFrames = 50;
+        // Enough to ride out one inference; beyond that frames are dropped
+        public int classifierQueueFrames = 32;
+        public int taggerQueueFrames = 32;
+        // About 5 s of audio before the segmenter waits for the disk
+        public int storageQueueFrames = 256;
+        // Classifier windows start this far apart; the window length is the model's
+        public int classifierHopMs = 500;
+        // Windows run through the model per wakeup of the classifier stage
+        public int classifierBatch = 1;
+        // Inference budget per minute; 0 for unlimited
+        public int classifierMaxPerMinute = 30;
+        // Windows are only classified this long after speech or an energy change; 0 for always
+        public int classifierActivityHoldMs = 2000;
+        // Where and how the model runs; a delegate that fails falls back to XNNPACK
+        public TfLiteClassifier.Delegate classifierDelegate = TfLiteClassifier.Delegate.XNNPACK;
+        public int classifierThreads = 2;
+        public boolean classifierWarmUp = true;
+        // Tags kept per classified window
+        public int classifierMaxResults = 5;
+        // VAD sensitivity, 0 (least) to 3 (most)
+        public int vadMode = 2;
+        // WebRTC-style GMM VAD at 8, 16, 32 and 48 kHz; other rates use the noise-floor VAD
+        public boolean vadGmm = true;
+        public int vadGmmFrameMs = 20;
+        // Whether noise-floor VAD onsets must also sound like speech
+        public boolean vadSpectralFeatures = true;
+        // Segments are kept as ranges of AudioMemory and written out by a background persister,
+        // rather than streamed to disk while they are recorded; needs the pipeline's AudioMemory
+        public boolean segmentRanges = true;
+        public Persist segmentPersist = Persist.BEFORE_EVICTION;
+        // Onset, merge, length and roll rules of the segmenter
+        public SimpleSegmentationController.Config segmentation = new SimpleSegmentationController.Config();
+    }
+
     private final WeakReference<Context> mContextRef;
     private final int mSampleRate;
+    private final AudioMemory memory;
+    private final Config config;
     private final AtomicBoolean isRunning = new AtomicBoolean(false);
     
     private volatile Vad vad;
     private volatile SegmentationController segmentationController;
     private volatile RecordingStoreManager recordingStoreManager;
     private volatile TfLiteClassifier audioClassifier;
-    
-    // Reusable buffers to reduce allocations
-    private final ThreadLocal<short[]> shortArrayBuffer = new ThreadLocal<>();
-    private final ThreadLocal<ByteBuffer> byteBufferCache = new ThreadLocal<>();
+
+    private Link entry;
+    private SegmenterStage segmenterStage;
+    private StorageStage storageStage;
+    private Link classifierLink;
+    private ClassifierScheduler classifierScheduler;
+    private PowerManager.OnThermalStatusChangedListener thermalListener;
+    private android.content.BroadcastReceiver batteryReceiver;
+    private final Map<Stage, StageThread> stageThreads = new HashMap<>();
+    private final List<Link> links = new ArrayList<>();
+    // Reused for every frame fed in; only touched by the analysis thread
+    private final Frame input = Frame.borrowing();
     
     public AudioProcessingPipeline(Context context, int sampleRate) {
+        this(context, sampleRate, null, new Config());
+    }
+
+    /**
+     * @param memory Ring the frames come from, so segments can be kept as ranges of it; null to
+     *               stream segment audio to disk instead.
+     */
+    public AudioProcessingPipeline(Context context, int sampleRate, AudioMemory memory) {
+        this(context, sampleRate, memory, new Config());
+    }
+
+    public AudioProcessingPipeline(Context context, int sampleRate, AudioMemory memory, Config config) {
         // Use weak reference to prevent context leak
         mContextRef = new WeakReference<>(context.getApplicationContext());
         mSampleRate = sampleRate;
+        this.memory = memory;
+        this.config = config;
     }
     
     public synchronized void start() {
@@ -54,46 +153,32 @@ public class AudioProcessingPipeline {
         }
         
         try {
-            vad = new EnergyVad();
+            if (config.vadGmm && GmmVad.isSupported(mSampleRate)) {
+                GmmVad gmmVad = new GmmVad();
+                gmmVad.setFrameMs(config.vadGmmFrameMs);
+                vad = gmmVad;
+            } else {
+                NoiseFloorVad noiseFloorVad = new NoiseFloorVad();
+                noiseFloorVad.setSpectralFeatures(config.vadSpectralFeatures);
+                vad = noiseFloorVad;
+            }
             vad.init(mSampleRate);
-            vad.setMode(2);
-            
-            recordingStoreManager = new SimpleRecordingStoreManager(context, mSampleRate);
-            segmentationController = new SimpleSegmentationController(mSampleRate, 16);
-            
-            // Use weak reference in listener to prevent leak
-            final WeakReference<RecordingStoreManager> storeRef = 
-                new WeakReference<>(recordingStoreManager);
+            vad.setMode(config.vadMode);
             
-            segmentationController.setListener(new SegmentationController.SegmentListener() {
-                @Override
-                public void onSegmentStart(long timestamp) {
-                    RecordingStoreManager store = storeRef.get();
-                    if (store != null) {
-                        try {
-                            store.onSegmentStart(timestamp);
-                        } catch (IOException e) {
-                            Log.e(TAG, "Failed to start segment", e);
-                        }
-                    }
-                }
-                
-                @Override
-                public void onSegmentEnd(long timestamp) {
-                    RecordingStoreManager store = storeRef.get();
-                    if (store != null) {
-                        store.onSegmentEnd(timestamp);
-                    }
-                }
-                
-                @Override
-                public void onSegmentData(byte[] data, int offset, int length) {
-                    RecordingStoreManager store = storeRef.get();
-                    if (store != null) {
-                        store.onSegmentData(data, offset, length);
-                    }
-                }
-            });
+            final SimpleRecordingStoreManager store = new SimpleRecordingStoreManager(context, mSampleRate);
+            final SimpleSegmentationController controller = new SimpleSegmentationController(mSampleRate, 16, config.segmentation);
+            if (config.segmentRanges && memory != null) {
+                store.setRangeSource(memory, config.segmentPersist);
+                controller.setEmitRanges(true);
+            }
+            recordingStoreManager = store;
+            segmentationController = controller;
+
+            storageStage = new StorageStage(recordingStoreManager);
+            segmenterStage = new SegmenterStage(segmentationController,
+                    connect(storageStage, config.storageThread, config.storageQueueFrames, Link.Overflow.BLOCK));
+            entry = Link.inline(new VadStage(vad,
+                    connect(segmenterStage, config.segmenterThread, config.segmenterQueueFrames, Link.Overflow.BLOCK)));
             
             isRunning.set(true);
         } catch (Exception criticalError) {
@@ -104,7 +189,24 @@ public class AudioProcessingPipeline {
 
         try {
             audioClassifier = new AudioEventClassifier();
-            audioClassifier.load(context, "yamnet_tiny.tfile", "yamnet_tiny_labels.txt");
+            final TfLiteClassifier.Options options = new TfLiteClassifier.Options();
+            options.delegate = config.classifierDelegate;
+            options.numThreads = config.classifierThreads;
+            options.warmUp = config.classifierWarmUp;
+            options.maxResults = config.classifierMaxResults;
+            options.scoreThreshold = TAG_MIN_CONFIDENCE;
+            audioClassifier.load(context, "yamnet_tiny.tfile", "yamnet_tiny_labels.txt", options);
+
+            // Tags are optional too: drop them rather than stall inference on the disk
+            final TaggerStage taggerStage = new TaggerStage(TAG_MIN_CONFIDENCE,
+                    connect(storageStage, config.storageThread, config.taggerQueueFrames, Link.Overflow.DROP));
+            classifierScheduler = new ClassifierScheduler(config.classifierMaxPerMinute, config.classifierActivityHoldMs);
+            watchPowerState(context, classifierScheduler);
+            final ClassifierStage classifierStage = new ClassifierStage(audioClassifier, classifierScheduler, mSampleRate,
+                    config.classifierHopMs, config.classifierBatch, config.classifierMaxResults,
+                    connect(taggerStage, config.taggerThread, config.taggerQueueFrames, Link.Overflow.DROP));
+            classifierLink = connect(classifierStage, config.classifierThread, config.classifierQueueFrames, Link.Overflow.DROP);
+            segmenterStage.setClassifier(classifierLink);
         } catch (Exception optionalError) {
             Log.w(TAG, "classifier_unavailable_fallback", optionalError);
             if (audioClassifier != null) {
@@ -114,70 +216,167 @@ public class AudioProcessingPipeline {
                 }
             }
             audioClassifier = null;
+            unwatchPowerState();
+            classifierScheduler = null;
+        }
+    }
+
+    /**
+     * Keeps the scheduler up to date with the thermal status and battery level.
+     */
+    private void watchPowerState(Context context, ClassifierScheduler scheduler) {
+        final PowerManager powerManager = context.getSystemService(PowerManager.class);
+        if (powerManager != null) {
+            scheduler.setThermalStatus(powerManager.getCurrentThermalStatus());
+            thermalListener = scheduler::setThermalStatus;
+            powerManager.addThermalStatusListener(thermalListener);
+        }
+        batteryReceiver = new android.content.BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                updateBattery(scheduler, intent);
+            }
+        };
+        // Sticky: the current state comes back right away
+        updateBattery(scheduler, context.registerReceiver(batteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED)));
+    }
+
+    private static void updateBattery(ClassifierScheduler scheduler, Intent intent) {
+        if (intent == null) return;
+        final int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        final int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        if (level < 0 || scale <= 0) return;
+        scheduler.setBattery(level * 100 / scale, intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0);
+    }
+
+    private void unwatchPowerState() {
+        final Context context = mContextRef.get();
+        if (context == null) return;
+        if (thermalListener != null) {
+            final PowerManager powerManager = context.getSystemService(PowerManager.class);
+            if (powerManager != null) powerManager.removeThermalStatusListener(thermalListener);
+            thermalListener = null;
+        }
+        if (batteryReceiver != null) {
+            try {
+                context.unregisterReceiver(batteryReceiver);
+            } catch (IllegalArgumentException ignored) {
+            }
+            batteryReceiver = null;
+        }
+    }
+
+    /**
+     * @return the classifier's scheduler, or null if no classifier is loaded.
+     */
+    public ClassifierScheduler getClassifierScheduler() {
+        return classifierScheduler;
+    }
+
+    /**
+     * Connects to the stage inline, or through a queue to a thread of its own.
+     */
+    private Link connect(Stage stage, boolean threaded, int queueFrames, Link.Overflow overflow) {
+        if (!threaded) {
+            return Link.inline(stage);
+        }
+        // A stage fed by several producers gets one link from each, all drained by its one thread
+        StageThread thread = stageThreads.get(stage);
+        if (thread == null) {
+            thread = new StageThread("pipeline-" + stage.getName(), Process.THREAD_PRIORITY_BACKGROUND);
+            stageThreads.put(stage, thread);
         }
+        final int frameBytes = mSampleRate * FRAME_MS / 1000 * AudioMemory.BYTES_PER_SAMPLE;
+        Link link = Link.queued(stage, thread, queueFrames, frameBytes, overflow);
+        links.add(link);
+        return link;
     }
     
     public void process(byte[] audioData, int offset, int length) {
-        if (!isRunning.get()) {
+        process(ByteBuffer.wrap(audioData, offset, length), -1);
+    }
+
+    public void process(ByteBuffer frame) {
+        process(frame, -1);
+    }
+
+    /**
+     * Runs one frame of 16-bit PCM, between the buffer's position and limit, through the graph.
+     * Inline stages read it in place, so the frame can be a view of {@link AudioMemory} rather
+     * than a copy; it is only copied where it crosses to another thread. Analysis thread only.
+     * @param samplePosition AudioMemory position of the frame's first sample, or -1 if it does
+     *                       not come from the pipeline's memory.
+     */
+    public void process(ByteBuffer frame, long samplePosition) {
+        if (!isRunning.get() || entry == null) {
             return;
         }
         
         try {
-            boolean isSpeech = vad != null && vad.process(audioData, offset, length);
-            
-            if (segmentationController != null) {
-                segmentationController.process(audioData, offset, length, isSpeech);
-            }
-            
-            if (audioClassifier != null && length > 0) {
-                // Reuse buffers
-                short[] shortArray = getShortArray(length / 2);
-                ByteBuffer buffer = getByteBuffer(length);
-                
-                buffer.clear();
-                buffer.put(audioData, offset, length);
-                buffer.rewind();
-                buffer.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(shortArray);
-                
-                List<TfLiteClassifier.Recognition> results = audioClassifier.recognize(shortArray);
-                
-                if (recordingStoreManager != null) {
-                    for (TfLiteClassifier.Recognition result : results) {
-                        if (result.getConfidence() > 0.3) {
-                            recordingStoreManager.onTag(
-                                new AudioTag(result.getTitle(), 
-                                           result.getConfidence(), 
-                                           System.currentTimeMillis())
-                            );
-                        }
-                    }
-                }
-            }
+            input.clear();
+            input.pcm = frame.order(ByteOrder.LITTLE_ENDIAN);
+            input.timestamp = System.currentTimeMillis();
+            input.position = samplePosition;
+            entry.send(input);
         } catch (Exception e) {
             Log.e(TAG, "Error processing audio", e);
+        } finally {
+            input.pcm = null;
         }
     }
-    
-    private short[] getShortArray(int size) {
-        short[] array = shortArrayBuffer.get();
-        if (array == null || array.length < size) {
-            array = new short[size];
-            shortArrayBuffer.set(array);
-        }
-        return array;
-    }
-    
-    private ByteBuffer getByteBuffer(int size) {
-        ByteBuffer buffer = byteBufferCache.get();
-        if (buffer == null || buffer.capacity() < size) {
-            buffer = ByteBuffer.allocate(size);
-            byteBufferCache.set(buffer);
-        }
-        return buffer;
+
+    /**
+     * @return frames the classifier skipped because inference could not keep up.
+     */
+    public long getDroppedClassifierFrames() {
+        final Link link = classifierLink;
+        return link != null ? link.getDropped() : 0;
     }
     
     public synchronized void stop() {
         isRunning.set(false);
+        if (classifierLink != null) {
+            Log.d(TAG, "Classifier dropped " + classifierLink.getDropped() + " frames");
+        }
+        if (classifierScheduler != null) {
+            Log.d(TAG, "Classifier schedule: " + classifierScheduler.summary());
+        }
+        if (audioClassifier != null) {
+            Log.d(TAG, "Classifier latency (" + audioClassifier.getDelegate() + "): "
+                    + audioClassifier.getInferenceStats().summary());
+        }
+        unwatchPowerState();
+
+        // Stop feeding the classifier, let every stage thread finish what is queued, then
+        // release producers still waiting on a full queue
+        if (segmenterStage != null) {
+            segmenterStage.setClassifier(null);
+        }
+        // The segmenter goes first: once it is idle, the segment still open is ended while
+        // storage still takes its range and end, so it is kept rather than dropped
+        final StageThread segmenterThread = stageThreads.remove(segmenterStage);
+        if (segmenterThread != null) {
+            segmenterThread.quit();
+        }
+        if (segmentationController != null) {
+            try {
+                segmentationController.close();
+            } catch (Exception e) {
+                Log.e(TAG, "Error closing segmentation controller", e);
+            }
+        }
+        for (StageThread thread : stageThreads.values()) {
+            thread.quit();
+        }
+        for (Link link : links) {
+            link.close();
+        }
+        stageThreads.clear();
+        links.clear();
+        classifierLink = null;
+        classifierScheduler = null;
+        storageStage = null;
+        entry = null;
         
         // Clean up in reverse order of initialization
         if (audioClassifier != null) {
@@ -190,14 +389,11 @@ public class AudioProcessingPipeline {
         }
         
         if (segmentationController != null) {
-            try {
-                segmentationController.setListener(null); // Remove listener
-                segmentationController.close();
-            } catch (Exception e) {
-                Log.e(TAG, "Error closing segmentation controller", e);
-            }
+            // Closed above, while storage was still running
+            segmentationController.setListener(null);
             segmentationController = null;
         }
+        segmenterStage = null;
         
         if (recordingStoreManager != null) {
             try {
@@ -216,10 +412,6 @@ public class AudioProcessingPipeline {
             }
             vad = null;
         }
-        
-        // Clear thread local buffers
-        shortArrayBuffer.remove();
-        byteBufferCache.remove();
     }
     
     public RecordingStoreManager getRecordingStoreManager() {
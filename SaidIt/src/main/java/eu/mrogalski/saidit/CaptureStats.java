@@ -0,0 +1,67 @@
+package eu.mrogalski.saidit;
+
+import java.util.Locale;
+
+/**
+ * Cost of capturing audio, so the notification-driven and blocking capture modes can be
+ * compared: how often the audio thread wakes up and how much CPU it burns per second of audio.
+ *
+ * Updated by the audio thread only; other threads may read a slightly stale summary.
+ */
+final class CaptureStats {
+    private static final long REPORT_INTERVAL_MILLIS = 60_000;
+
+    private final String mode;
+    private final int sampleRate;
+    private final long startUptimeMillis;
+    private volatile long wakeups;
+    private volatile long capturedSamples;
+    private volatile long cpuNanos;
+    private long lastReportUptimeMillis;
+
+    CaptureStats(String mode, int sampleRate, long startUptimeMillis) {
+        this.mode = mode;
+        this.sampleRate = sampleRate;
+        this.startUptimeMillis = startUptimeMillis;
+        this.lastReportUptimeMillis = startUptimeMillis;
+    }
+
+    /**
+     * Records one wakeup of the audio thread.
+     * @param cpuNanosSpent Thread CPU time the wakeup took, not counting time blocked in read.
+     * @param samples Samples it captured, possibly zero.
+     */
+    void onWakeup(long cpuNanosSpent, int samples) {
+        wakeups++;
+        cpuNanos += cpuNanosSpent;
+        capturedSamples += Math.max(0, samples);
+    }
+
+    /**
+     * @return true once per report interval, so the caller can log a summary.
+     */
+    boolean isReportDue(long nowUptimeMillis) {
+        if (nowUptimeMillis - lastReportUptimeMillis < REPORT_INTERVAL_MILLIS) return false;
+        lastReportUptimeMillis = nowUptimeMillis;
+        return true;
+    }
+
+    float getWakeupsPerSecond(long nowUptimeMillis) {
+        long elapsed = nowUptimeMillis - startUptimeMillis;
+        return elapsed > 0 ? wakeups * 1000f / elapsed : 0f;
+    }
+
+    /**
+     * @return CPU milliseconds spent per second of captured audio.
+     */
+    float getCpuMillisPerCapturedSecond() {
+        long samples = capturedSamples;
+        return samples > 0 ? cpuNanos / 1e6f * sampleRate / samples : 0f;
+    }
+
+    String summary(long nowUptimeMillis) {
+        return String.format(Locale.US, "%s: %d wakeups (%.1f/s), %.1f s captured, %.2f ms CPU per audio second",
+                mode, wakeups, getWakeupsPerSecond(nowUptimeMillis),
+                capturedSamples / (float) sampleRate, getCpuMillisPerCapturedSecond());
+    }
+}
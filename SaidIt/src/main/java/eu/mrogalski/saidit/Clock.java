@@ -2,4 +2,6 @@ package eu.mrogalski.saidit;
 
 public interface Clock {
     long uptimeMillis();
+
+    long currentTimeMillis();
 }
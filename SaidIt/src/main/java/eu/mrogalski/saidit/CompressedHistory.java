@@ -0,0 +1,218 @@
+package eu.mrogalski.saidit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Second, compressed tier behind {@link AudioMemory}.
+ *
+ * The raw ring keeps the last few minutes for instant access. This tier follows it with its own
+ * cursor, packs every {@link #BLOCK_SAMPLES} samples into a {@link RiceCodec} block and appends it
+ * to a byte ring with a block index, evicting the oldest blocks when either runs out. Reads
+ * decode on demand, so the same memory budget holds several times more history.
+ *
+ * {@link #encodePending()} is meant to be driven from a background thread; the index and the
+ * arena are synchronized on this object, which the capture thread never touches. Readers hold it
+ * only to copy a block out, and decode and deliver it outside, so a long export does not hold up
+ * the archiver.
+ */
+public class CompressedHistory {
+    static final int BLOCK_SAMPLES = 4096;
+    // Smallest realistic block: one bit per residual plus the header
+    private static final int MIN_BLOCK_BYTES = 5 + BLOCK_SAMPLES / 8;
+    private static final int INITIAL_INDEX_BLOCKS = 256;
+
+    // Readers' own buffers, so decoding needs no lock
+    private static final ThreadLocal<ReadBuffers> readBuffers = ThreadLocal.withInitial(ReadBuffers::new);
+
+    private static final class ReadBuffers {
+        final byte[] encoded = new byte[RiceCodec.maxEncodedSize(BLOCK_SAMPLES)];
+        final short[] pcm = new short[BLOCK_SAMPLES];
+        final byte[] pcmBytes = new byte[BLOCK_SAMPLES * AudioMemory.BYTES_PER_SAMPLE];
+    }
+
+    private final AudioMemory.Cursor cursor;
+    private final ByteBuffer arena;
+    private final int arenaCapacity;
+
+    // Block index ring, ordered oldest to newest, grown as blocks arrive up to maxBlocks
+    private final int maxBlocks;
+    private long[] blockStart;
+    private long[] blockOffset;
+    private int[] blockLength;
+    private int indexHead;
+    private int indexCount;
+    // Total compressed bytes ever appended; arena position is this modulo capacity
+    private long arenaWritten;
+
+    private final byte[] pcmBytes = new byte[BLOCK_SAMPLES * AudioMemory.BYTES_PER_SAMPLE];
+    private final short[] pcm = new short[BLOCK_SAMPLES];
+    private final byte[] encoded = new byte[RiceCodec.maxEncodedSize(BLOCK_SAMPLES)];
+
+    public CompressedHistory(AudioMemory memory, int capacityBytes) {
+        if (capacityBytes < RiceCodec.maxEncodedSize(BLOCK_SAMPLES)) {
+            throw new IllegalArgumentException("Capacity too small for a single block: " + capacityBytes);
+        }
+        this.cursor = memory.newCursor("archive");
+        this.cursor.seekToOldest();
+        this.arena = ByteBuffer.allocateDirect(capacityBytes);
+        this.arenaCapacity = capacityBytes;
+        this.maxBlocks = capacityBytes / MIN_BLOCK_BYTES + 1;
+        int blocks = Math.min(maxBlocks, INITIAL_INDEX_BLOCKS);
+        this.blockStart = new long[blocks];
+        this.blockOffset = new long[blocks];
+        this.blockLength = new int[blocks];
+    }
+
+    /**
+     * Compresses every complete block the raw ring has accumulated since the last call.
+     * @return number of blocks added.
+     */
+    public synchronized int encodePending() {
+        int added = 0;
+        while (cursor.available() >= BLOCK_SAMPLES) {
+            int read = cursor.read(pcmBytes, 0, BLOCK_SAMPLES);
+            if (read < BLOCK_SAMPLES) {
+                cursor.seek(cursor.getPosition() - read);
+                break;
+            }
+            // If the raw ring lapped us the cursor skipped ahead; the gap is simply missing here
+            cursor.checkAndClearOverrun();
+            long start = cursor.getPosition() - BLOCK_SAMPLES;
+            for (int i = 0; i < BLOCK_SAMPLES; i++) {
+                pcm[i] = (short) ((pcmBytes[2 * i] & 0xFF) | (pcmBytes[2 * i + 1] << 8));
+            }
+            append(start, RiceCodec.encode(pcm, BLOCK_SAMPLES, encoded));
+            added++;
+        }
+        return added;
+    }
+
+    private void append(long startSample, int length) {
+        if (indexCount == blockStart.length && blockStart.length < maxBlocks) {
+            growIndex();
+        }
+        // Evict until the new block fits both the index and the arena
+        while (indexCount == blockStart.length
+                || (indexCount > 0 && arenaWritten + length - blockOffset[indexHead] > arenaCapacity)) {
+            indexHead = (indexHead + 1) % blockStart.length;
+            indexCount--;
+        }
+        int writePos = (int) (arenaWritten % arenaCapacity);
+        int first = Math.min(length, arenaCapacity - writePos);
+        arena.position(writePos);
+        arena.put(encoded, 0, first);
+        if (length > first) {
+            arena.position(0);
+            arena.put(encoded, first, length - first);
+        }
+        int slot = (indexHead + indexCount) % blockStart.length;
+        blockStart[slot] = startSample;
+        blockOffset[slot] = arenaWritten;
+        blockLength[slot] = length;
+        indexCount++;
+        arenaWritten += length;
+    }
+
+    /**
+     * Doubles the index, up to maxBlocks, unrolling the ring so the oldest block comes first.
+     */
+    private void growIndex() {
+        int blocks = (int) Math.min(maxBlocks, 2L * blockStart.length);
+        long[] start = new long[blocks];
+        long[] offset = new long[blocks];
+        int[] length = new int[blocks];
+        for (int i = 0; i < indexCount; i++) {
+            int slot = (indexHead + i) % blockStart.length;
+            start[i] = blockStart[slot];
+            offset[i] = blockOffset[slot];
+            length[i] = blockLength[slot];
+        }
+        blockStart = start;
+        blockOffset = offset;
+        blockLength = length;
+        indexHead = 0;
+    }
+
+    /**
+     * @return position of the oldest sample this tier can still decode.
+     */
+    public synchronized long getOldestSamplePosition() {
+        return indexCount > 0 ? blockStart[indexHead] : cursor.getPosition();
+    }
+
+    /**
+     * @return position just past the newest sample this tier holds.
+     */
+    public synchronized long getEndSamplePosition() {
+        if (indexCount == 0) return cursor.getPosition();
+        int newest = (indexHead + indexCount - 1) % blockStart.length;
+        return blockStart[newest] + BLOCK_SAMPLES;
+    }
+
+    public int getCapacity() {
+        return arenaCapacity;
+    }
+
+    public synchronized long getCompressedBytes() {
+        return indexCount > 0 ? arenaWritten - blockOffset[indexHead] : 0;
+    }
+
+    /**
+     * Decodes [fromSample, toSample) to the consumer, skipping any gaps between blocks, including
+     * blocks evicted while it runs. Only copying each block out holds the lock.
+     * @return position just past the last sample delivered.
+     */
+    public long read(long fromSample, long toSample, AudioMemory.Consumer consumer) throws IOException {
+        ReadBuffers buffers = readBuffers.get();
+        long position = fromSample;
+        while (position < toSample) {
+            long start;
+            int length;
+            synchronized (this) {
+                int block = findBlock(position);
+                if (block >= indexCount) break;
+                int slot = (indexHead + block) % blockStart.length;
+                start = blockStart[slot];
+                if (start >= toSample) break;
+                length = blockLength[slot];
+                int readPos = (int) (blockOffset[slot] % arenaCapacity);
+                int first = Math.min(length, arenaCapacity - readPos);
+                arena.position(readPos);
+                arena.get(buffers.encoded, 0, first);
+                if (length > first) {
+                    arena.position(0);
+                    arena.get(buffers.encoded, first, length - first);
+                }
+            }
+            RiceCodec.decode(buffers.encoded, 0, length, buffers.pcm, BLOCK_SAMPLES);
+
+            int from = (int) Math.max(0, position - start);
+            int to = (int) Math.min(BLOCK_SAMPLES, toSample - start);
+            for (int i = from; i < to; i++) {
+                buffers.pcmBytes[2 * i] = (byte) buffers.pcm[i];
+                buffers.pcmBytes[2 * i + 1] = (byte) (buffers.pcm[i] >> 8);
+            }
+            consumer.consume(buffers.pcmBytes, from * 2, (to - from) * 2);
+            position = start + to;
+        }
+        return position;
+    }
+
+    /**
+     * @return index (relative to the oldest block) of the first block ending after sample.
+     */
+    private int findBlock(long sample) {
+        int lo = 0;
+        int hi = indexCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (blockStart[(indexHead + mid) % blockStart.length] + BLOCK_SAMPLES <= sample) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -30,10 +30,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import eu.mrogalski.saidit.export.AacExporter;
 import eu.mrogalski.saidit.export.AudioExporter;
 import eu.mrogalski.saidit.export.Lame;
 import eu.mrogalski.saidit.export.Mp3Exporter;
 import eu.mrogalski.saidit.export.OpusExporter;
+import eu.mrogalski.saidit.export.PcmSource;
 import eu.mrogalski.saidit.export.WavExporter;
 import eu.mrogalski.saidit.storage.RecordingStoreManager;
 
@@ -71,8 +73,7 @@ public class RecordingExporter {
             return;
         }
 
-        File exportFile = null;
-        File pcmFile = null;
+        PcmSource source = null;
         File encodedFile = null;
         try {
             String selectedFormat = getSafeFormat(format);
@@ -86,49 +87,43 @@ public class RecordingExporter {
             DebugLogStore.log(mContext, TAG, "export_start memorySeconds=" + memorySeconds + " format=" + selectedFormat + " fileName=" + fileBaseName);
             Log.i(TAG, "export: audioMemory=" + (audioMemory != null ? "present" : "null") + " recordingStoreManager=" + (recordingStoreManager != null ? "present" : "null"));
 
-            exportFile = recordingStoreManager.export(memorySeconds, fileBaseName);
-            Log.d(TAG, "export: segment export result=" + (exportFile != null ? exportFile.getAbsolutePath() : "null"));
+            source = recordingStoreManager.openExport(memorySeconds);
+            Log.d(TAG, "export: segment source=" + (source != null ? "present" : "null"));
 
-            if (exportFile == null && audioMemory != null) {
+            if (source == null && audioMemory != null) {
                 DebugLogStore.log(mContext, TAG, "export_fallback_to_memory memorySeconds=" + memorySeconds);
                 Log.i(TAG, "export: falling back to audioMemory");
-                exportFile = recordingStoreManager.exportFromBuffer(audioMemory, memorySeconds, fileBaseName);
-                Log.d(TAG, "export: memory export result=" + (exportFile != null ? exportFile.getAbsolutePath() : "null"));
-            } else if (exportFile == null && audioMemory == null) {
+                source = PcmSource.lastSeconds(audioMemory, mSampleRate, memorySeconds);
+                Log.d(TAG, "export: memory source=" + (source != null ? "present" : "null"));
+            } else if (source == null && audioMemory == null) {
                 Log.w(TAG, "export: audioMemory is null, cannot fallback");
             }
 
-            if (exportFile == null) {
+            if (source == null) {
                 throw new IOException("No audio available for export.");
             }
 
-            Log.i(TAG, "export: exportFile ready, starting conversion");
+            // The source is read in place and encoded straight into the output file
+            Log.i(TAG, "export: source ready, encoding to " + selectedFormat);
             String displayNameBase = fileBaseName;
-            if ("wav".equals(selectedFormat) && bitDepth == 16) {
-                Log.i(TAG, "export: saving as WAV directly");
-                saveFileToMediaStore(exportFile, displayNameBase + ".wav", "audio/wav", wavFileReceiver);
-            } else {
-                Log.i(TAG, "export: extracting PCM and encoding to " + selectedFormat);
-                pcmFile = extractPcmFromWav(exportFile, fileBaseName + "_pcm");
-                encodedFile = buildEncodedFile(fileBaseName, selectedFormat);
-                AudioExporter exporter = null;
-                try {
-                    exporter = createExporter(selectedFormat);
-                    Log.i(TAG, "export: starting export with " + exporter.getClass().getSimpleName());
-                    exporter.export(pcmFile, encodedFile, mSampleRate, 1, "wav".equals(selectedFormat) ? bitDepth : bitRate);
-                    Log.i(TAG, "export: encoding complete, saving to MediaStore");
-                } catch (Exception e) {
-                    Log.e(TAG, "export: error during encoding with " + (exporter != null ? exporter.getClass().getSimpleName() : "null"), e);
-                    throw e;
-                }
-
-                saveFileToMediaStore(
-                        encodedFile,
-                        displayNameBase + getExtension(selectedFormat),
-                        getMimeType(selectedFormat),
-                        wavFileReceiver
-                );
+            encodedFile = buildEncodedFile(fileBaseName, selectedFormat);
+            AudioExporter exporter = null;
+            try {
+                exporter = createExporter(selectedFormat);
+                Log.i(TAG, "export: starting export with " + exporter.getClass().getSimpleName());
+                exporter.export(source, encodedFile, mSampleRate, 1, "wav".equals(selectedFormat) ? bitDepth : bitRate);
+                Log.i(TAG, "export: encoding complete, saving to MediaStore");
+            } catch (Exception e) {
+                Log.e(TAG, "export: error during encoding with " + (exporter != null ? exporter.getClass().getSimpleName() : "null"), e);
+                throw e;
             }
+
+            saveFileToMediaStore(
+                    encodedFile,
+                    displayNameBase + getExtension(selectedFormat),
+                    getMimeType(selectedFormat),
+                    wavFileReceiver
+            );
             
             Log.i(TAG, "export: SUCCESS");
         } catch (UnsatisfiedLinkError e) {
@@ -147,11 +142,12 @@ public class RecordingExporter {
             }
         } finally {
             Log.d(TAG, "export: cleanup starting");
-            if (exportFile != null && exportFile.exists() && !exportFile.delete()) {
-                Log.w(TAG, "export: Could not delete export file: " + exportFile.getAbsolutePath());
-            }
-            if (pcmFile != null && pcmFile.exists() && !pcmFile.delete()) {
-                Log.w(TAG, "export: Could not delete temp pcm file: " + pcmFile.getAbsolutePath());
+            if (source != null) {
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "export: Could not close source", e);
+                }
             }
             if (encodedFile != null && encodedFile.exists() && !encodedFile.delete()) {
                 Log.w(TAG, "export: Could not delete encoded file: " + encodedFile.getAbsolutePath());
@@ -161,7 +157,7 @@ public class RecordingExporter {
     }
 
     private String getSafeFormat(String format) {
-        if ("mp3".equals(format) || "opus".equals(format) || "wav".equals(format)) {
+        if ("mp3".equals(format) || "opus".equals(format) || "aac".equals(format) || "wav".equals(format)) {
             return format;
         }
         String defaultFormat = mPreferences.getString("export_format", "wav");
@@ -179,6 +175,8 @@ public class RecordingExporter {
                 return new Mp3Exporter();
             case "opus":
                 return new OpusExporter();
+            case "aac":
+                return new AacExporter();
             case "wav":
                 return new WavExporter();
             default:
@@ -186,23 +184,6 @@ public class RecordingExporter {
         }
     }
 
-    private File extractPcmFromWav(File wavFile, String baseName) throws IOException {
-        File pcmFile = new File(mContext.getCacheDir(), baseName + ".pcm");
-        try (FileInputStream inputStream = new FileInputStream(wavFile);
-             FileOutputStream outputStream = new FileOutputStream(pcmFile)) {
-            long skipped = inputStream.skip(44);
-            if (skipped < 44) {
-                throw new IOException("Invalid WAV header in exported source file.");
-            }
-            byte[] buffer = new byte[4096];
-            int read;
-            while ((read = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, read);
-            }
-        }
-        return pcmFile;
-    }
-
     private File buildEncodedFile(String baseName, String format) {
         return new File(mContext.getCacheDir(), baseName + getExtension(format));
     }
@@ -213,6 +194,8 @@ public class RecordingExporter {
                 return ".mp3";
             case "opus":
                 return ".opus";
+            case "aac":
+                return ".m4a";
             case "wav":
             default:
                 return ".wav";
@@ -225,6 +208,8 @@ public class RecordingExporter {
                 return "audio/mpeg";
             case "opus":
                 return "audio/ogg";
+            case "aac":
+                return "audio/mp4";
             case "wav":
             default:
                 return "audio/wav";
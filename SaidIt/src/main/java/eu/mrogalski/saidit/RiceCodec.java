@@ -0,0 +1,157 @@
+package eu.mrogalski.saidit;
+
+/**
+ * Lossless codec for blocks of 16-bit mono PCM: a fixed second-order predictor (as in FLAC's
+ * "fixed" subframes) followed by Rice coding of the residual.
+ *
+ * Block layout:
+ * <pre>
+ *  byte     Rice parameter k, or VERBATIM if the block did not compress
+ *  2 x s16  warm-up samples, little-endian
+ *  bits     Rice-coded residuals of the remaining samples, MSB first
+ * </pre>
+ * Quotients of ESCAPE_QUOTIENT or more are written as that many one bits followed by the raw
+ * zig-zagged residual, which bounds the size of a block regardless of k.
+ */
+final class RiceCodec {
+    static final int VERBATIM = 0xFF;
+    private static final int MAX_K = 16;
+    private static final int ESCAPE_QUOTIENT = 24;
+    private static final int ESCAPE_BITS = 21;
+
+    private RiceCodec() {
+    }
+
+    /**
+     * @return the size dst must have to encode count samples.
+     */
+    static int maxEncodedSize(int count) {
+        return 1 + count * 2 + (count * (ESCAPE_QUOTIENT + ESCAPE_BITS) + 7) / 8;
+    }
+
+    /**
+     * Encodes count samples into dst.
+     * @return the number of bytes written.
+     */
+    static int encode(short[] pcm, int count, byte[] dst) {
+        if (count < 3) {
+            return writeVerbatim(pcm, count, dst);
+        }
+        long sum = 0;
+        for (int i = 2; i < count; i++) {
+            sum += zigzag(residual(pcm, i));
+        }
+        int n = count - 2;
+        int k = 0;
+        while (k < MAX_K && ((long) n << (k + 1)) <= sum) k++;
+
+        dst[0] = (byte) k;
+        dst[1] = (byte) pcm[0];
+        dst[2] = (byte) (pcm[0] >> 8);
+        dst[3] = (byte) pcm[1];
+        dst[4] = (byte) (pcm[1] >> 8);
+
+        int pos = 5;
+        long acc = 0;
+        int bits = 0;
+        for (int i = 2; i < count; i++) {
+            int u = zigzag(residual(pcm, i));
+            int q = u >>> k;
+            if (q < ESCAPE_QUOTIENT) {
+                // q ones, a terminating zero, then the k low bits
+                acc = (acc << (q + 1)) | (((1L << q) - 1) << 1);
+                bits += q + 1;
+                acc = (acc << k) | (u & ((1L << k) - 1));
+                bits += k;
+            } else {
+                acc = (acc << ESCAPE_QUOTIENT) | ((1L << ESCAPE_QUOTIENT) - 1);
+                bits += ESCAPE_QUOTIENT;
+                while (bits >= 8) {
+                    bits -= 8;
+                    dst[pos++] = (byte) (acc >>> bits);
+                }
+                acc = (acc << ESCAPE_BITS) | u;
+                bits += ESCAPE_BITS;
+            }
+            while (bits >= 8) {
+                bits -= 8;
+                dst[pos++] = (byte) (acc >>> bits);
+            }
+        }
+        if (bits > 0) {
+            dst[pos++] = (byte) (acc << (8 - bits));
+        }
+        if (pos >= 1 + count * 2) {
+            return writeVerbatim(pcm, count, dst);
+        }
+        return pos;
+    }
+
+    /**
+     * Decodes count samples from src[offset, offset + length) into pcm.
+     */
+    static void decode(byte[] src, int offset, int length, short[] pcm, int count) {
+        int k = src[offset] & 0xFF;
+        if (k == VERBATIM || count < 3) {
+            for (int i = 0; i < count; i++) {
+                pcm[i] = (short) ((src[offset + 1 + 2 * i] & 0xFF) | (src[offset + 2 + 2 * i] << 8));
+            }
+            return;
+        }
+        pcm[0] = (short) ((src[offset + 1] & 0xFF) | (src[offset + 2] << 8));
+        pcm[1] = (short) ((src[offset + 3] & 0xFF) | (src[offset + 4] << 8));
+
+        int pos = offset + 5;
+        int end = offset + length;
+        long acc = 0;
+        int bits = 0;
+        for (int i = 2; i < count; i++) {
+            // Unary quotient
+            int q = 0;
+            while (true) {
+                if (bits == 0) {
+                    acc = pos < end ? src[pos++] & 0xFF : 0;
+                    bits = 8;
+                }
+                bits--;
+                if (((acc >>> bits) & 1) == 0) break;
+                if (++q == ESCAPE_QUOTIENT) break;
+            }
+            int u;
+            if (q == ESCAPE_QUOTIENT) {
+                while (bits < ESCAPE_BITS) {
+                    acc = (acc << 8) | (pos < end ? src[pos++] & 0xFF : 0);
+                    bits += 8;
+                }
+                bits -= ESCAPE_BITS;
+                u = (int) ((acc >>> bits) & ((1L << ESCAPE_BITS) - 1));
+            } else {
+                while (bits < k) {
+                    acc = (acc << 8) | (pos < end ? src[pos++] & 0xFF : 0);
+                    bits += 8;
+                }
+                bits -= k;
+                u = (q << k) | (int) ((acc >>> bits) & ((1L << k) - 1));
+            }
+            int e = (u >>> 1) ^ -(u & 1);
+            pcm[i] = (short) (e + 2 * pcm[i - 1] - pcm[i - 2]);
+        }
+    }
+
+    private static int writeVerbatim(short[] pcm, int count, byte[] dst) {
+        dst[0] = (byte) VERBATIM;
+        for (int i = 0; i < count; i++) {
+            dst[1 + 2 * i] = (byte) pcm[i];
+            dst[2 + 2 * i] = (byte) (pcm[i] >> 8);
+        }
+        return 1 + count * 2;
+    }
+
+    private static int residual(short[] pcm, int i) {
+        return pcm[i] - 2 * pcm[i - 1] + pcm[i - 2];
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+}
@@ -6,8 +6,15 @@ public class SaidIt {
     static final String PACKAGE_NAME = "com.spidey000.echofork";
     static final String AUDIO_MEMORY_ENABLED_KEY = "audio_memory_enabled";
     static final String AUDIO_MEMORY_SIZE_KEY = "audio_memory_size";
+    static final String AUDIO_MEMORY_PERSISTENT_KEY = "audio_memory_persistent";
+    static final String AUDIO_MEMORY_FILE_NAME = "audio_memory.ring";
+    static final String AUDIO_MEMORY_COMPRESSED_KEY = "audio_memory_compressed";
     static final String SAMPLE_RATE_KEY = "sample_rate";
+    static final String CAPTURE_BLOCKING_KEY = "capture_blocking";
+    // Notification-driven capture stays the default until the two modes have been compared
+    static final boolean CAPTURE_BLOCKING_DEFAULT = false;
     static final long[] AUDIO_MEMORY_PRESETS = new long[]{32 * MB, 64 * MB, 128 * MB, 256 * MB};
+    static final String AUTO_SAVE_ENABLED_KEY = "auto_save_enabled";
     static final String AUTO_SAVE_MAX_FILES_KEY = "auto_save_max_files";
     static final int AUTO_SAVE_MAX_FILES_DEFAULT = 20;
     static final String AUTO_SAVE_TRACKED_ENTRIES_KEY = "auto_save_tracked_entries";
@@ -20,6 +20,7 @@ import android.media.AudioTrack;
 import android.media.MediaRecorder;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
@@ -39,16 +40,24 @@ import eu.mrogalski.saidit.storage.SimpleRecordingStoreManager;
 import eu.mrogalski.saidit.export.AacExporter;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import static eu.mrogalski.saidit.SaidIt.AUDIO_MEMORY_COMPRESSED_KEY;
 import static eu.mrogalski.saidit.SaidIt.AUDIO_MEMORY_ENABLED_KEY;
+import static eu.mrogalski.saidit.SaidIt.AUDIO_MEMORY_FILE_NAME;
+import static eu.mrogalski.saidit.SaidIt.AUDIO_MEMORY_PERSISTENT_KEY;
 import static eu.mrogalski.saidit.SaidIt.AUDIO_MEMORY_SIZE_KEY;
 import static eu.mrogalski.saidit.SaidIt.AUDIO_MEMORY_PRESETS;
+import static eu.mrogalski.saidit.SaidIt.CAPTURE_BLOCKING_DEFAULT;
+import static eu.mrogalski.saidit.SaidIt.CAPTURE_BLOCKING_KEY;
+import static eu.mrogalski.saidit.SaidIt.AUTO_SAVE_ENABLED_KEY;
 import static eu.mrogalski.saidit.SaidIt.AUTO_SAVE_MAX_FILES_DEFAULT;
 import static eu.mrogalski.saidit.SaidIt.AUTO_SAVE_MAX_FILES_KEY;
 import static eu.mrogalski.saidit.SaidIt.AUTO_SAVE_TRACKED_ENTRIES_KEY;
@@ -61,6 +70,12 @@ public class SaidItService extends Service {
     private static final String YOUR_NOTIFICATION_CHANNEL_ID = "SaidItServiceChannel";
     private static final String ACTION_AUTO_SAVE = "eu.mrogalski.saidit.ACTION_AUTO_SAVE";
     private static final float AUTO_SAVE_TRIGGER_RATIO = 0.90f;
+    // With compression on, the raw ring gets this fraction of the budget and the archive the rest
+    private static final int COMPRESSED_RAW_FRACTION = 8;
+    // Blocking capture reads this much per wakeup, and hands the audio thread back to its
+    // Handler this often so control messages queued there still run
+    private static final int CAPTURE_PERIOD_MS = 20;
+    private static final int CAPTURE_SLICE_MS = 100;
 
     public static final String ACTION_START_LISTENING = "eu.mrogalski.saidit.ACTION_START_LISTENING";
     public static final String ACTION_STOP_LISTENING = "eu.mrogalski.saidit.ACTION_STOP_LISTENING";
@@ -100,23 +115,58 @@ public class SaidItService extends Service {
     File mediaFile;
     AudioRecord audioRecord; // used only in the audio thread
     AacMp4Writer aacWriter; // used only in the audio thread
-    final AudioMemory audioMemory = new AudioMemory(new SystemClockWrapper()); // used only in the audio thread
+    final AudioMemory audioMemory = new AudioMemory(new SystemClockWrapper()); // filled only by the audio thread, readable anywhere
 
     volatile HandlerThread audioThread;
     volatile Handler audioHandler; // used to post messages to audio thread
     volatile HandlerThread analysisThread;
     volatile Handler analysisHandler; // used to post messages to analysis thread
-    AudioMemory.Consumer filler;
+    volatile HandlerThread exportThread;
+    volatile Handler exportHandler; // exports and finishes recordings, which may take a while
+    AudioMemory.DirectFiller filler;
+    AudioMemory.DirectFiller blockingFiller;
     Runnable audioReader;
+    Runnable captureLoop;
     AudioRecord.OnRecordPositionUpdateListener positionListener;
+    // Set while the audio thread captures with blocking reads instead of position notifications
+    private volatile boolean captureRunning = false;
+    private CaptureStats captureStats; // used only in the audio thread
 
     private AudioProcessingPipeline audioProcessingPipeline;
     private RecordingStoreManager recordingStoreManager;
     private RecordingExporter recordingExporter;
-    private int analyzedBytes;
+    private AudioMemory.Cursor analysisCursor;
+    // Frames are analysed in place in the ring; one split across two ring chunks is joined here
+    private ByteBuffer analysisJoin;
+    // Ring position of the first sample of the frame being read
+    private long analysisFrameStart;
+    private final AudioMemory.ViewConsumer analysisConsumer = view -> {
+        if (analysisJoin.position() == 0 && view.remaining() == analysisJoin.capacity()) {
+            audioProcessingPipeline.process(view, analysisFrameStart);
+            return;
+        }
+        analysisJoin.put(view);
+        if (!analysisJoin.hasRemaining()) {
+            analysisJoin.flip();
+            audioProcessingPipeline.process(analysisJoin, analysisFrameStart);
+            analysisJoin.clear();
+        }
+    };
     private Runnable analysisTick;
+    // Set by the capture thread when it posts analysisTick, cleared by the tick; coalesces wakeups
+    private final AtomicBoolean analysisScheduled = new AtomicBoolean(false);
+    // Sample position at which the analysis cursor will have a whole frame to process
+    private volatile long analysisWatermark = 0;
     private LocalBroadcastManager localBroadcastManager;
     private boolean autoSaveTriggeredInCycle = false;
+    // Mirrors the auto-save preference so the analysis thread does not read preferences per batch
+    private volatile boolean autoSaveEnabled = false;
+    // Held strongly: SharedPreferences only keeps a weak reference to listeners
+    private final SharedPreferences.OnSharedPreferenceChangeListener preferenceListener = (preferences, key) -> {
+        if (AUTO_SAVE_ENABLED_KEY.equals(key)) {
+            autoSaveEnabled = preferences.getBoolean(AUTO_SAVE_ENABLED_KEY, false);
+        }
+    };
 
     volatile ServiceState state = ServiceState.READY;
 
@@ -130,6 +180,8 @@ public class SaidItService extends Service {
         SAMPLE_RATE = preferences.getInt(SAMPLE_RATE_KEY, AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC));
         Log.d(TAG, "Sample rate: " + SAMPLE_RATE);
         FILL_RATE = 2 * SAMPLE_RATE;
+        autoSaveEnabled = preferences.getBoolean(AUTO_SAVE_ENABLED_KEY, false);
+        preferences.registerOnSharedPreferenceChangeListener(preferenceListener);
 
         if (audioThread == null) {
             audioThread = new HandlerThread("audioThread", Process.THREAD_PRIORITY_AUDIO);
@@ -142,69 +194,88 @@ public class SaidItService extends Service {
             analysisThread.start();
             analysisHandler = new Handler(analysisThread.getLooper());
         }
+
+        if (exportThread == null) {
+            exportThread = new HandlerThread("exportThread", Process.THREAD_PRIORITY_BACKGROUND);
+            exportThread.start();
+            exportHandler = new Handler(exportThread.getLooper());
+        }
         localBroadcastManager = LocalBroadcastManager.getInstance(this);
 
-        filler = (array, offset, count) -> {
-            if (audioRecord == null) return 0;
-            final int read = audioRecord.read(array, offset, count, AudioRecord.READ_NON_BLOCKING);
-            if (read < 0) {
-                Log.e(TAG, "AUDIO RECORD ERROR: " + read);
-                return 0;
-            }
-            if (aacWriter != null && read > 0) {
-                aacWriter.write(array, offset, read);
-            }
-            return read;
-        };
+        filler = region -> readAudioRecord(region, AudioRecord.READ_NON_BLOCKING);
+        blockingFiller = region -> readAudioRecord(region, AudioRecord.READ_BLOCKING);
 
         audioReader = () -> {
+            final long cpuBefore = Debug.threadCpuTimeNanos();
+            int captured = 0;
             try {
-                audioMemory.fill(filler);
+                captured = audioMemory.fill(filler);
             } catch (IOException e) {
-                final String errorMessage = getString(R.string.error_during_recording_into) + (mediaFile != null ? mediaFile.getName() : "");
-                showToast(errorMessage);
-                Log.e(TAG, errorMessage, e);
-                stopRecording(new SaidItFragment.NotifyFileReceiver(SaidItService.this));
+                onCaptureError(e);
             }
+            onCaptureWakeup(cpuBefore, captured);
         };
 
-        audioProcessingPipeline = new AudioProcessingPipeline(this, SAMPLE_RATE);
+        captureLoop = () -> {
+            final long sliceEnd = SystemClock.uptimeMillis() + CAPTURE_SLICE_MS;
+            final int periodBytes = SAMPLE_RATE * CAPTURE_PERIOD_MS / 1000 * AudioMemory.BYTES_PER_SAMPLE;
+            int captured = 0;
+            while (captureRunning && audioRecord != null) {
+                final long cpuBefore = Debug.threadCpuTimeNanos();
+                try {
+                    captured = audioMemory.fillOnce(blockingFiller, periodBytes);
+                } catch (IOException e) {
+                    onCaptureError(e);
+                    captured = 0;
+                }
+                onCaptureWakeup(cpuBefore, captured);
+                if (captured <= 0 || SystemClock.uptimeMillis() >= sliceEnd) break;
+            }
+            if (captureRunning) {
+                // Back off instead of spinning if the recorder returned nothing
+                audioHandler.postDelayed(captureLoop, captured > 0 ? 0 : CAPTURE_PERIOD_MS);
+            }
+        };
+
+        audioProcessingPipeline = new AudioProcessingPipeline(this, SAMPLE_RATE, audioMemory);
         audioProcessingPipeline.start();
         recordingStoreManager = audioProcessingPipeline.getRecordingStoreManager();
         recordingExporter = new RecordingExporter(this, SAMPLE_RATE);
 
+        // Runs only when the capture thread signals a complete frame, then drains everything
         analysisTick = () -> {
+            // Clear first so audio arriving while this batch runs schedules another one
+            analysisScheduled.set(false);
             if (state != ServiceState.LISTENING && state != ServiceState.RECORDING) {
                 return;
             }
 
             final int frameMs = 20; // Process 20ms chunks
-            final int frameBytes = (SAMPLE_RATE / (1000 / frameMs)) * 2;
-            final AudioMemory.Stats stats = audioMemory.getStats(FILL_RATE);
-            int currentBufferSize = stats.overwriting ? stats.total : stats.filled;
-
-            if (analyzedBytes > currentBufferSize) {
-                // Buffer was likely reset. Let's try to recover by seeking back a bit.
-                analyzedBytes = Math.max(0, currentBufferSize - (int)(getMemoryDurationSeconds() * FILL_RATE / 2));
+            final int frameSamples = SAMPLE_RATE / (1000 / frameMs);
+            if (analysisJoin == null || analysisJoin.capacity() != frameSamples * AudioMemory.BYTES_PER_SAMPLE) {
+                analysisJoin = ByteBuffer.allocateDirect(frameSamples * AudioMemory.BYTES_PER_SAMPLE);
             }
 
-            int availableToAnalyze = currentBufferSize - analyzedBytes;
-
-            while (availableToAnalyze >= frameBytes) {
-                try {
-                    audioMemory.read(analyzedBytes, frameBytes, (array, offset, count) -> {
-                        audioProcessingPipeline.process(array, offset, count);
-                        return 0; // Consumer ignores return
-                    });
-                    analyzedBytes += frameBytes;
-                    availableToAnalyze -= frameBytes;
-                } catch (IOException e) {
-                    Log.e(TAG, "Error during audio analysis", e);
-                    break; // Exit the loop on error
+            // Every frame is analysed exactly once; frames the ring lapped are skipped and reported
+            try {
+                while (analysisCursor.available() >= frameSamples) {
+                    final int pending = analysisJoin.position() / AudioMemory.BYTES_PER_SAMPLE;
+                    analysisFrameStart = analysisCursor.getPosition() - pending;
+                    analysisCursor.read(frameSamples - pending, analysisConsumer);
+                    if (analysisCursor.checkAndClearOverrun()) {
+                        Log.w(TAG, "Analysis overrun, skipped to " + analysisCursor);
+                        analysisJoin.clear();
+                    }
                 }
+            } catch (IOException e) {
+                Log.e(TAG, "Analysis failed", e);
+            }
+            analysisWatermark = analysisCursor.getPosition() + frameSamples - analysisJoin.position() / AudioMemory.BYTES_PER_SAMPLE;
+            final CompressedHistory archive = audioMemory.getArchive();
+            if (archive != null) {
+                archive.encodePending();
             }
             maybeAutoSave();
-            analysisHandler.postDelayed(analysisTick, frameMs); // Re-schedule
         };
 
         if (preferences.getBoolean(AUDIO_MEMORY_ENABLED_KEY, true)) {
@@ -216,6 +287,7 @@ public class SaidItService extends Service {
     public void onDestroy() {
         super.onDestroy();
         isShuttingDown = true;
+        getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).unregisterOnSharedPreferenceChangeListener(preferenceListener);
         
         synchronized (shutdownLock) {
             // 1. Stop recording first
@@ -223,20 +295,26 @@ public class SaidItService extends Service {
                 stopRecording(null);
             }
             
-            // 2. Stop listening
-            if (state != ServiceState.READY) {
-                innerStopListening();
-            }
-            
-            // 3. Stop audio processing pipeline
+            // 2. Stop audio processing pipeline; its store writes the segments still only in
+            // memory before returning, so this comes before the memory can be released
             if (audioProcessingPipeline != null) {
                 audioProcessingPipeline.stop();
                 audioProcessingPipeline = null;
+                recordingStoreManager = null;
+            }
+
+            // 3. Stop listening
+            if (state != ServiceState.READY) {
+                innerStopListening();
             }
             
             // 4. Clean up handlers and threads with timeout
             cleanupHandlerThread(analysisHandler, analysisThread, "analysis");
             cleanupHandlerThread(audioHandler, audioThread, "audio");
+            // Let files already being finished complete rather than drop them
+            if (exportThread != null) {
+                exportThread.quitSafely();
+            }
             
             // 5. Stop foreground
             stopForeground(true);
@@ -332,6 +410,9 @@ public class SaidItService extends Service {
         if (savedMemorySize != memorySize) {
             preferences.edit().putLong(AUDIO_MEMORY_SIZE_KEY, memorySize).apply();
         }
+        final boolean persistent = preferences.getBoolean(AUDIO_MEMORY_PERSISTENT_KEY, false);
+        final boolean compressed = preferences.getBoolean(AUDIO_MEMORY_COMPRESSED_KEY, false);
+        final boolean blocking = preferences.getBoolean(CAPTURE_BLOCKING_KEY, CAPTURE_BLOCKING_DEFAULT);
 
         audioHandler.post(() -> {
             if (isShuttingDown) return;
@@ -352,33 +433,80 @@ public class SaidItService extends Service {
             }
             audioRecord = newAudioRecord;
 
-            audioMemory.allocate(memorySize);
-            // Set up event-driven periodic callbacks (~50ms)
-            final int periodFrames = Math.max(128, SAMPLE_RATE / 20);
-            positionListener = new AudioRecord.OnRecordPositionUpdateListener() {
-                @Override
-                public void onPeriodicNotification(AudioRecord recorder) {
-                    audioHandler.post(audioReader);
-                }
-                @Override
-                public void onMarkerReached(AudioRecord recorder) { }
-            };
-            // In a test environment, don't set up the periodic listener to avoid hangs.
-            if (!mIsTestEnvironment) {
-                audioRecord.setRecordPositionUpdateListener(positionListener, audioHandler);
-                audioRecord.setPositionNotificationPeriod(periodFrames);
+            final boolean restored = configureAudioMemory(memorySize, persistent, compressed);
+            if (restored) {
+                // The history ends where the previous process died; exports count the time since
+                final long outageSeconds = audioMemory.getOutageSamples() / SAMPLE_RATE;
+                Log.d(TAG, "Reattached history from " + AUDIO_MEMORY_FILE_NAME + ", " + outageSeconds + "s after it ended");
+                DebugLogStore.log(this, TAG, "history_reattached outageSeconds=" + outageSeconds
+                        + " atSample=" + audioMemory.getOutageSamplePosition());
+            } else if (persistent && !audioMemory.isFileBacked()) {
+                Log.w(TAG, "Could not map " + AUDIO_MEMORY_FILE_NAME + ", keeping history in RAM");
             }
             audioRecord.startRecording();
-            // Kickstart a first read to reduce latency
-            if (!mIsTestEnvironment) {
+            startCapture(blocking);
+
+            // Posted from here so the start position is decided after the memory is configured
+            analysisHandler.post(() -> {
+                analysisCursor = audioMemory.newCursor("analysis");
+                if (restored) {
+                    // Restored audio was already analysed by the previous process
+                    analysisCursor.seekToLatest();
+                } else {
+                    // Analyse whatever the ring holds once capture begins
+                    analysisCursor.seekToOldest();
+                }
+                analysisWatermark = 0;
+                analysisScheduled.set(true);
+                analysisHandler.post(analysisTick);
+            });
+        });
+    }
+
+    /**
+     * Drives capture either with a blocking read loop or with recorder position notifications,
+     * switching from the other mode if needed. Audio thread only.
+     */
+    private void startCapture(boolean blocking) {
+        reportCaptureStats();
+        captureStats = new CaptureStats(blocking ? "blocking" : "notification", SAMPLE_RATE, SystemClock.uptimeMillis());
+        if (blocking) {
+            audioRecord.setRecordPositionUpdateListener(null);
+            audioHandler.removeCallbacks(audioReader);
+            // In a test environment, don't start the loop to avoid hangs.
+            if (!mIsTestEnvironment && !captureRunning) {
+                captureRunning = true;
+                audioHandler.post(captureLoop);
+            }
+            return;
+        }
+        captureRunning = false;
+        audioHandler.removeCallbacks(captureLoop);
+        // Set up event-driven periodic callbacks (~50ms)
+        final int periodFrames = Math.max(128, SAMPLE_RATE / 20);
+        positionListener = new AudioRecord.OnRecordPositionUpdateListener() {
+            @Override
+            public void onPeriodicNotification(AudioRecord recorder) {
                 audioHandler.post(audioReader);
             }
-        });
+            @Override
+            public void onMarkerReached(AudioRecord recorder) { }
+        };
+        // In a test environment, don't set up the periodic listener to avoid hangs.
+        if (!mIsTestEnvironment) {
+            audioRecord.setRecordPositionUpdateListener(positionListener, audioHandler);
+            audioRecord.setPositionNotificationPeriod(periodFrames);
+            // Kickstart a first read to reduce latency
+            audioHandler.post(audioReader);
+        }
+    }
 
-        analysisHandler.post(() -> {
-            analyzedBytes = 0;
-            analysisHandler.post(analysisTick);
-        });
+    private void reportCaptureStats() {
+        if (captureStats == null) return;
+        final String summary = captureStats.summary(SystemClock.uptimeMillis());
+        Log.d(TAG, "Capture stats " + summary);
+        DebugLogStore.log(this, TAG, "capture_stats " + summary);
+        captureStats = null;
     }
 
     private void innerStopListening() {
@@ -386,7 +514,9 @@ public class SaidItService extends Service {
         state = ServiceState.READY;
 
         Log.d(TAG, "Queueing: STOP LISTENING");
+        captureRunning = false;
         analysisHandler.removeCallbacks(analysisTick);
+        analysisScheduled.set(false);
         stopForeground(true);
         stopService(new Intent(this, this.getClass()));
 
@@ -411,7 +541,10 @@ public class SaidItService extends Service {
             if (audioHandler != null) {
                 audioHandler.removeCallbacksAndMessages(null);
             }
+            reportCaptureStats();
+            persistSegmentsInMemory();
             audioMemory.allocate(0);
+            audioMemory.setArchive(null);
         });
     }
 
@@ -450,16 +583,12 @@ public class SaidItService extends Service {
                     return;
                 }
                 mediaFile = File.createTempFile("saidit", ".m4a", getCacheDir());
+                // Prepended memory is read from the ring by the encoder thread, like the live audio
+                final long fromSample = audioMemory.getPositionBefore(
+                        (long) (Math.max(0, prependedMemorySeconds) * SAMPLE_RATE));
                 // 96 kbps for mono voice
-                aacWriter = new AacMp4Writer(SAMPLE_RATE, 1, 96_000, mediaFile);
+                aacWriter = new AacMp4Writer(SAMPLE_RATE, 96_000, mediaFile, audioMemory, fromSample);
                 Log.d(TAG, "Recording to: " + mediaFile.getAbsolutePath());
-
-                // Write prepended memory
-                if (prependedMemorySeconds > 0) {
-                    final int bytesPerSecond = (int) (1f / getBytesToSeconds());
-                    final int bytesToDump = (int) (prependedMemorySeconds * bytesPerSecond);
-                    audioMemory.dump((array, offset, count) -> { aacWriter.write(array, offset, count); return count; }, bytesToDump);
-                }
             } catch (IOException e) {
                 Log.e(TAG, "ERROR creating AAC/MP4 file", e);
                 Toast.makeText(this, getString(R.string.error_creating_recording_file), Toast.LENGTH_LONG).show();
@@ -475,17 +604,40 @@ public class SaidItService extends Service {
 
         audioHandler.post(() -> {
             flushAudioRecord();
-            if (aacWriter != null) {
-                aacWriter.close();
-            }
-            if (wavFileReceiver != null && mediaFile != null) {
-                recordingExporter.saveFileToMediaStore(mediaFile, mediaFile.getName(), "audio/mp4", wavFileReceiver);
-            }
+            final AacMp4Writer writer = aacWriter;
+            final File file = mediaFile;
             aacWriter = null;
             broadcastState();
+            if (writer == null) return;
+            // The encoder may still be working through prepended memory: finish it off the
+            // capture thread, at the audio captured up to now
+            final long endSample = audioMemory.getWriteSamplePosition();
+            final Handler handler = exportHandler;
+            if (handler == null || !handler.post(() -> finishRecording(writer, endSample, file, wavFileReceiver))) {
+                writer.close();
+            }
         });
     }
 
+    /**
+     * Completes a recording's file and hands it to the receiver, or reports why it could not be
+     * completed instead of publishing a truncated file. The file is kept either way: it is
+     * fragmented, so playable up to its last fragment. Export thread only.
+     */
+    private void finishRecording(AacMp4Writer writer, long endSample, File file, WavFileReceiver wavFileReceiver) {
+        try {
+            writer.finish(endSample);
+        } catch (IOException e) {
+            Log.e(TAG, "Error finishing recording " + file, e);
+            DebugLogStore.logError(this, TAG, "recording_finish_failed file=" + file, e);
+            notifyExportFailure(wavFileReceiver, e);
+            return;
+        }
+        if (wavFileReceiver != null) {
+            recordingExporter.saveFileToMediaStore(file, file.getName(), "audio/mp4", wavFileReceiver);
+        }
+    }
+
     public void exportRecording(final float memorySeconds,
                                 final String format,
                                 final Integer bitrate,
@@ -494,7 +646,7 @@ public class SaidItService extends Service {
                                 String newFileName) {
         if (state == ServiceState.READY) return;
 
-        Handler handler = analysisHandler;
+        Handler handler = exportHandler;
         if (handler == null || isShuttingDown) {
             IOException error = new IOException("Export unavailable: service not ready.");
             DebugLogStore.logError(this, TAG, "export_unavailable_service_not_ready", error);
@@ -543,8 +695,7 @@ public class SaidItService extends Service {
             return;
         }
 
-        SharedPreferences preferences = getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE);
-        if (!preferences.getBoolean("auto_save_enabled", false)) {
+        if (!autoSaveEnabled) {
             autoSaveTriggeredInCycle = false;
             return;
         }
@@ -560,24 +711,30 @@ public class SaidItService extends Service {
         }
         autoSaveTriggeredInCycle = true;
 
-        int maxAutoSaves = getAutoSaveMaxFiles(preferences);
+        int maxAutoSaves = getAutoSaveMaxFiles(getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE));
         float memorySeconds = getMemoryDurationSeconds();
         Log.d(TAG, "maybeAutoSave: memorySeconds=" + memorySeconds + " audioMemory=" + (audioMemory != null ? "present" : "null") + " recordingStoreManager=" + (recordingStoreManager != null ? "present" : "null"));
         if (memorySeconds <= 0f) {
             return;
         }
 
+        final Handler handler = exportHandler;
+        if (handler == null) {
+            return;
+        }
         String autoFileName = new SimpleDateFormat("'Echo_auto_'yyyyMMdd_HHmmss", Locale.US).format(new Date());
-        recordingExporter.export(
-                recordingStoreManager,
+        final RecordingStoreManager store = recordingStoreManager;
+        final WavFileReceiver receiver = new AutoSaveReceiver(autoFileName, maxAutoSaves, new SaidItFragment.NotifyFileReceiver(this));
+        handler.post(() -> recordingExporter.export(
+                store,
                 audioMemory,
                 memorySeconds,
                 null,
                 null,
                 null,
                 autoFileName,
-                new AutoSaveReceiver(autoFileName, maxAutoSaves, new SaidItFragment.NotifyFileReceiver(this))
-        );
+                receiver
+        ));
     }
 
     private int getAutoSaveMaxFiles(SharedPreferences preferences) {
@@ -684,8 +841,8 @@ public class SaidItService extends Service {
         @Override
         public void onSuccess(Uri fileUri) {
             Runnable rotationTask = () -> recordAutoSaveAndRotate(fileUri, displayName, maxAutoSaves);
-            if (analysisHandler != null) {
-                analysisHandler.post(rotationTask);
+            if (exportHandler != null) {
+                exportHandler.post(rotationTask);
             } else {
                 rotationTask.run();
             }
@@ -718,6 +875,81 @@ public class SaidItService extends Service {
         }
     }
 
+    /**
+     * Reads from the recorder straight into a region of the audio memory ring. Audio thread only.
+     */
+    private int readAudioRecord(ByteBuffer region, int readMode) throws IOException {
+        if (audioRecord == null) return 0;
+        final int read = audioRecord.read(region, region.limit(), readMode);
+        if (read < 0) {
+            Log.e(TAG, "AUDIO RECORD ERROR: " + read);
+            return 0;
+        }
+        return read;
+    }
+
+    private void onCaptureError(IOException e) {
+        final String errorMessage = getString(R.string.error_during_recording_into) + (mediaFile != null ? mediaFile.getName() : "");
+        showToast(errorMessage);
+        Log.e(TAG, errorMessage, e);
+        stopRecording(new SaidItFragment.NotifyFileReceiver(SaidItService.this));
+    }
+
+    private void onCaptureWakeup(long cpuBefore, int capturedBytes) {
+        if (capturedBytes > 0) {
+            signalAnalysis();
+            // The recording encoder reads what was just published from the ring itself
+            if (aacWriter != null) aacWriter.onCaptured();
+        }
+        final CaptureStats stats = captureStats;
+        if (stats == null) return;
+        stats.onWakeup(Debug.threadCpuTimeNanos() - cpuBefore, capturedBytes / AudioMemory.BYTES_PER_SAMPLE);
+        final long now = SystemClock.uptimeMillis();
+        if (stats.isReportDue(now)) {
+            Log.d(TAG, "Capture stats " + stats.summary(now));
+        }
+    }
+
+    /**
+     * Wakes the analysis thread once a whole frame is waiting, with at most one wakeup pending at
+     * a time. Audio thread only.
+     */
+    private void signalAnalysis() {
+        if (audioMemory.getWriteSamplePosition() < analysisWatermark) return;
+        final Handler handler = analysisHandler;
+        if (handler != null && analysisScheduled.compareAndSet(false, true)) {
+            handler.post(analysisTick);
+        }
+    }
+
+    /**
+     * @return a summary of what capturing has cost since listening started, or null if idle.
+     */
+    public String getCaptureStatsSummary() {
+        final CaptureStats stats = captureStats;
+        return stats != null ? stats.summary(SystemClock.uptimeMillis()) : null;
+    }
+
+    public boolean isBlockingCapture() {
+        return getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).getBoolean(CAPTURE_BLOCKING_KEY, CAPTURE_BLOCKING_DEFAULT);
+    }
+
+    /**
+     * Switches between a blocking read loop on the audio thread and reads driven by recorder
+     * position notifications. Takes effect immediately without interrupting capture.
+     */
+    public void setBlockingCapture(final boolean blocking) {
+        final SharedPreferences preferences = this.getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE);
+        preferences.edit().putBoolean(CAPTURE_BLOCKING_KEY, blocking).apply();
+        if (state == ServiceState.READY) return;
+        audioHandler.post(() -> {
+            if (audioRecord != null) {
+                flushAudioRecord();
+                startCapture(blocking);
+            }
+        });
+    }
+
     private void flushAudioRecord() {
         // In tests we may not have a real Looper; just ensure we synchronously drain any pending read.
         if (audioHandler != null) {
@@ -743,7 +975,8 @@ public class SaidItService extends Service {
     }
 
     public long getMemorySize() {
-        return audioMemory.getAllocatedMemorySize();
+        final CompressedHistory archive = audioMemory.getArchive();
+        return audioMemory.getAllocatedMemorySize() + (archive != null ? archive.getCapacity() : 0);
     }
 
     public void setMemorySize(final long memorySize) {
@@ -752,8 +985,88 @@ public class SaidItService extends Service {
         preferences.edit().putLong(AUDIO_MEMORY_SIZE_KEY, normalizedMemorySize).apply();
 
         if(preferences.getBoolean(AUDIO_MEMORY_ENABLED_KEY, true)) {
-            audioHandler.post(() -> audioMemory.allocate(normalizedMemorySize));
+            final boolean persistent = preferences.getBoolean(AUDIO_MEMORY_PERSISTENT_KEY, false);
+            final boolean compressed = preferences.getBoolean(AUDIO_MEMORY_COMPRESSED_KEY, false);
+            audioHandler.post(() -> configureAudioMemory(normalizedMemorySize, persistent, compressed));
+        }
+    }
+
+    public boolean isMemoryPersistent() {
+        return getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).getBoolean(AUDIO_MEMORY_PERSISTENT_KEY, false);
+    }
+
+    /**
+     * Moves the history between RAM and a memory-mapped file that survives the service being
+     * killed. Switching starts the history over.
+     */
+    public void setMemoryPersistent(final boolean persistent) {
+        final SharedPreferences preferences = this.getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE);
+        preferences.edit().putBoolean(AUDIO_MEMORY_PERSISTENT_KEY, persistent).apply();
+
+        if (preferences.getBoolean(AUDIO_MEMORY_ENABLED_KEY, true)) {
+            final long memorySize = SaidIt.nearestAudioMemoryPreset(
+                    preferences.getLong(AUDIO_MEMORY_SIZE_KEY, AUDIO_MEMORY_PRESETS[0]));
+            final boolean compressed = preferences.getBoolean(AUDIO_MEMORY_COMPRESSED_KEY, false);
+            audioHandler.post(() -> configureAudioMemory(memorySize, persistent, compressed));
+        }
+    }
+
+    public boolean isMemoryCompressed() {
+        return getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).getBoolean(AUDIO_MEMORY_COMPRESSED_KEY, false);
+    }
+
+    /**
+     * Splits the memory budget between a small raw ring and a losslessly compressed tier holding
+     * the older history, which fits several times more audio in the same space.
+     */
+    public void setMemoryCompressed(final boolean compressed) {
+        final SharedPreferences preferences = this.getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE);
+        preferences.edit().putBoolean(AUDIO_MEMORY_COMPRESSED_KEY, compressed).apply();
+
+        if (preferences.getBoolean(AUDIO_MEMORY_ENABLED_KEY, true)) {
+            final long memorySize = SaidIt.nearestAudioMemoryPreset(
+                    preferences.getLong(AUDIO_MEMORY_SIZE_KEY, AUDIO_MEMORY_PRESETS[0]));
+            final boolean persistent = preferences.getBoolean(AUDIO_MEMORY_PERSISTENT_KEY, false);
+            audioHandler.post(() -> configureAudioMemory(memorySize, persistent, compressed));
+        }
+    }
+
+    /**
+     * Lays the memory budget out as a raw ring plus, if compressed, an archive tier taking the
+     * rest. Must run on the audio thread.
+     * @return true if history was reattached from the backing file.
+     */
+    private boolean configureAudioMemory(long memorySize, boolean persistent, boolean compressed) {
+        audioMemory.setBackingFile(persistent ? getAudioMemoryFile() : null, SAMPLE_RATE);
+        final long rawSize = compressed
+                ? Math.max(AudioMemory.CHUNK_SIZE, memorySize / COMPRESSED_RAW_FRACTION)
+                : memorySize;
+        persistSegmentsInMemory();
+        final boolean restored = audioMemory.allocate(rawSize);
+
+        final long archiveSize = memorySize - audioMemory.getAllocatedMemorySize();
+        final CompressedHistory archive = audioMemory.getArchive();
+        if (!compressed || archiveSize <= 0) {
+            audioMemory.setArchive(null);
+        } else if (archive == null || archive.getCapacity() != archiveSize) {
+            audioMemory.setArchive(new CompressedHistory(audioMemory, (int) archiveSize));
         }
+        return restored;
+    }
+
+    /**
+     * Has the store write out the segments it still only holds as ranges of the memory, before
+     * the memory is released or reallocated under them. Must run on the audio thread.
+     */
+    private void persistSegmentsInMemory() {
+        final RecordingStoreManager store = recordingStoreManager;
+        if (store != null) {
+            store.onMemoryReleasing();
+        }
+    }
+
+    private File getAudioMemoryFile() {
+        return new File(getNoBackupFilesDir(), AUDIO_MEMORY_FILE_NAME);
     }
 
     public int getSamplingRate() {
@@ -785,7 +1098,10 @@ public class SaidItService extends Service {
         final boolean recording = (state == ServiceState.RECORDING);
         final Handler sourceHandler = new Handler(Looper.getMainLooper());
         audioHandler.post(() -> {
-            flushAudioRecord();
+            // The blocking loop is never more than one read behind
+            if (!captureRunning) {
+                flushAudioRecord();
+            }
             final AudioMemory.Stats stats = audioMemory.getStats(FILL_RATE);
 
             int recorded = 0;
@@ -808,10 +1124,16 @@ public class SaidItService extends Service {
         return 1f / FILL_RATE;
     }
 
+    /**
+     * @return wall-clock time the memory spans, counting the time capture was down before
+     *         history reattached from the backing file, so exporting that much gets all of it.
+     */
     public float getMemoryDurationSeconds() {
         if (audioMemory == null) return 0f;
         final AudioMemory.Stats stats = audioMemory.getStats(FILL_RATE);
-        return (stats.overwriting ? stats.total : stats.filled) * getBytesToSeconds();
+        final long bytes = (stats.overwriting ? stats.total : stats.filled)
+                + (stats.archivedSamples + audioMemory.getOutageSamples()) * AudioMemory.BYTES_PER_SAMPLE;
+        return bytes * getBytesToSeconds();
     }
 
     public long getEstimatedAutoSaveHistorySeconds(int maxAutoSaves) {
@@ -96,6 +96,8 @@ public class SaveClipBottomSheet extends BottomSheetDialogFragment {
             formatToggleGroup.check(R.id.format_mp3);
         } else if ("opus".equals(defaultFormat)) {
             formatToggleGroup.check(R.id.format_opus);
+        } else if ("aac".equals(defaultFormat)) {
+            formatToggleGroup.check(R.id.format_aac);
         } else {
             formatToggleGroup.check(R.id.format_wav);
         }
@@ -195,6 +197,9 @@ public class SaveClipBottomSheet extends BottomSheetDialogFragment {
         if (checkedId == R.id.format_opus) {
             return "opus";
         }
+        if (checkedId == R.id.format_aac) {
+            return "aac";
+        }
         return "wav";
     }
 
@@ -51,6 +51,8 @@ public class SettingsActivity extends AppCompatActivity {
     private MaterialButtonToggleGroup qualityToggleGroup;
     private Button memory32Button, memory64Button, memory128Button, memory256Button;
     private Button quality8kHzButton, quality16kHzButton, quality48kHzButton;
+    private SwitchMaterial persistentMemorySwitch;
+    private SwitchMaterial compressedMemorySwitch;
     private SwitchMaterial autoSaveSwitch;
     private Slider autoSaveMaxFilesSlider;
     private TextView autoSaveMaxFilesValue;
@@ -78,6 +80,7 @@ public class SettingsActivity extends AppCompatActivity {
     private TextView summaryAutosave;
     private TextView summaryStability;
     private SwitchMaterial debugLoggingSwitch;
+    private SwitchMaterial blockingCaptureSwitch;
 
     private SharedPreferences sharedPreferences;
 
@@ -168,6 +171,8 @@ public class SettingsActivity extends AppCompatActivity {
         quality8kHzButton = findViewById(R.id.quality_8kHz);
         quality16kHzButton = findViewById(R.id.quality_16kHz);
         quality48kHzButton = findViewById(R.id.quality_48kHz);
+        persistentMemorySwitch = findViewById(R.id.persistent_memory_switch);
+        compressedMemorySwitch = findViewById(R.id.compressed_memory_switch);
         autoSaveSwitch = findViewById(R.id.auto_save_switch);
         autoSaveMaxFilesSlider = findViewById(R.id.auto_save_max_files_slider);
         autoSaveMaxFilesValue = findViewById(R.id.auto_save_max_files_value);
@@ -195,6 +200,7 @@ public class SettingsActivity extends AppCompatActivity {
         summaryAutosave = findViewById(R.id.summary_autosave);
         summaryStability = findViewById(R.id.summary_stability);
         debugLoggingSwitch = findViewById(R.id.debug_logging_switch);
+        blockingCaptureSwitch = findViewById(R.id.blocking_capture_switch);
 
         Button howToButton = findViewById(R.id.how_to_button);
         Button showTourButton = findViewById(R.id.show_tour_button);
@@ -215,10 +221,25 @@ public class SettingsActivity extends AppCompatActivity {
         shareDebugLogsButton.setOnClickListener(v -> shareDebugLogs());
         debugLoggingSwitch.setOnCheckedChangeListener((buttonView, isChecked) ->
                 sharedPreferences.edit().putBoolean(DEBUG_LOGGING_ENABLED_KEY, isChecked).apply());
+        blockingCaptureSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            if (isBound && service.isBlockingCapture() != isChecked) {
+                service.setBlockingCapture(isChecked);
+            }
+        });
 
         // Setup Listeners
         memoryToggleGroup.addOnButtonCheckedListener(memoryToggleListener);
         qualityToggleGroup.addOnButtonCheckedListener(qualityToggleListener);
+        persistentMemorySwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            if (isBound && service.isMemoryPersistent() != isChecked) {
+                service.setMemoryPersistent(isChecked);
+            }
+        });
+        compressedMemorySwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            if (isBound && service.isMemoryCompressed() != isChecked) {
+                service.setMemoryCompressed(isChecked);
+            }
+        });
 
         autoSaveSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
             sharedPreferences.edit().putBoolean("auto_save_enabled", isChecked).apply();
@@ -244,6 +265,7 @@ public class SettingsActivity extends AppCompatActivity {
                 String format = "wav";
                 if (checkedId == R.id.format_mp3) format = "mp3";
                 else if (checkedId == R.id.format_opus) format = "opus";
+                else if (checkedId == R.id.format_aac) format = "aac";
 
                 sharedPreferences.edit().putString("export_format", format).apply();
                 updateExportSettingsUI(format);
@@ -373,7 +395,10 @@ public class SettingsActivity extends AppCompatActivity {
             qualityToggleGroup.check(R.id.quality_8kHz);
         }
 
+        persistentMemorySwitch.setChecked(service.isMemoryPersistent());
+        compressedMemorySwitch.setChecked(service.isMemoryCompressed());
         debugLoggingSwitch.setChecked(sharedPreferences.getBoolean(DEBUG_LOGGING_ENABLED_KEY, false));
+        blockingCaptureSwitch.setChecked(service.isBlockingCapture());
 
         // Load and apply auto-save settings
         boolean autoSaveEnabled = sharedPreferences.getBoolean("auto_save_enabled", false);
@@ -392,6 +417,7 @@ public class SettingsActivity extends AppCompatActivity {
         String format = sharedPreferences.getString("export_format", "wav");
         if ("mp3".equals(format)) exportFormatToggleGroup.check(R.id.format_mp3);
         else if ("opus".equals(format)) exportFormatToggleGroup.check(R.id.format_opus);
+        else if ("aac".equals(format)) exportFormatToggleGroup.check(R.id.format_aac);
         else exportFormatToggleGroup.check(R.id.format_wav);
 
         int bitrate = sharedPreferences.getInt("export_bitrate", 32000);
@@ -7,4 +7,9 @@ public class SystemClockWrapper implements Clock {
     public long uptimeMillis() {
         return SystemClock.uptimeMillis();
     }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
 }
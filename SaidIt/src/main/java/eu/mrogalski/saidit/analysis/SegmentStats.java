@@ -0,0 +1,80 @@
+package eu.mrogalski.saidit.analysis;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Level and speech statistics of a segment's audio, counted from the frame that started it, so
+ * without the pre-roll.
+ */
+public final class SegmentStats {
+    private final int sampleRate;
+    private long samples;
+    private long speechSamples;
+    private int peak;
+    private double sumSquares;
+
+    public SegmentStats(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Counts the 16-bit little-endian PCM between the buffer's position and limit, leaving both
+     * as they were.
+     */
+    void add(ByteBuffer pcm, boolean speech) {
+        final int end = pcm.limit() - 1;
+        int count = 0;
+        for (int i = pcm.position(); i < end; i += 2) {
+            final int sample = (short) ((pcm.get(i) & 0xff) | (pcm.get(i + 1) << 8));
+            final int magnitude = Math.abs(sample);
+            if (magnitude > peak) peak = magnitude;
+            sumSquares += (double) sample * sample;
+            count++;
+        }
+        samples += count;
+        if (speech) speechSamples += count;
+    }
+
+    void add(SegmentStats other) {
+        samples += other.samples;
+        speechSamples += other.speechSamples;
+        peak = Math.max(peak, other.peak);
+        sumSquares += other.sumSquares;
+    }
+
+    void clear() {
+        samples = 0;
+        speechSamples = 0;
+        peak = 0;
+        sumSquares = 0;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    public long getDurationMs() {
+        return samples * 1000 / sampleRate;
+    }
+
+    /**
+     * @return share of the audio the VAD took for speech, 0 to 1.
+     */
+    public float getSpeechRatio() {
+        return samples > 0 ? (float) speechSamples / samples : 0f;
+    }
+
+    /**
+     * @return largest absolute sample value, 0 to 32768.
+     */
+    public int getPeak() {
+        return peak;
+    }
+
+    /**
+     * @return root mean square of the samples, in sample units.
+     */
+    public double getRms() {
+        return samples > 0 ? Math.sqrt(sumSquares / samples) : 0;
+    }
+}
@@ -1,15 +1,56 @@
 package eu.mrogalski.saidit.analysis;
 
+import java.nio.ByteBuffer;
+
 public interface SegmentationController {
 
     interface SegmentListener {
         void onSegmentStart(long timestamp);
         void onSegmentEnd(long timestamp);
-        void onSegmentData(byte[] data, int offset, int length);
+        /**
+         * @param data PCM between position and limit; only valid during the call.
+         */
+        void onSegmentData(ByteBuffer data);
+
+        /**
+         * In range mode, called instead of {@link #onSegmentData} just before the segment ends.
+         * @param startSample Absolute AudioMemory position of the segment's first sample.
+         * @param endSample Position just past its last sample.
+         */
+        default void onSegmentRange(long startSample, long endSample) {
+        }
+
+        /**
+         * Called just before {@link #onSegmentEnd} with the finished segment's statistics.
+         */
+        default void onSegmentStats(SegmentStats stats) {
+        }
+
+        /**
+         * Called instead of {@link #onSegmentEnd} for a segment too short to keep.
+         */
+        default void onSegmentDiscarded(long timestamp) {
+            onSegmentEnd(timestamp);
+        }
     }
 
     void process(byte[] pcm, int offset, int length, boolean isSpeech);
 
+    /**
+     * Same as {@link #process(byte[], int, int, boolean)} for PCM between the buffer's position
+     * and limit, e.g. a view of the ring that is forwarded to the listener without a copy.
+     */
+    void process(ByteBuffer pcm, boolean isSpeech);
+
+    /**
+     * Same as {@link #process(ByteBuffer, boolean)} for PCM known to start at an absolute
+     * AudioMemory sample position, which range mode needs.
+     * @param samplePosition Position of the first sample, or -1 if unknown.
+     */
+    default void process(ByteBuffer pcm, boolean isSpeech, long samplePosition) {
+        process(pcm, isSpeech);
+    }
+
     void setListener(SegmentListener listener);
 
     void close();
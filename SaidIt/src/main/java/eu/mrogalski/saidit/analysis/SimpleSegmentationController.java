@@ -2,38 +2,114 @@ package eu.mrogalski.saidit.analysis;
 
 import android.util.Log;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
- * A simple implementation of a segmentation controller that uses speech/silence thresholds.
+ * Segments the stream by speech/silence thresholds, as a small state machine:
+ * <pre>
+ *  IDLE --startThreshold of speech--> IN_SPEECH --silence--> GAP --gap closes--> IDLE
+ *                                         ^                   |
+ *                                         +--speech resumes---+
+ * </pre>
+ * Speech resuming within the gap continues the same segment, so bursts closer than the merge
+ * gap end up in one file. Segments with less than the minimum length of speech are discarded,
+ * and ones reaching the maximum length are split, the next part starting where the last ended.
+ *
+ * By default segment audio is streamed to the listener, pre-roll included. In range mode only
+ * the segment's sample range in AudioMemory is reported, so nothing is copied; the pre-roll is
+ * then just a look-back from the first segment frame's position.
  */
 public class SimpleSegmentationController implements SegmentationController {
     private static final String TAG = "SimpleSegmentation";
 
-    // --- Configuration ---
+    /**
+     * Segmentation rules, in milliseconds.
+     */
+    public static class Config {
+        // Speech that opens a segment, or resumes one after its hangover
+        public long startThresholdMs = 200;
+        // Speech within this much silence always continues the segment
+        public long endHangoverMs = 500;
+        // Segments with less silence than this between them are merged
+        public long mergeGapMs = 1500;
+        // Audio kept before the first and after the last speech
+        public long preRollMs = 300;
+        public long postRollMs = 500;
+        // Segments with less than this from their first to their last speech are discarded
+        public long minSegmentMs = 1000;
+        public long maxSegmentMs = 30 * 60 * 1000; // 30 minutes
+    }
+
+    // --- Configuration, in samples ---
     private final int sampleRate;
-    private final int bytesPerMs;
-    private long startThresholdMs = 200;
-    private long endHangoverMs = 500;
-    private long preRollMs = 300;
-    private long maxSegmentMs = 30 * 60 * 1000; // 30 minutes
+    private final int bytesPerSample;
+    private final long startThreshold;
+    private final long endHangover;
+    // Silence that ends a segment: the hangover or the merge gap, whichever is longer
+    private final long closeAfter;
+    private final long preRollSamples;
+    private final long postRoll;
+    private final long minSegment;
+    private final long maxSegment;
+    private boolean emitRanges = false;
 
     // --- State ---
-    private enum State { IDLE, IN_SPEECH, ENDING }
+    private enum State { IDLE, IN_SPEECH, GAP }
     private State state = State.IDLE;
-    private long speechDurationMs = 0;
-    private long silenceDurationMs = 0;
-    private long currentSegmentDurationMs = 0;
+    // Consecutive speech, and audio since the segment's last speech
+    private long speechRun = 0;
+    private long sinceSpeech = 0;
+    // Audio in the current segment, pre-roll included, and where its last speech ends
+    private long segmentLength = 0;
+    private long lastSpeechAt = 0;
+    // Whether the segment carries on from one split at the maximum length
+    private boolean continued = false;
+    private SegmentStats stats;
     private SegmentListener listener;
+    // Range mode: position of the frame being processed, and the current segment's range
+    private long framePosition = -1;
+    private long segmentStartSample = -1;
+    private long segmentEndSample = -1;
 
     // --- Buffers ---
-    private final Deque<byte[]> preRollBuffer = new ArrayDeque<>();
-    private long preRollBufferBytes = 0;
+    // Last preRollMs of audio outside segments, oldest at preRollEnd - preRollFill
+    private final byte[] preRoll;
+    private final ByteBuffer preRollView;
+    private int preRollEnd = 0;
+    private int preRollFill = 0;
+    // Gap audio past the post-roll, kept until speech resumes or the gap closes
+    private final SegmentStats held;
+    private final byte[] heldPcm;
+    private final ByteBuffer heldView;
+    private int heldBytes = 0;
+    private long heldEnd = -1;
 
     public SimpleSegmentationController(int sampleRate, int bitsPerSample) {
+        this(sampleRate, bitsPerSample, new Config());
+    }
+
+    public SimpleSegmentationController(int sampleRate, int bitsPerSample, Config config) {
         this.sampleRate = sampleRate;
-        this.bytesPerMs = (sampleRate * (bitsPerSample / 8)) / 1000;
+        this.bytesPerSample = bitsPerSample / 8;
+        this.startThreshold = toSamples(config.startThresholdMs);
+        this.endHangover = toSamples(config.endHangoverMs);
+        this.closeAfter = Math.max(endHangover, toSamples(config.mergeGapMs));
+        this.preRollSamples = toSamples(config.preRollMs);
+        this.postRoll = Math.min(closeAfter, toSamples(config.postRollMs));
+        this.minSegment = toSamples(config.minSegmentMs);
+        this.maxSegment = Math.max(1, toSamples(config.maxSegmentMs));
+        this.stats = new SegmentStats(sampleRate);
+        this.held = new SegmentStats(sampleRate);
+        this.preRoll = new byte[(int) (preRollSamples * bytesPerSample)];
+        this.preRollView = ByteBuffer.wrap(preRoll).order(ByteOrder.LITTLE_ENDIAN);
+        // Held audio never reaches past the gap plus a speech run short of the threshold
+        this.heldPcm = new byte[(int) ((closeAfter + startThreshold - postRoll) * bytesPerSample)];
+        this.heldView = ByteBuffer.wrap(heldPcm).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private long toSamples(long ms) {
+        return ms * sampleRate / 1000;
     }
 
     @Override
@@ -41,109 +117,268 @@ public class SimpleSegmentationController implements SegmentationController {
         this.listener = listener;
     }
 
+    /**
+     * @param emitRanges Whether to report segments through
+     *                   {@link SegmentListener#onSegmentRange} instead of streaming their audio.
+     *                   Needs frames with a sample position; frames without one are streamed.
+     */
+    public void setEmitRanges(boolean emitRanges) {
+        this.emitRanges = emitRanges;
+    }
+
+    @Override
+    public void process(ByteBuffer pcm, boolean isSpeech, long samplePosition) {
+        framePosition = samplePosition;
+        try {
+            process(pcm, isSpeech);
+        } finally {
+            framePosition = -1;
+        }
+    }
+
     @Override
     public void process(byte[] pcm, int offset, int length, boolean isSpeech) {
-        long frameDurationMs = length / bytesPerMs;
+        process(ByteBuffer.wrap(pcm, offset, length), isSpeech);
+    }
+
+    @Override
+    public void process(ByteBuffer pcm, boolean isSpeech) {
+        final int samples = pcm.remaining() / bytesPerSample;
+        speechRun = isSpeech ? speechRun + samples : 0;
 
-        if (isSpeech) {
-            handleSpeech(pcm, offset, length, frameDurationMs);
+        switch (state) {
+            case IDLE:
+                if (isSpeech && speechRun >= startThreshold) {
+                    startSegment();
+                    take(pcm, true, samples);
+                } else {
+                    bufferPreRoll(pcm);
+                }
+                break;
+            case IN_SPEECH:
+                if (isSpeech) {
+                    take(pcm, true, samples);
+                } else {
+                    state = State.GAP;
+                    sinceSpeech = 0;
+                    handleGap(pcm, false, samples);
+                }
+                break;
+            case GAP:
+                handleGap(pcm, isSpeech, samples);
+                break;
+        }
+    }
+
+    private void handleGap(ByteBuffer pcm, boolean isSpeech, int samples) {
+        final long before = sinceSpeech;
+        sinceSpeech += samples;
+
+        // Speech within the hangover carries on at once; later it has to pass the start threshold
+        if (isSpeech && (before < endHangover || speechRun >= startThreshold)) {
+            releaseHeld();
+            state = State.IN_SPEECH;
+            take(pcm, true, samples);
+            return;
+        }
+        if (sinceSpeech - speechRun >= closeAfter) {
+            endSegment();
+            bufferPreRoll(pcm);
+            return;
+        }
+        if (before < postRoll) {
+            take(pcm, isSpeech, samples);
         } else {
-            handleSilence(pcm, offset, length, frameDurationMs);
+            hold(pcm, isSpeech, samples);
         }
     }
 
-    private void handleSpeech(byte[] pcm, int offset, int length, long frameDurationMs) {
-        silenceDurationMs = 0;
-        speechDurationMs += frameDurationMs;
-        currentSegmentDurationMs += frameDurationMs;
+    private boolean inRangeMode() {
+        return emitRanges && framePosition >= 0;
+    }
 
-        if (state == State.IDLE && speechDurationMs >= startThresholdMs) {
-            startSegment();
+    /**
+     * Adds the frame to the current segment.
+     */
+    private void take(ByteBuffer pcm, boolean isSpeech, int samples) {
+        stats.add(pcm, isSpeech);
+        if (isSpeech) lastSpeechAt = stats.getSamples();
+        if (inRangeMode()) {
+            segmentEndSample = framePosition + samples;
+        } else if (listener != null) {
+            listener.onSegmentData(pcm);
         }
+        advance(samples);
+    }
 
-        if (state == State.IN_SPEECH || state == State.ENDING) {
-            if (listener != null) {
-                listener.onSegmentData(pcm, offset, length);
-            }
-            if (currentSegmentDurationMs >= maxSegmentMs) {
+    /**
+     * Keeps a gap frame aside until it turns out whether the segment goes on.
+     */
+    private void hold(ByteBuffer pcm, boolean isSpeech, int samples) {
+        if (inRangeMode()) {
+            heldEnd = framePosition + samples;
+        } else {
+            final int length = pcm.remaining();
+            if (heldBytes + length > heldPcm.length) {
+                // Only frames longer than the gap get here; close it rather than grow
                 endSegment();
+                bufferPreRoll(pcm);
+                return;
             }
-        } else {
-            // Buffer pre-roll while waiting for speech threshold
-            bufferPreRoll(pcm, offset, length);
+            final int position = pcm.position();
+            pcm.get(heldPcm, heldBytes, length);
+            pcm.position(position);
+            heldBytes += length;
         }
-        state = State.IN_SPEECH;
+        held.add(pcm, isSpeech);
     }
 
-    private void handleSilence(byte[] pcm, int offset, int length, long frameDurationMs) {
-        speechDurationMs = 0;
-        silenceDurationMs += frameDurationMs;
-
-        if (state == State.IN_SPEECH && silenceDurationMs >= endHangoverMs) {
-            state = State.ENDING;
+    /**
+     * Adds the held gap audio to the segment, as speech has resumed.
+     */
+    private void releaseHeld() {
+        final long samples = held.getSamples();
+        if (samples == 0) return;
+        stats.add(held);
+        if (heldEnd >= 0) {
+            segmentEndSample = heldEnd;
         }
-
-        if (state == State.ENDING) {
-            endSegment();
+        if (heldBytes > 0 && listener != null) {
+            heldView.limit(heldBytes);
+            heldView.position(0);
+            listener.onSegmentData(heldView);
         }
+        clearHeld();
+        advance(samples);
+    }
 
-        if (state == State.IN_SPEECH || state == State.ENDING) {
-            currentSegmentDurationMs += frameDurationMs;
-            if (listener != null) {
-                listener.onSegmentData(pcm, offset, length);
-            }
-        } else {
-            bufferPreRoll(pcm, offset, length);
+    private void clearHeld() {
+        held.clear();
+        heldBytes = 0;
+        heldEnd = -1;
+    }
+
+    private void advance(long samples) {
+        segmentLength += samples;
+        if (segmentLength >= maxSegment) {
+            splitSegment();
         }
     }
 
     private void startSegment() {
         Log.d(TAG, "Starting new segment.");
         state = State.IN_SPEECH;
-        currentSegmentDurationMs = 0;
+        continued = false;
+        segmentLength = 0;
+        lastSpeechAt = 0;
         if (listener != null) {
             listener.onSegmentStart(System.currentTimeMillis());
-            // Drain pre-roll buffer
-            for (byte[] data : preRollBuffer) {
-                listener.onSegmentData(data, 0, data.length);
-                currentSegmentDurationMs += data.length / bytesPerMs;
+        }
+        if (inRangeMode()) {
+            // Look back into the ring instead of replaying a copy
+            segmentStartSample = Math.max(0, framePosition - preRollSamples);
+            segmentEndSample = framePosition;
+            segmentLength += framePosition - segmentStartSample;
+        } else if (listener != null && preRollFill > 0) {
+            // Drain pre-roll, in two slices if it wraps
+            int start = preRollEnd - preRollFill;
+            if (start < 0) {
+                drainPreRoll(start + preRoll.length, -start);
+                if (preRollEnd > 0) drainPreRoll(0, preRollEnd);
+            } else {
+                drainPreRoll(start, preRollFill);
             }
+            segmentLength += preRollFill / bytesPerSample;
         }
-        preRollBuffer.clear();
-        preRollBufferBytes = 0;
+        preRollEnd = 0;
+        preRollFill = 0;
     }
 
-    private void endSegment() {
-        Log.d(TAG, "Ending segment.");
-        if (state == State.IDLE) return;
-        state = State.IDLE;
+    private void drainPreRoll(int start, int length) {
+        preRollView.limit(start + length);
+        preRollView.position(start);
+        listener.onSegmentData(preRollView);
+    }
+
+    /**
+     * Ends the segment at the maximum length and carries straight on with the next one, so no
+     * audio falls between them.
+     */
+    private void splitSegment() {
+        Log.d(TAG, "Splitting segment at the maximum length.");
+        final long end = segmentEndSample;
+        finishSegment(System.currentTimeMillis());
+        continued = true;
+        segmentLength = 0;
+        lastSpeechAt = 0;
         if (listener != null) {
-            listener.onSegmentEnd(System.currentTimeMillis());
+            listener.onSegmentStart(System.currentTimeMillis());
         }
-        reset();
+        segmentStartSample = end;
+        segmentEndSample = end;
     }
 
-    private void bufferPreRoll(byte[] pcm, int offset, int length) {
-        byte[] data = new byte[length];
-        System.arraycopy(pcm, offset, data, 0, length);
-        preRollBuffer.add(data);
-        preRollBufferBytes += length;
+    private void finishSegment(long timestamp) {
+        if (listener != null) {
+            if (segmentStartSample >= 0 && segmentEndSample > segmentStartSample) {
+                listener.onSegmentRange(segmentStartSample, segmentEndSample);
+            }
+            listener.onSegmentStats(stats);
+        }
+        // The listener may keep the stats; the next segment counts into new ones
+        stats = new SegmentStats(sampleRate);
+        if (listener != null) {
+            listener.onSegmentEnd(timestamp);
+        }
+    }
 
-        long preRollTargetBytes = preRollMs * bytesPerMs;
-        while (preRollBufferBytes > preRollTargetBytes) {
-            byte[] oldest = preRollBuffer.poll();
-            if (oldest != null) {
-                preRollBufferBytes -= oldest.length;
+    private void endSegment() {
+        if (state == State.IDLE) return;
+        state = State.IDLE;
+        final long timestamp = System.currentTimeMillis();
+        if (continued || lastSpeechAt >= minSegment) {
+            Log.d(TAG, "Ending segment.");
+            finishSegment(timestamp);
+        } else {
+            Log.d(TAG, "Discarding segment of " + lastSpeechAt * 1000 / sampleRate + " ms.");
+            stats.clear();
+            if (listener != null) {
+                listener.onSegmentDiscarded(timestamp);
             }
         }
+        // Held gap audio leads into whatever comes next
+        if (heldBytes > 0) {
+            heldView.limit(heldBytes);
+            heldView.position(0);
+            bufferPreRoll(heldView);
+        }
+        clearHeld();
+        sinceSpeech = 0;
+        segmentLength = 0;
+        lastSpeechAt = 0;
+        segmentStartSample = -1;
+        segmentEndSample = -1;
     }
 
-    private void reset() {
-        speechDurationMs = 0;
-        silenceDurationMs = 0;
-        currentSegmentDurationMs = 0;
-        preRollBuffer.clear();
-        preRollBufferBytes = 0;
+    private void bufferPreRoll(ByteBuffer pcm) {
+        final int capacity = preRoll.length;
+        if (capacity == 0 || inRangeMode()) return;
+        final int position = pcm.position();
+        try {
+            int length = pcm.remaining();
+            if (length > capacity) {
+                // Only the newest capacity bytes survive
+                pcm.position(pcm.limit() - capacity);
+                length = capacity;
+            }
+            int first = Math.min(length, capacity - preRollEnd);
+            pcm.get(preRoll, preRollEnd, first);
+            pcm.get(preRoll, 0, length - first);
+            preRollEnd = (preRollEnd + length) % capacity;
+            preRollFill = Math.min(capacity, preRollFill + length);
+        } finally {
+            pcm.position(position);
+        }
     }
 
     @Override
@@ -1,8 +1,18 @@
 package eu.mrogalski.saidit.export;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 
 public interface AudioExporter {
-    void export(File pcmFile, File outputFile, int sampleRate, int channels, int bitRate) throws IOException;
+    /**
+     * Encodes everything source holds into outputFile. Closing the source is up to the caller.
+     */
+    void export(PcmSource source, File outputFile, int sampleRate, int channels, int bitRate) throws IOException;
+
+    default void export(File pcmFile, File outputFile, int sampleRate, int channels, int bitRate) throws IOException {
+        try (PcmSource source = PcmSource.of(new FileInputStream(pcmFile))) {
+            export(source, outputFile, sampleRate, channels, bitRate);
+        }
+    }
 }
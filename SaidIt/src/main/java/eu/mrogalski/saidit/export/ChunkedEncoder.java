@@ -0,0 +1,202 @@
+package eu.mrogalski.saidit.export;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Encodes a long export as consecutive chunks, several at once, each on an encoder of its own.
+ *
+ * Every chunk starts a few frames early so that its encoder is past its priming by the chunk's
+ * first frame, and runs a few frames late so that its last frames are encoded against the audio
+ * that follows rather than against the silence an encoder flushes with. Those frames are dropped
+ * by timestamp, and the rest is muxed in order with timestamps shifted to where the chunk lies in
+ * the export.
+ * The coordinating thread only waits for chunks and muxes; the encoding runs on the encoders'
+ * threads.
+ */
+final class ChunkedEncoder {
+    private static final String TAG = "ChunkedEncoder";
+    private static final int CHUNK_SECONDS = 30;
+    private static final int MAX_WORKERS = 4;
+    // Frames encoded ahead of each chunk and dropped
+    private static final int PRIMING_FRAMES = 3;
+    // Frames encoded past each chunk but the last and dropped
+    private static final int TAIL_FRAMES = 2;
+
+    private ChunkedEncoder() {}
+
+    /**
+     * Encodes source into outputFile, if it is worth splitting.
+     * @param frameSamples Samples per encoded frame; chunks start on frame boundaries.
+     * @return false, with source untouched, if the source is live, unsliceable or short, or
+     *         the device has a single core.
+     */
+    static boolean encode(MediaFormat format, PcmSource source, File outputFile, int muxerFormat,
+                          int frameSamples) throws IOException {
+        final int workers = Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors());
+        final long total = source.remaining();
+        final int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        final int bytesPerFrame = 2 * format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        final long frameBytes = (long) frameSamples * bytesPerFrame;
+        final long chunkBytes = (long) CHUNK_SECONDS * sampleRate / frameSamples * frameBytes;
+        if (workers < 2 || total <= chunkBytes) return false;
+
+        final int count = (int) ((total + chunkBytes - 1) / chunkBytes);
+        final Chunk[] chunks = new Chunk[count];
+        for (int i = 0; i < count; i++) {
+            final long start = i * chunkBytes;
+            final long primed = Math.max(0, start - PRIMING_FRAMES * frameBytes);
+            final long end = Math.min(total, start + chunkBytes);
+            final PcmSource slice = source.slice(primed, Math.min(total, end + TAIL_FRAMES * frameBytes));
+            if (slice == null) {
+                closeAll(chunks);
+                return false;
+            }
+            chunks[i] = new Chunk(slice, start / bytesPerFrame * 1_000_000L / sampleRate,
+                    (start - primed) / bytesPerFrame * 1_000_000L / sampleRate,
+                    (end - primed) / bytesPerFrame * 1_000_000L / sampleRate,
+                    i == count - 1);
+        }
+
+        final long halfFrameUs = frameSamples * 500_000L / sampleRate;
+        final ArrayDeque<Chunk> running = new ArrayDeque<>(workers);
+        final MediaMuxer muxer = new MediaMuxer(outputFile.getAbsolutePath(), muxerFormat);
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        boolean started = false;
+        int next = 0;
+        try {
+            int track = -1;
+            while (next < count || !running.isEmpty()) {
+                while (running.size() < workers && next < count) {
+                    chunks[next].launch(format);
+                    running.add(chunks[next++]);
+                }
+                final Chunk chunk = running.poll();
+                chunk.finish();
+                if (track < 0) {
+                    if (chunk.format == null) throw new IOException("Encoder produced no format");
+                    track = muxer.addTrack(chunk.format);
+                    muxer.start();
+                    started = true;
+                }
+                final ByteBuffer data = ByteBuffer.wrap(chunk.data);
+                for (int i = 0; i < chunk.frames; i++) {
+                    final long pts = chunk.pts[i];
+                    if (pts < chunk.skipUs - halfFrameUs) continue;
+                    if (!chunk.last && pts >= chunk.endUs - halfFrameUs) break;
+                    info.set(chunk.offsets[i], chunk.sizes[i], chunk.startUs + pts - chunk.skipUs,
+                            chunk.flags[i] & ~MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    muxer.writeSampleData(track, data, info);
+                }
+                chunk.data = null;
+            }
+        } finally {
+            closeAll(chunks);
+            try {
+                if (started) muxer.stop();
+            } finally {
+                muxer.release();
+            }
+        }
+        return true;
+    }
+
+    private static void closeAll(Chunk[] chunks) {
+        for (Chunk chunk : chunks) {
+            if (chunk == null) continue;
+            try {
+                chunk.finish();
+            } catch (IOException e) {
+                Log.w(TAG, "Error finishing chunk", e);
+            }
+        }
+    }
+
+    /**
+     * One chunk's encoder, collecting its frames in memory until they can be muxed.
+     */
+    private static final class Chunk implements MediaCodecEncoder.Output {
+        private final PcmSource slice;
+        // Where the chunk starts in the export
+        final long startUs;
+        // Where the chunk itself starts and ends in the slice
+        final long skipUs;
+        final long endUs;
+        final boolean last;
+        private MediaCodecEncoder encoder;
+        private boolean finished;
+
+        // Written on the encoder's thread, read once it is closed
+        MediaFormat format;
+        byte[] data = new byte[64 * 1024];
+        private int dataLength;
+        int[] offsets = new int[256];
+        int[] sizes = new int[256];
+        long[] pts = new long[256];
+        int[] flags = new int[256];
+        int frames;
+
+        Chunk(PcmSource slice, long startUs, long skipUs, long endUs, boolean last) {
+            this.slice = slice;
+            this.startUs = startUs;
+            this.skipUs = skipUs;
+            this.endUs = endUs;
+            this.last = last;
+        }
+
+        void launch(MediaFormat format) throws IOException {
+            encoder = new MediaCodecEncoder(format, this, Process.THREAD_PRIORITY_BACKGROUND, slice);
+        }
+
+        /**
+         * Waits for the encoder to finish and closes the slice. Does nothing the second time.
+         */
+        void finish() throws IOException {
+            if (finished) return;
+            finished = true;
+            try {
+                if (encoder != null) encoder.close();
+            } finally {
+                slice.close();
+            }
+        }
+
+        @Override
+        public void start(MediaFormat format) {
+            this.format = format;
+        }
+
+        @Override
+        public void write(ByteBuffer frame, MediaCodec.BufferInfo info) {
+            final int size = frame.remaining();
+            if (dataLength + size > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + size));
+            }
+            if (frames == sizes.length) {
+                offsets = Arrays.copyOf(offsets, frames * 2);
+                sizes = Arrays.copyOf(sizes, frames * 2);
+                pts = Arrays.copyOf(pts, frames * 2);
+                flags = Arrays.copyOf(flags, frames * 2);
+            }
+            frame.get(data, dataLength, size);
+            offsets[frames] = dataLength;
+            sizes[frames] = size;
+            pts[frames] = info.presentationTimeUs;
+            flags[frames++] = info.flags;
+            dataLength += size;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
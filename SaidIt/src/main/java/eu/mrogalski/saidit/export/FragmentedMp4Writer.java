@@ -0,0 +1,326 @@
+package eu.mrogalski.saidit.export;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Muxes a single AAC track into fragmented MP4.
+ *
+ * The header (ftyp and a moov without samples) is written up front, then every second or so of
+ * audio goes out as a moof describing it followed by an mdat holding it. Whatever the file holds
+ * up to its last complete fragment therefore plays, however the process ends, and finishing only
+ * writes the fragment in progress.
+ */
+public final class FragmentedMp4Writer implements Closeable {
+    /** Samples per AAC-LC frame. */
+    static final int FRAME_SAMPLES = 1024;
+    private static final int TRACK_ID = 1;
+    private static final int MOVIE_TIMESCALE = 1000;
+    // tfhd flag: sample data offsets count from the moof
+    private static final int DEFAULT_BASE_IS_MOOF = 0x020000;
+    // trun flags: a data offset, and a size per sample
+    private static final int TRUN_FLAGS = 0x000001 | 0x000200;
+    // Upper bounds of the boxes without the variable parts
+    private static final int HEADER_BYTES = 1024;
+    private static final int FRAGMENT_HEADER_BYTES = 128;
+
+    private final FileChannel channel;
+    private final int sampleRate;
+    private final int framesPerFragment;
+    // Header boxes, reused for every fragment
+    private ByteBuffer boxes = ByteBuffer.allocate(HEADER_BYTES);
+    // Frames of the fragment in progress
+    private byte[] data = new byte[16 * 1024];
+    private int dataLength;
+    private int[] sizes = new int[64];
+    private int frames;
+    private int sequence;
+    private long framesWritten;
+
+    /**
+     * Writes the header right away.
+     * @param audioSpecificConfig The AAC AudioSpecificConfig, as in the encoder's csd-0.
+     * @param fragmentMs Audio per fragment, at most what a crash may lose.
+     */
+    public FragmentedMp4Writer(File file, int sampleRate, int channels, byte[] audioSpecificConfig,
+                               int bitRate, int fragmentMs) throws IOException {
+        this.sampleRate = sampleRate;
+        this.framesPerFragment = Math.max(1, (int) ((long) fragmentMs * sampleRate / 1000 / FRAME_SAMPLES));
+        this.channel = new FileOutputStream(file).getChannel();
+        try {
+            writeHeader(channels, audioSpecificConfig, bitRate);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return an encoder output muxing into file as soon as the encoder's format is known.
+     */
+    public static MediaCodecEncoder.Output output(File file, int fragmentMs) {
+        return new MediaCodecEncoder.Output() {
+            private FragmentedMp4Writer writer;
+
+            @Override
+            public void start(MediaFormat format) throws IOException {
+                final ByteBuffer csd = format.getByteBuffer("csd-0");
+                final byte[] config = new byte[csd.remaining()];
+                csd.duplicate().get(config);
+                writer = new FragmentedMp4Writer(file,
+                        format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                        format.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                        config,
+                        format.getInteger(MediaFormat.KEY_BIT_RATE, 0),
+                        fragmentMs);
+            }
+
+            @Override
+            public void write(ByteBuffer data, MediaCodec.BufferInfo info) throws IOException {
+                writer.write(data);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (writer != null) writer.close();
+            }
+        };
+    }
+
+    /**
+     * Adds one AAC frame, the bytes between the buffer's position and limit.
+     */
+    public void write(ByteBuffer frame) throws IOException {
+        final int size = frame.remaining();
+        if (dataLength + size > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + size));
+        }
+        if (frames == sizes.length) {
+            sizes = Arrays.copyOf(sizes, sizes.length * 2);
+        }
+        frame.duplicate().get(data, dataLength, size);
+        dataLength += size;
+        sizes[frames++] = size;
+        if (frames >= framesPerFragment) {
+            writeFragment();
+        }
+    }
+
+    /**
+     * @return AAC frames in complete fragments.
+     */
+    public long getFramesWritten() {
+        return framesWritten;
+    }
+
+    /**
+     * Writes the fragment in progress and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (frames > 0) writeFragment();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeHeader(int channels, byte[] audioSpecificConfig, int bitRate) throws IOException {
+        reset(HEADER_BYTES + audioSpecificConfig.length);
+        int ftyp = begin("ftyp");
+        ascii("M4A ");
+        boxes.putInt(0);
+        ascii("M4A ");
+        ascii("isom");
+        ascii("iso6");
+        ascii("mp41");
+        end(ftyp);
+
+        int moov = begin("moov");
+        int mvhd = beginFull("mvhd", 0, 0);
+        boxes.putInt(0).putInt(0).putInt(MOVIE_TIMESCALE).putInt(0);
+        boxes.putInt(0x00010000).putShort((short) 0x0100).putShort((short) 0).putLong(0);
+        matrix();
+        for (int i = 0; i < 6; i++) boxes.putInt(0);
+        boxes.putInt(TRACK_ID + 1);
+        end(mvhd);
+
+        int trak = begin("trak");
+        // Enabled, in movie
+        int tkhd = beginFull("tkhd", 0, 0x000003);
+        boxes.putInt(0).putInt(0).putInt(TRACK_ID).putInt(0).putInt(0);
+        boxes.putLong(0).putShort((short) 0).putShort((short) 0).putShort((short) 0x0100).putShort((short) 0);
+        matrix();
+        boxes.putInt(0).putInt(0);
+        end(tkhd);
+
+        int mdia = begin("mdia");
+        int mdhd = beginFull("mdhd", 0, 0);
+        // Language "und"
+        boxes.putInt(0).putInt(0).putInt(sampleRate).putInt(0).putShort((short) 0x55c4).putShort((short) 0);
+        end(mdhd);
+        int hdlr = beginFull("hdlr", 0, 0);
+        boxes.putInt(0);
+        ascii("soun");
+        boxes.putInt(0).putInt(0).putInt(0);
+        ascii("SoundHandler");
+        boxes.put((byte) 0);
+        end(hdlr);
+
+        int minf = begin("minf");
+        int smhd = beginFull("smhd", 0, 0);
+        boxes.putInt(0);
+        end(smhd);
+        int dinf = begin("dinf");
+        int dref = beginFull("dref", 0, 0);
+        boxes.putInt(1);
+        // Self-contained
+        end(beginFull("url ", 0, 1));
+        end(dref);
+        end(dinf);
+
+        int stbl = begin("stbl");
+        int stsd = beginFull("stsd", 0, 0);
+        boxes.putInt(1);
+        int mp4a = begin("mp4a");
+        boxes.putInt(0).putShort((short) 0).putShort((short) 1);
+        boxes.putLong(0).putShort((short) channels).putShort((short) 16).putInt(0);
+        boxes.putInt(sampleRate << 16);
+        esds(audioSpecificConfig, bitRate);
+        end(mp4a);
+        end(stsd);
+        // No samples outside fragments
+        end(fullWithCount("stts"));
+        end(fullWithCount("stsc"));
+        int stsz = beginFull("stsz", 0, 0);
+        boxes.putInt(0).putInt(0);
+        end(stsz);
+        end(fullWithCount("stco"));
+        end(stbl);
+        end(minf);
+        end(mdia);
+        end(trak);
+
+        int mvex = begin("mvex");
+        int trex = beginFull("trex", 0, 0);
+        boxes.putInt(TRACK_ID).putInt(1).putInt(FRAME_SAMPLES).putInt(0).putInt(0);
+        end(trex);
+        end(mvex);
+        end(moov);
+
+        boxes.flip();
+        writeFully(boxes);
+    }
+
+    private void esds(byte[] config, int bitRate) {
+        int esds = beginFull("esds", 0, 0);
+        // ES_Descriptor: id, no flags
+        boxes.put((byte) 0x03).put((byte) (3 + 2 + 13 + 2 + config.length + 3));
+        boxes.putShort((short) 0).put((byte) 0);
+        // DecoderConfigDescriptor: MPEG-4 audio, audio stream
+        boxes.put((byte) 0x04).put((byte) (13 + 2 + config.length));
+        boxes.put((byte) 0x40).put((byte) 0x15);
+        boxes.put((byte) 0).putShort((short) 0);
+        boxes.putInt(bitRate).putInt(bitRate);
+        // DecoderSpecificInfo
+        boxes.put((byte) 0x05).put((byte) config.length).put(config);
+        // SLConfigDescriptor: predefined for MP4
+        boxes.put((byte) 0x06).put((byte) 1).put((byte) 0x02);
+        end(esds);
+    }
+
+    private void writeFragment() throws IOException {
+        reset(FRAGMENT_HEADER_BYTES + 4 * frames);
+        int moof = begin("moof");
+        int mfhd = beginFull("mfhd", 0, 0);
+        boxes.putInt(++sequence);
+        end(mfhd);
+        int traf = begin("traf");
+        int tfhd = beginFull("tfhd", 0, DEFAULT_BASE_IS_MOOF);
+        boxes.putInt(TRACK_ID);
+        end(tfhd);
+        int tfdt = beginFull("tfdt", 1, 0);
+        boxes.putLong(framesWritten * FRAME_SAMPLES);
+        end(tfdt);
+        int trun = beginFull("trun", 0, TRUN_FLAGS);
+        boxes.putInt(frames);
+        final int dataOffset = boxes.position();
+        boxes.putInt(0);
+        for (int i = 0; i < frames; i++) {
+            boxes.putInt(sizes[i]);
+        }
+        end(trun);
+        end(traf);
+        end(moof);
+        // Samples start right after the mdat header
+        boxes.putInt(dataOffset, boxes.position() - moof + 8);
+        boxes.putInt(8 + dataLength);
+        ascii("mdat");
+        boxes.flip();
+        writeFully(boxes);
+        writeFully(ByteBuffer.wrap(data, 0, dataLength));
+
+        framesWritten += frames;
+        frames = 0;
+        dataLength = 0;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private int begin(String type) {
+        final int start = boxes.position();
+        boxes.putInt(0);
+        ascii(type);
+        return start;
+    }
+
+    private int beginFull(String type, int version, int flags) {
+        final int start = begin(type);
+        boxes.putInt(version << 24 | flags);
+        return start;
+    }
+
+    private int fullWithCount(String type) {
+        final int start = beginFull(type, 0, 0);
+        boxes.putInt(0);
+        return start;
+    }
+
+    private void end(int start) {
+        boxes.putInt(start, boxes.position() - start);
+    }
+
+    private void ascii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            boxes.put((byte) text.charAt(i));
+        }
+    }
+
+    private void matrix() {
+        boxes.putInt(0x00010000).putInt(0).putInt(0);
+        boxes.putInt(0).putInt(0x00010000).putInt(0);
+        boxes.putInt(0).putInt(0).putInt(0x40000000);
+    }
+
+    /**
+     * Makes room for boxes of up to bytes in total, starting over.
+     */
+    private void reset(int bytes) {
+        if (boxes.capacity() < bytes) {
+            boxes = ByteBuffer.allocate(Math.max(bytes, boxes.capacity() * 2));
+        }
+        boxes.clear();
+    }
+}
@@ -0,0 +1,496 @@
+package eu.mrogalski.saidit.export;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import eu.mrogalski.saidit.AudioMemory;
+import eu.mrogalski.saidit.pipeline.SpscQueue;
+
+/**
+ * PCM encoder running MediaCodec in asynchronous mode on a thread of its own.
+ *
+ * The producer copies PCM into one of a fixed pool of blocks and hands it over through a
+ * {@link SpscQueue}, the way a queued {@link eu.mrogalski.saidit.pipeline.Link} does. The codec
+ * thread fills input buffers from the queued blocks as the codec frees them and passes every
+ * output buffer to the {@link Output}. Used blocks travel back to the producer through a second
+ * queue, so the steady state neither locks nor allocates, and the producer never waits on the
+ * codec unless it asks to.
+ *
+ * Alternatively the codec thread pulls from a {@link PcmSource} straight into the input buffers,
+ * with no blocks in between, e.g. from {@link AudioMemory} while it is being recorded.
+ *
+ * Timestamps count the samples queued so far, so they are exact whatever the block and buffer
+ * sizes.
+ */
+public final class MediaCodecEncoder implements Closeable {
+    private static final String TAG = "MediaCodecEncoder";
+    private static final int BLOCK_BYTES = 8192;
+    // Pause between checks for a free block while the producer waits
+    private static final long WAIT_NANOS = 200_000;
+    // Finishing gives up once the codec has neither taken PCM nor produced a frame for this long
+    private static final long STALL_TIMEOUT_MS = 10_000;
+    // Releasing includes finalizing the output, e.g. MediaMuxer writing the MP4 index
+    private static final long RELEASE_TIMEOUT_MS = 10_000;
+
+    /**
+     * Receives the encoded stream, on the codec thread.
+     */
+    public interface Output extends Closeable {
+        /**
+         * Called once, before the first sample.
+         */
+        void start(MediaFormat format) throws IOException;
+
+        /**
+         * @param data The encoded sample, between position and limit; only valid during the call.
+         */
+        void write(ByteBuffer data, MediaCodec.BufferInfo info) throws IOException;
+    }
+
+    /**
+     * @return an output writing a single track through MediaMuxer.
+     */
+    public static Output muxer(File file, int outputFormat) throws IOException {
+        final MediaMuxer muxer = new MediaMuxer(file.getAbsolutePath(), outputFormat);
+        return new Output() {
+            private int track = -1;
+
+            @Override
+            public void start(MediaFormat format) {
+                track = muxer.addTrack(format);
+                muxer.start();
+            }
+
+            @Override
+            public void write(ByteBuffer data, MediaCodec.BufferInfo info) {
+                muxer.writeSampleData(track, data, info);
+            }
+
+            @Override
+            public void close() {
+                try {
+                    if (track >= 0) muxer.stop();
+                } finally {
+                    muxer.release();
+                }
+            }
+        };
+    }
+
+    private final MediaCodec codec;
+    private final Output output;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final int sampleRate;
+    private final int bytesPerFrame;
+    // Null when pulling from a source
+    private final SpscQueue<ByteBuffer> pending;
+    private final SpscQueue<ByteBuffer> free;
+    private final PcmSource source;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Runnable feed = this::feed;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final CountDownLatch released = new CountDownLatch(1);
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean ending;
+    private volatile Exception error;
+
+    // Producer only, or the codec thread when pulling
+    private volatile long bytesQueued;
+    // Codec thread only
+    private volatile long framesOut;
+
+    // Producer only
+    private ByteBuffer filling;
+    private boolean closed;
+
+    // Codec thread only
+    private int[] inputs = new int[16];
+    private int inputHead;
+    private int inputCount;
+    private ByteBuffer feeding;
+    private long framesFed;
+    private boolean endQueued;
+
+    /**
+     * Configures and starts the codec. The output is closed with the encoder, or right away if
+     * the codec cannot be started.
+     * @param format Encoder format; sample rate and channel count describe the 16-bit PCM input.
+     * @param threadPriority Priority of the codec thread, see {@link android.os.Process}.
+     * @param poolBlocks Blocks of {@value #BLOCK_BYTES} bytes the producer can be ahead by.
+     */
+    public MediaCodecEncoder(MediaFormat format, Output output, int threadPriority, int poolBlocks) throws IOException {
+        this(format, output, threadPriority, poolBlocks, null);
+    }
+
+    /**
+     * Same as {@link #MediaCodecEncoder(MediaFormat, Output, int, int)}, but the codec thread
+     * reads the PCM from source itself and {@link #write} is not available. The stream ends when
+     * the source does, or on {@link #close()} once a live source has nothing more.
+     * @param source Read on the codec thread only; closing it is up to the caller.
+     */
+    public MediaCodecEncoder(MediaFormat format, Output output, int threadPriority, PcmSource source) throws IOException {
+        this(format, output, threadPriority, 0, source);
+    }
+
+    private MediaCodecEncoder(MediaFormat format, Output output, int threadPriority, int poolBlocks,
+                              PcmSource source) throws IOException {
+        this.output = output;
+        this.source = source;
+        this.sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        this.bytesPerFrame = 2 * format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        if (source == null) {
+            pending = new SpscQueue<>(poolBlocks);
+            free = new SpscQueue<>(poolBlocks);
+            for (int i = 0; i < poolBlocks; i++) {
+                free.offer(ByteBuffer.allocate(BLOCK_BYTES - BLOCK_BYTES % bytesPerFrame));
+            }
+        } else {
+            pending = null;
+            free = null;
+        }
+
+        thread = new HandlerThread(TAG, threadPriority);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        MediaCodec created = null;
+        try {
+            created = MediaCodec.createEncoderByType(format.getString(MediaFormat.KEY_MIME));
+            created.setCallback(callback, handler);
+            created.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            created.start();
+        } catch (IOException | RuntimeException e) {
+            if (created != null) created.release();
+            thread.quitSafely();
+            output.close();
+            throw e instanceof IOException ? (IOException) e : new IOException("Cannot start encoder", e);
+        }
+        codec = created;
+    }
+
+    /**
+     * Queues the PCM between the buffer's position and limit, leaving both as they were.
+     * Producer thread only.
+     * @param wait Whether to wait for the codec when the pool is exhausted instead of dropping
+     *             what does not fit.
+     * @return false if some of the PCM was dropped.
+     */
+    public boolean write(ByteBuffer data, boolean wait) throws IOException {
+        checkOpen();
+        final int position = data.position();
+        final int limit = data.limit();
+        try {
+            while (data.hasRemaining()) {
+                if (filling == null && (filling = obtain(wait)) == null) {
+                    dropped.addAndGet(data.remaining());
+                    return false;
+                }
+                final int count = Math.min(filling.remaining(), data.remaining());
+                data.limit(data.position() + count);
+                filling.put(data);
+                data.limit(limit);
+                bytesQueued += count;
+                if (!filling.hasRemaining()) submit();
+            }
+            return true;
+        } finally {
+            data.limit(limit);
+            data.position(position);
+        }
+    }
+
+    /**
+     * Queues everything the source holds, reading it straight into the pooled blocks and waiting
+     * for the codec as needed. Producer thread only.
+     */
+    public void write(PcmSource source) throws IOException {
+        checkOpen();
+        while (true) {
+            if (filling == null) filling = obtain(true);
+            final int read = source.read(filling);
+            if (read < 0) return;
+            bytesQueued += read;
+            if (!filling.hasRemaining()) submit();
+        }
+    }
+
+    private ByteBuffer obtain(boolean wait) throws IOException {
+        ByteBuffer block;
+        while ((block = free.poll()) == null) {
+            if (!wait) return null;
+            checkFailed();
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+        return block;
+    }
+
+    private void submit() {
+        filling.flip();
+        // Never fails: there are no more blocks than queue slots
+        pending.offer(filling);
+        filling = null;
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            handler.post(feed);
+        }
+    }
+
+    /**
+     * Tells the codec thread a live source has more PCM. Never waits.
+     */
+    public void available() {
+        schedule();
+    }
+
+    private void checkOpen() throws IOException {
+        if (source != null) throw new IllegalStateException("Encoder pulls from a source");
+        if (closed) throw new IOException("Encoder is closed");
+        checkFailed();
+    }
+
+    private void checkFailed() throws IOException {
+        final Exception e = error;
+        if (e != null) throw new IOException("Encoding failed", e);
+    }
+
+    private final MediaCodec.Callback callback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(MediaCodec mediaCodec, int index) {
+            if (inputCount == inputs.length) {
+                final int[] grown = new int[inputs.length * 2];
+                for (int i = 0; i < inputCount; i++) {
+                    grown[i] = inputs[(inputHead + i) % inputs.length];
+                }
+                inputs = grown;
+                inputHead = 0;
+            }
+            inputs[(inputHead + inputCount++) % inputs.length] = index;
+            feed();
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec mediaCodec, int index, MediaCodec.BufferInfo info) {
+            try {
+                // Codec config travels in the output format instead
+                if (info.size > 0 && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                    final ByteBuffer data = mediaCodec.getOutputBuffer(index);
+                    data.limit(info.offset + info.size);
+                    data.position(info.offset);
+                    output.write(data, info);
+                    framesOut++;
+                }
+                mediaCodec.releaseOutputBuffer(index, false);
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+                return;
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                done.countDown();
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec mediaCodec, MediaCodec.CodecException e) {
+            fail(e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec mediaCodec, MediaFormat format) {
+            try {
+                output.start(format);
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+        }
+    };
+
+    /**
+     * Fills every free input buffer from the queued blocks. Codec thread only.
+     */
+    private void feed() {
+        // Clear first so blocks queued while feeding schedule another pass
+        scheduled.set(false);
+        if (source != null) {
+            pull();
+            return;
+        }
+        try {
+            while (inputCount > 0 && !endQueued && error == null) {
+                if (feeding == null) {
+                    // Read before polling: the last block is queued before ending is set
+                    final boolean end = ending;
+                    feeding = pending.poll();
+                    if (feeding == null) {
+                        if (end) queueEnd();
+                        return;
+                    }
+                }
+                final int index = inputs[inputHead];
+                final ByteBuffer input = codec.getInputBuffer(index);
+                input.clear();
+                final int count = Math.min(input.remaining() - input.remaining() % bytesPerFrame, feeding.remaining());
+                final int limit = feeding.limit();
+                feeding.limit(feeding.position() + count);
+                input.put(feeding);
+                feeding.limit(limit);
+                codec.queueInputBuffer(index, 0, count, framesFed * 1_000_000L / sampleRate, 0);
+                framesFed += count / bytesPerFrame;
+                takeInput();
+                if (!feeding.hasRemaining()) {
+                    feeding.clear();
+                    free.offer(feeding);
+                    feeding = null;
+                }
+            }
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Reads the source into every free input buffer. Codec thread only.
+     */
+    private void pull() {
+        try {
+            while (inputCount > 0 && !endQueued && error == null) {
+                // Read first: everything the producer wrote before close() is in the source by then
+                final boolean end = ending;
+                final int index = inputs[inputHead];
+                final ByteBuffer input = codec.getInputBuffer(index);
+                input.clear();
+                input.limit(input.limit() - input.limit() % bytesPerFrame);
+                final int count = source.read(input);
+                if (count < 0 || (count == 0 && end)) {
+                    queueEnd();
+                } else if (count == 0) {
+                    // Caught up with a live source; available() brings us back
+                    return;
+                } else {
+                    codec.queueInputBuffer(index, 0, count, framesFed * 1_000_000L / sampleRate, 0);
+                    framesFed += count / bytesPerFrame;
+                    bytesQueued += count;
+                    takeInput();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private void queueEnd() {
+        codec.queueInputBuffer(inputs[inputHead], 0, 0, framesFed * 1_000_000L / sampleRate,
+                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        takeInput();
+        endQueued = true;
+    }
+
+    private void takeInput() {
+        inputHead = (inputHead + 1) % inputs.length;
+        inputCount--;
+    }
+
+    private void fail(Exception e) {
+        if (error == null) {
+            Log.e(TAG, "Encoder failed", e);
+            error = e;
+        }
+        done.countDown();
+    }
+
+    /**
+     * @return PCM bytes accepted so far, or fed to the codec when pulling.
+     */
+    public long getBytesQueued() {
+        return bytesQueued;
+    }
+
+    /**
+     * @return PCM bytes dropped because the codec fell behind.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Encodes what is still queued, or what is left of the source, ends the stream and releases
+     * the codec, the output and the thread. Returns once the output is finished, however long
+     * that takes while the codec keeps going, or throws if anything failed, finishing the output
+     * included, or if the codec stalled. Producer thread only.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (error == null) {
+                if (filling != null && filling.position() > 0) {
+                    submit();
+                }
+                ending = true;
+                schedule();
+                long progress = -1;
+                while (!done.await(STALL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    final long now = bytesQueued + framesOut;
+                    if (now == progress) {
+                        fail(new IOException("Encoder stopped making progress"));
+                        break;
+                    }
+                    progress = now;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(e);
+        } finally {
+            handler.post(this::release);
+            thread.quitSafely();
+            try {
+                if (!released.await(RELEASE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    fail(new IOException("Encoder output was not finished in time"));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(e);
+            }
+        }
+        checkFailed();
+    }
+
+    /**
+     * Codec thread only, so that no callback runs into a released codec.
+     */
+    private void release() {
+        try {
+            try {
+                codec.stop();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Error stopping codec", e);
+            }
+            codec.release();
+            try {
+                output.close();
+            } catch (IOException | RuntimeException e) {
+                if (error == null) error = e;
+            }
+        } finally {
+            released.countDown();
+        }
+    }
+}
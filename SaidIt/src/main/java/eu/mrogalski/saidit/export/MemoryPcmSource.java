@@ -0,0 +1,92 @@
+package eu.mrogalski.saidit.export;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import eu.mrogalski.saidit.AudioMemory;
+
+/**
+ * A range of {@link AudioMemory}. Samples are put into the target straight from the ring through
+ * {@link AudioMemory.Cursor#readIntact}; those close to being overwritten, or already in the
+ * compressed tier, go through {@link AudioMemory#read(long, int, AudioMemory.Consumer)} and its
+ * copy instead. Samples the ring loses before they are reached are skipped. A range ending at
+ * Long.MAX_VALUE follows the writer until {@link #endAt} gives it an end.
+ */
+final class MemoryPcmSource implements PcmSource {
+    private final AudioMemory memory;
+    // Only used for in-place reads, seeked to position first
+    private final AudioMemory.Cursor cursor;
+    private final long start;
+    // Written once by endAt() when following, from any thread
+    private volatile long end;
+    private long position;
+    // Target of the current read
+    private ByteBuffer dst;
+    private final AudioMemory.ViewConsumer view = piece -> dst.put(piece);
+    private final AudioMemory.Consumer copy = (array, offset, count) -> {
+        dst.put(array, offset, count);
+        return count;
+    };
+
+    MemoryPcmSource(AudioMemory memory, long fromSample, long toSample) {
+        this.memory = memory;
+        this.cursor = memory.newCursor("export");
+        this.start = fromSample;
+        this.position = fromSample;
+        this.end = toSample;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        final long end = this.end;
+        if (position >= end) return -1;
+        final int samples = (int) Math.min(dst.remaining() / AudioMemory.BYTES_PER_SAMPLE, end - position);
+        if (samples == 0) return 0;
+        final int start = dst.position();
+        this.dst = dst;
+        try {
+            cursor.seek(position);
+            if (cursor.readIntact(samples, view) > 0) {
+                position = cursor.getPosition();
+            } else {
+                // Drop anything the writer reached while it was being put
+                dst.position(start);
+                final long next = memory.read(position, samples, copy);
+                if (next > position) {
+                    position = next;
+                } else if (end != Long.MAX_VALUE) {
+                    // Nothing readable any more: the range ends early
+                    position = end;
+                }
+            }
+        } finally {
+            this.dst = null;
+        }
+        final int read = dst.position() - start;
+        return read > 0 || position < end ? read : -1;
+    }
+
+    @Override
+    public void endAt(long sample) {
+        if (end == Long.MAX_VALUE) end = Math.max(start, sample);
+    }
+
+    @Override
+    public long remaining() {
+        final long end = this.end;
+        return end == Long.MAX_VALUE ? -1 : (end - position) * AudioMemory.BYTES_PER_SAMPLE;
+    }
+
+    @Override
+    public PcmSource slice(long from, long to) {
+        final long end = this.end;
+        if (end == Long.MAX_VALUE) return null;
+        return new MemoryPcmSource(memory, start + from / AudioMemory.BYTES_PER_SAMPLE,
+                Math.min(end, start + to / AudioMemory.BYTES_PER_SAMPLE));
+    }
+
+    @Override
+    public void close() {
+        position = end;
+    }
+}
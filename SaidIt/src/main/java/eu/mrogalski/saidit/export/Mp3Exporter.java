@@ -1,14 +1,18 @@
 package eu.mrogalski.saidit.export;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
+/**
+ * Lame keeps its encoder in native statics, so unlike the MediaCodec exporters this one cannot
+ * split an export across encoders and always encodes it front to back.
+ */
 public class Mp3Exporter implements AudioExporter {
 
     @Override
-    public void export(File pcmFile, File outputFile, int sampleRate, int channels, int bitRate) throws IOException {
+    public void export(PcmSource source, File outputFile, int sampleRate, int channels, int bitRate) throws IOException {
         int bufferSize = 7200 + (int) (1.25 * 7200); // Recommended buffer size for MP3 encoding
         byte[] mp3Buffer = new byte[bufferSize];
         short[] pcmBuffer = new short[bufferSize];
@@ -21,14 +25,15 @@ public class Mp3Exporter implements AudioExporter {
         try {
             Lame.init(sampleRate, channels, sampleRate, bitRateKbps, 2); // 2 = High quality
 
-            try (FileInputStream fis = new FileInputStream(pcmFile);
-                 FileOutputStream fos = new FileOutputStream(outputFile)) {
+            try (FileOutputStream fos = new FileOutputStream(outputFile)) {
                 
                 // Assuming 16-bit PCM input
-                byte[] byteBuffer = new byte[bufferSize * 2]; // 2 bytes per sample
+                ByteBuffer input = ByteBuffer.allocate(bufferSize * 2); // 2 bytes per sample
+                byte[] byteBuffer = input.array();
                 int bytesRead;
 
-                while ((bytesRead = fis.read(byteBuffer)) > 0) {
+                while ((bytesRead = source.read(input)) != -1) {
+                    input.clear();
                     int samplesRead = bytesRead / 2;
                     for (int i = 0; i < samplesRead; i++) {
                         // Little-endian conversion
@@ -0,0 +1,77 @@
+package eu.mrogalski.saidit.export;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import eu.mrogalski.saidit.AudioMemory;
+
+/**
+ * Audio for an {@link AudioExporter}: 16-bit little-endian PCM, read once, front to back, in
+ * whatever chunks the encoder takes. Sources read straight from where the audio already is, so
+ * nothing but the encoded file is written.
+ */
+public interface PcmSource extends Closeable {
+    /**
+     * Reads whole samples into dst, from its position up to its limit.
+     * @return bytes read, 0 if a live source has nothing new yet, or -1 once the source is
+     *         exhausted.
+     */
+    int read(ByteBuffer dst) throws IOException;
+
+    /**
+     * @return bytes left to read, or -1 if unknown, as for a live source.
+     */
+    default long remaining() {
+        return -1;
+    }
+
+    /**
+     * Ends a live source: reads stop short of sample, and the source is exhausted once they get
+     * there. May be called from any thread; does nothing for sources that already have an end.
+     */
+    default void endAt(long sample) {
+    }
+
+    /**
+     * Opens part of the source as a source of its own, read independently of this one and of
+     * other slices, e.g. on another thread.
+     * @param from First byte, counted from where this source started.
+     * @param to Byte just past the slice.
+     * @return the slice, or null if the source cannot be sliced.
+     */
+    default PcmSource slice(long from, long to) throws IOException {
+        return null;
+    }
+
+    /**
+     * @return a source reading a stream to its end; closing the source closes the stream.
+     */
+    static PcmSource of(InputStream in) {
+        return new StreamPcmSource(in);
+    }
+
+    /**
+     * @return a source reading samples fromSample to toSample of memory, or null if memory holds
+     *         none of them.
+     */
+    static PcmSource of(AudioMemory memory, long fromSample, long toSample) {
+        return toSample > fromSample ? new MemoryPcmSource(memory, fromSample, toSample) : null;
+    }
+
+    /**
+     * @return a live source reading memory from fromSample on as it is written, never exhausted.
+     */
+    static PcmSource follow(AudioMemory memory, long fromSample) {
+        return new MemoryPcmSource(memory, fromSample, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return a source reading up to the newest seconds of memory, or null if it is empty.
+     */
+    static PcmSource lastSeconds(AudioMemory memory, int sampleRate, float seconds) {
+        final long end = memory.getWriteSamplePosition();
+        return of(memory, memory.getPositionBefore((long) (seconds * sampleRate)), end);
+    }
+}
@@ -0,0 +1,48 @@
+package eu.mrogalski.saidit.export;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * PCM from a stream, e.g. a raw file.
+ */
+final class StreamPcmSource implements PcmSource {
+    private final ReadableByteChannel channel;
+    private final ByteBuffer oddByte = ByteBuffer.allocate(1);
+
+    StreamPcmSource(InputStream in) {
+        this.channel = Channels.newChannel(in);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        final int limit = dst.limit();
+        dst.limit(dst.position() + (dst.remaining() & ~1));
+        try {
+            final int read = channel.read(dst);
+            if (read <= 0 || (read & 1) == 0) return read;
+            // Streams may split a sample; finish it, or drop it at the end
+            oddByte.clear();
+            while (oddByte.hasRemaining()) {
+                if (channel.read(oddByte) < 0) {
+                    dst.position(dst.position() - 1);
+                    return read - 1;
+                }
+            }
+            oddByte.flip();
+            dst.limit(limit);
+            dst.put(oddByte);
+            return read + 1;
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
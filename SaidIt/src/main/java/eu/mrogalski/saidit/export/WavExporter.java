@@ -1,7 +1,6 @@
 package eu.mrogalski.saidit.export;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -10,49 +9,47 @@ import java.nio.ByteOrder;
 public class WavExporter implements AudioExporter {
 
     @Override
-    public void export(File pcmFile, File outputFile, int sampleRate, int channels, int bitDepth) throws IOException {
+    public void export(PcmSource source, File outputFile, int sampleRate, int channels, int bitDepth) throws IOException {
         // bitDepth: 16, 24, 32 (float)
         
-        try (FileInputStream fis = new FileInputStream(pcmFile);
-             FileOutputStream fos = new FileOutputStream(outputFile)) {
+        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
 
             // Write WAV Header placeholder
             writeWavHeader(fos, 0, 0, sampleRate, channels, bitDepth);
 
             long totalAudioLen = 0;
-            byte[] buffer = new byte[4096];
+            ByteBuffer input = ByteBuffer.allocate(8192);
+            byte[] buffer = input.array();
+            byte[] converted = new byte[buffer.length / 2 * (bitDepth / 8)];
             int bytesRead;
 
-            if (bitDepth == 16) {
-                while ((bytesRead = fis.read(buffer)) != -1) {
+            while ((bytesRead = source.read(input)) != -1) {
+                input.clear();
+                if (bitDepth == 16) {
                     fos.write(buffer, 0, bytesRead);
                     totalAudioLen += bytesRead;
-                }
-            } else if (bitDepth == 24) {
-                // Convert 16-bit to 24-bit
-                while ((bytesRead = fis.read(buffer)) != -1) {
+                } else if (bitDepth == 24) {
+                    // Convert 16-bit to 24-bit
+                    int length = 0;
                     for (int i = 0; i < bytesRead; i += 2) {
                         int sample = (buffer[i] & 0xFF) | (buffer[i + 1] << 8); // 16-bit signed
                         // Convert to 24-bit: shift left by 8 bits
                         int sample24 = sample << 8;
-                        fos.write(sample24 & 0xFF);
-                        fos.write((sample24 >> 8) & 0xFF);
-                        fos.write((sample24 >> 16) & 0xFF);
-                        totalAudioLen += 3;
+                        converted[length++] = (byte) sample24;
+                        converted[length++] = (byte) (sample24 >> 8);
+                        converted[length++] = (byte) (sample24 >> 16);
                     }
-                }
-            } else if (bitDepth == 32) {
-                // Convert 16-bit to 32-bit float
-                ByteBuffer floatBuffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
-                while ((bytesRead = fis.read(buffer)) != -1) {
+                    fos.write(converted, 0, length);
+                    totalAudioLen += length;
+                } else if (bitDepth == 32) {
+                    // Convert 16-bit to 32-bit float
+                    ByteBuffer floatBuffer = ByteBuffer.wrap(converted).order(ByteOrder.LITTLE_ENDIAN);
                     for (int i = 0; i < bytesRead; i += 2) {
                         short sample = (short) ((buffer[i] & 0xFF) | (buffer[i + 1] << 8));
-                        float floatSample = sample / 32768.0f;
-                        floatBuffer.clear();
-                        floatBuffer.putFloat(floatSample);
-                        fos.write(floatBuffer.array());
-                        totalAudioLen += 4;
+                        floatBuffer.putFloat(sample / 32768.0f);
                     }
+                    fos.write(converted, 0, floatBuffer.position());
+                    totalAudioLen += floatBuffer.position();
                 }
             }
 
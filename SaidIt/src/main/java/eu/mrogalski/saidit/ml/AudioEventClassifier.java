@@ -1,6 +1,7 @@
 package eu.mrogalski.saidit.ml;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.tensorflow.lite.support.audio.TensorAudio;
@@ -8,53 +9,135 @@ import org.tensorflow.lite.support.common.FileUtil;
 import org.tensorflow.lite.support.label.Category;
 import org.tensorflow.lite.task.audio.classifier.AudioClassifier;
 import org.tensorflow.lite.task.audio.classifier.Classifications;
+import org.tensorflow.lite.task.core.BaseOptions;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.MappedByteBuffer;
 import java.util.List;
 
 public class AudioEventClassifier implements TfLiteClassifier {
     private static final String TAG = "AudioEventClassifier";
+    // Log latency every this many inferences
+    private static final int REPORT_EVERY = 100;
+
     private AudioClassifier classifier;
+    // Reused for every inference; each window fills it completely
+    private TensorAudio tensorAudio;
+    private Delegate delegate;
+    private float scoreThreshold;
+    private final LabelTable labels = new LabelTable();
+    private final InferenceStats stats = new InferenceStats();
 
     @Override
-    public void load(Context context, String modelPath, String labelPath) throws IOException {
+    public void load(Context context, String modelPath, String labelPath, Options options) throws IOException {
+        final MappedByteBuffer model;
         try {
-            classifier = AudioClassifier.createFromFile(context, modelPath);
+            // Mapped straight from the APK rather than copied onto the heap
+            model = FileUtil.loadMappedFile(context, modelPath);
         } catch (IOException e) {
-            Log.e(TAG, "Failed to create audio classifier.", e);
+            Log.e(TAG, "Failed to map model " + modelPath, e);
             throw e;
         }
+        try {
+            labels.load(FileUtil.loadLabels(context, labelPath));
+        } catch (IOException e) {
+            // Labels then come from the model's metadata as they are first seen
+            Log.w(TAG, "No label file " + labelPath + ", using model labels");
+        }
+        scoreThreshold = options.scoreThreshold;
+        try {
+            create(model, options.delegate, options);
+        } catch (RuntimeException e) {
+            if (options.delegate == Delegate.XNNPACK) {
+                Log.e(TAG, "Failed to create audio classifier.", e);
+                throw new IOException("Failed to create audio classifier", e);
+            }
+            Log.w(TAG, "Delegate " + options.delegate + " failed, falling back to " + Delegate.XNNPACK, e);
+            close();
+            create(model, Delegate.XNNPACK, options);
+        }
+        Log.d(TAG, "Loaded " + modelPath + " with " + delegate + ", " + options.numThreads + " threads, warm-up "
+                + stats.getWarmUpMillis() + " ms");
+    }
+
+    private void create(MappedByteBuffer model, Delegate delegate, Options options) {
+        BaseOptions.Builder base = BaseOptions.builder().setNumThreads(options.numThreads);
+        if (delegate == Delegate.NNAPI) {
+            base.useNnapi();
+        }
+        classifier = AudioClassifier.createFromBufferAndOptions(model,
+                AudioClassifier.AudioClassifierOptions.builder()
+                        .setBaseOptions(base.build())
+                        .setMaxResults(options.maxResults)
+                        .setScoreThreshold(options.scoreThreshold)
+                        .build());
+        tensorAudio = classifier.createInputTensorAudio();
+        if (options.warmUp) {
+            // Delegates compile lazily; a failure here still falls back
+            final long start = SystemClock.elapsedRealtimeNanos();
+            tensorAudio.load(new float[classifier.getRequiredInputBufferSize()]);
+            classifier.classify(tensorAudio);
+            stats.onWarmUp(SystemClock.elapsedRealtimeNanos() - start);
+        }
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Delegate getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public InferenceStats getInferenceStats() {
+        return stats;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return classifier != null ? classifier.getRequiredTensorAudioFormat().getSampleRate() : 0;
+    }
+
+    @Override
+    public int getWindowSamples() {
+        return classifier != null ? classifier.getRequiredInputBufferSize() : 0;
     }
 
     @Override
-    public List<Recognition> recognize(short[] audioBuffer) {
-        List<Recognition> recognitions = new ArrayList<>();
+    public int classify(float[] window, ClassificationResult out) {
+        out.clear();
         if (classifier == null) {
-            return recognitions;
+            return 0;
         }
 
-        TensorAudio tensorAudio = classifier.createInputTensorAudio();
-        tensorAudio.load(audioBuffer);
+        final long start = SystemClock.elapsedRealtimeNanos();
+        tensorAudio.load(window);
         List<Classifications> output = classifier.classify(tensorAudio);
+        stats.onInference(SystemClock.elapsedRealtimeNanos() - start);
+        if (stats.getCount() % REPORT_EVERY == 0) {
+            Log.d(TAG, delegate + ": " + stats.summary());
+        }
 
-        for (Classifications classifications : output) {
-            for (Category category : classifications.getCategories()) {
-                recognitions.add(new Recognition(
-                        String.valueOf(category.getIndex()),
-                        category.getLabel(),
-                        category.getScore()
-                ));
+        // Indexed loops: no iterators on the per-inference path
+        for (int head = 0; head < output.size(); head++) {
+            final List<Category> categories = output.get(head).getCategories();
+            for (int i = 0; i < categories.size(); i++) {
+                final Category category = categories.get(i);
+                final float score = category.getScore();
+                if (score < scoreThreshold) continue;
+                final int index = category.getIndex();
+                out.add(index, score, labels.intern(index, category.getLabel()));
             }
         }
-        return recognitions;
+        return out.size();
     }
 
     @Override
     public void close() {
         if (classifier != null) {
-            // Classifier doesn't have a close method in the Task Library
+            // Releases the native interpreter and any delegate resources
+            classifier.close();
             classifier = null;
+            tensorAudio = null;
         }
     }
 }
@@ -0,0 +1,69 @@
+package eu.mrogalski.saidit.ml;
+
+/**
+ * Reusable holder for the top-K categories of one inference, kept in primitive arrays so
+ * reading results allocates nothing. Categories are ordered by descending score.
+ */
+public final class ClassificationResult {
+    private final int[] indices;
+    private final float[] scores;
+    private final String[] labels;
+    private int count;
+
+    public ClassificationResult(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        indices = new int[capacity];
+        scores = new float[capacity];
+        labels = new String[capacity];
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int capacity() {
+        return indices.length;
+    }
+
+    public int getIndex(int i) {
+        return indices[i];
+    }
+
+    public float getScore(int i) {
+        return scores[i];
+    }
+
+    /**
+     * @return the interned label, the same instance every time for a given index.
+     */
+    public String getLabel(int i) {
+        return labels[i];
+    }
+
+    public void clear() {
+        count = 0;
+    }
+
+    /**
+     * Inserts a category in score order, dropping the lowest one if already full.
+     * @return false if the score was too low to make the top K.
+     */
+    public boolean add(int index, float score, String label) {
+        int position = count;
+        while (position > 0 && scores[position - 1] < score) position--;
+        if (position == indices.length) return false;
+        int last = Math.min(count, indices.length - 1);
+        for (int i = last; i > position; i--) {
+            indices[i] = indices[i - 1];
+            scores[i] = scores[i - 1];
+            labels[i] = labels[i - 1];
+        }
+        indices[position] = index;
+        scores[position] = score;
+        labels[position] = label;
+        if (count < indices.length) count++;
+        return true;
+    }
+}
@@ -0,0 +1,160 @@
+package eu.mrogalski.saidit.ml;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Decides which classifier windows are worth an inference.
+ *
+ * A window runs only if all of these hold:
+ * <ul>
+ *  <li>there was VAD speech or a marked change in frame energy within the activity hold time;</li>
+ *  <li>enough windows were skipped for the current power state, which stretches the effective
+ *      hop as the device heats up or the battery runs low, and pauses classification entirely
+ *      when the device is critically hot;</li>
+ *  <li>the per-minute inference budget, a token bucket, is not exhausted.</li>
+ * </ul>
+ * Frames and decisions come from the classifier stage's thread; power state may be updated from
+ * any thread.
+ */
+public final class ClassifierScheduler {
+    // Same values as PowerManager.THERMAL_STATUS_*
+    public static final int THERMAL_NONE = 0;
+    public static final int THERMAL_MODERATE = 2;
+    public static final int THERMAL_SEVERE = 3;
+    public static final int THERMAL_CRITICAL = 4;
+
+    private static final float ENERGY_CHANGE_DB = 6f;
+    private static final float BACKGROUND_SMOOTHING = 0.05f;
+    private static final int LOW_BATTERY_PERCENT = 30;
+    private static final int CRITICAL_BATTERY_PERCENT = 15;
+
+    private final int maxPerMinute;
+    private final long activityHoldMillis;
+
+    private volatile int thermalStatus = THERMAL_NONE;
+    private volatile int batteryPercent = 100;
+    private volatile boolean charging = true;
+
+    private long lastActivityMillis = Long.MIN_VALUE / 2;
+    private float backgroundDb = Float.NaN;
+    private double tokens;
+    private long lastRefillMillis = Long.MIN_VALUE;
+    private int windowsSinceRun = Integer.MAX_VALUE / 2;
+
+    private long runs;
+    private long skippedIdle;
+    private long skippedPower;
+    private long skippedBudget;
+
+    /**
+     * @param maxPerMinute Inference budget; 0 or less means unlimited.
+     * @param activityHoldMillis How long after activity windows are still classified; 0 or less
+     *                           classifies regardless of activity.
+     */
+    public ClassifierScheduler(int maxPerMinute, long activityHoldMillis) {
+        this.maxPerMinute = maxPerMinute;
+        this.activityHoldMillis = activityHoldMillis;
+        this.tokens = Math.max(1, maxPerMinute);
+    }
+
+    /**
+     * Notes whether a frame was active: speech according to the VAD, or a frame whose energy
+     * jumps away from the recent background level, such as a door slam or music starting.
+     * @param pcm 16-bit PCM between position and limit, in the buffer's byte order.
+     */
+    public void onFrame(ByteBuffer pcm, boolean speech, long nowMillis) {
+        final int end = pcm.limit() - 1;
+        double sum = 0;
+        int count = 0;
+        for (int i = pcm.position(); i < end; i += 2) {
+            int sample = pcm.getShort(i);
+            sum += sample * sample;
+            count++;
+        }
+        if (count == 0) return;
+        float energyDb = (float) (10 * Math.log10(sum / count + 1));
+        if (Float.isNaN(backgroundDb)) backgroundDb = energyDb;
+        boolean change = Math.abs(energyDb - backgroundDb) > ENERGY_CHANGE_DB;
+        backgroundDb += (energyDb - backgroundDb) * BACKGROUND_SMOOTHING;
+        if (speech || change) {
+            lastActivityMillis = nowMillis;
+        }
+    }
+
+    /**
+     * @param status One of PowerManager.THERMAL_STATUS_*.
+     */
+    public void setThermalStatus(int status) {
+        thermalStatus = status;
+    }
+
+    public void setBattery(int percent, boolean charging) {
+        this.batteryPercent = percent;
+        this.charging = charging;
+    }
+
+    /**
+     * @return how many hops apart inferences should be under the current power state, or 0 if
+     *         classification should pause.
+     */
+    public int getHopMultiplier() {
+        final int thermal = thermalStatus;
+        if (thermal >= THERMAL_CRITICAL) return 0;
+        int multiplier = thermal >= THERMAL_SEVERE ? 4 : thermal >= THERMAL_MODERATE ? 2 : 1;
+        if (!charging) {
+            final int battery = batteryPercent;
+            if (battery <= CRITICAL_BATTERY_PERCENT) {
+                multiplier *= 4;
+            } else if (battery <= LOW_BATTERY_PERCENT) {
+                multiplier *= 2;
+            }
+        }
+        return multiplier;
+    }
+
+    /**
+     * Decides on one ready window, and if it may run, charges it to the budget.
+     */
+    public boolean shouldRun(long nowMillis) {
+        refill(nowMillis);
+        final int multiplier = getHopMultiplier();
+        if (multiplier == 0 || ++windowsSinceRun < multiplier) {
+            skippedPower++;
+            return false;
+        }
+        if (activityHoldMillis > 0 && nowMillis - lastActivityMillis > activityHoldMillis) {
+            skippedIdle++;
+            return false;
+        }
+        if (maxPerMinute > 0) {
+            if (tokens < 1) {
+                skippedBudget++;
+                return false;
+            }
+            tokens -= 1;
+        }
+        windowsSinceRun = 0;
+        runs++;
+        return true;
+    }
+
+    private void refill(long nowMillis) {
+        if (maxPerMinute <= 0) return;
+        if (lastRefillMillis != Long.MIN_VALUE) {
+            // Clamped: the wall clock may jump backwards
+            long elapsed = Math.max(0, nowMillis - lastRefillMillis);
+            tokens = Math.min(maxPerMinute, tokens + elapsed * maxPerMinute / 60_000.0);
+        }
+        lastRefillMillis = nowMillis;
+    }
+
+    public long getRuns() {
+        return runs;
+    }
+
+    public String summary() {
+        return String.format(Locale.US, "%d inferences, skipped %d idle, %d power, %d budget (hop x%d)",
+                runs, skippedIdle, skippedPower, skippedBudget, getHopMultiplier());
+    }
+}
@@ -0,0 +1,175 @@
+package eu.mrogalski.saidit.ml;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Turns a stream of device-rate 16-bit PCM into the overlapping, fixed-length float windows an
+ * audio classifier expects at its own sample rate.
+ *
+ * Input is low-pass filtered (windowed sinc) when downsampling, linearly interpolated to the
+ * model rate and kept in a rolling window. Every hop samples a snapshot of the window is taken;
+ * snapshots are collected into reusable arrays until a batch is complete. Nothing is allocated
+ * after construction.
+ */
+public final class ClassifierWindow {
+    private final int windowSamples;
+    private final int hopSamples;
+    // Input samples per output sample
+    private final double step;
+
+    // Anti-aliasing filter, null unless downsampling
+    private final float[] taps;
+    private final float[] history;
+    private int historyPos;
+    // Last two filtered input samples and where the next output falls between them
+    private float previous;
+    private float current;
+    private double phase;
+    private boolean primed;
+
+    // Rolling window at the model rate
+    private final float[] ring;
+    private int ringPos;
+    private long produced;
+    private int sinceHop;
+
+    private final float[][] batch;
+    private int ready;
+
+    /**
+     * @param inputRate Sample rate of the PCM passed to {@link #add}.
+     * @param modelRate Sample rate the classifier expects.
+     * @param windowSamples Samples per window at the model rate.
+     * @param hopSamples Model-rate samples between the starts of consecutive windows.
+     * @param batchSize Windows per batch.
+     */
+    public ClassifierWindow(int inputRate, int modelRate, int windowSamples, int hopSamples, int batchSize) {
+        if (inputRate <= 0 || modelRate <= 0 || windowSamples <= 0 || hopSamples <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("Invalid window: " + inputRate + " -> " + modelRate
+                    + " Hz, " + windowSamples + "/" + hopSamples + " x " + batchSize);
+        }
+        this.windowSamples = windowSamples;
+        this.hopSamples = hopSamples;
+        this.step = inputRate / (double) modelRate;
+        this.taps = inputRate > modelRate ? lowPass(0.45 / step, 16 * (int) Math.ceil(step) + 1) : null;
+        this.history = taps != null ? new float[taps.length] : null;
+        this.ring = new float[windowSamples];
+        this.batch = new float[batchSize][windowSamples];
+    }
+
+    /**
+     * Windowed-sinc (Blackman) low-pass with unity gain at DC.
+     * @param cutoff Cutoff as a fraction of the sample rate.
+     */
+    private static float[] lowPass(double cutoff, int length) {
+        float[] h = new float[length];
+        int middle = length / 2;
+        double sum = 0;
+        for (int i = 0; i < length; i++) {
+            int n = i - middle;
+            double sinc = n == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * n) / (Math.PI * n);
+            double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * i / (length - 1))
+                    + 0.08 * Math.cos(4 * Math.PI * i / (length - 1));
+            h[i] = (float) (sinc * window);
+            sum += h[i];
+        }
+        for (int i = 0; i < length; i++) {
+            h[i] /= sum;
+        }
+        return h;
+    }
+
+    /**
+     * Feeds the input-rate 16-bit PCM between the buffer's position and limit, in the buffer's
+     * byte order, leaving both unchanged.
+     * @return true if a full batch is ready, see {@link #getBatch()}.
+     */
+    public boolean add(ByteBuffer pcm) {
+        final int end = pcm.limit() - 1;
+        for (int i = pcm.position(); i < end; i += 2) {
+            float sample = pcm.getShort(i) / 32768f;
+            if (step == 1.0) {
+                emit(sample);
+                continue;
+            }
+            float filtered = sample;
+            if (taps != null) {
+                history[historyPos] = sample;
+                if (++historyPos == history.length) historyPos = 0;
+                filtered = 0;
+                int index = historyPos;
+                for (float tap : taps) {
+                    filtered += tap * history[index];
+                    if (++index == history.length) index = 0;
+                }
+            }
+            previous = current;
+            current = filtered;
+            if (!primed) {
+                primed = true;
+                continue;
+            }
+            // Outputs between the previous and the current filtered sample
+            while (phase < 1.0) {
+                emit((float) (previous + (current - previous) * phase));
+                phase += step;
+            }
+            phase -= 1.0;
+        }
+        return ready == batch.length;
+    }
+
+    private void emit(float sample) {
+        ring[ringPos] = sample;
+        if (++ringPos == windowSamples) ringPos = 0;
+        produced++;
+        // The first window is taken as soon as it is full, later ones every hop
+        if (produced < windowSamples) return;
+        if (produced > windowSamples && ++sinceHop < hopSamples) return;
+        sinceHop = 0;
+        if (ready == batch.length) {
+            // Nobody took the last batch; keep the newest windows
+            float[] oldest = batch[0];
+            System.arraycopy(batch, 1, batch, 0, batch.length - 1);
+            batch[batch.length - 1] = oldest;
+            ready--;
+        }
+        float[] dst = batch[ready++];
+        int first = windowSamples - ringPos;
+        System.arraycopy(ring, ringPos, dst, 0, first);
+        System.arraycopy(ring, 0, dst, first, ringPos);
+    }
+
+    /**
+     * @return the windows of the completed batch, oldest first. Valid until {@link #clearBatch()}.
+     */
+    public float[][] getBatch() {
+        return batch;
+    }
+
+    /**
+     * @return windows collected so far.
+     */
+    public int getReadyCount() {
+        return ready;
+    }
+
+    public void clearBatch() {
+        ready = 0;
+    }
+
+    /**
+     * Forgets all input, e.g. after a gap, so the next window holds contiguous audio only.
+     */
+    public void reset() {
+        if (history != null) Arrays.fill(history, 0f);
+        previous = current = 0;
+        phase = 0;
+        primed = false;
+        produced = 0;
+        sinceHop = 0;
+        ringPos = 0;
+        ready = 0;
+    }
+}
@@ -0,0 +1,57 @@
+package eu.mrogalski.saidit.ml;
+
+import java.util.Locale;
+
+/**
+ * Latency of a classifier's inferences, to compare delegates and thread counts across devices.
+ *
+ * Recorded by the thread running the inferences; other threads may read a slightly stale summary.
+ */
+public final class InferenceStats {
+    private volatile long count;
+    private volatile long totalNanos;
+    private volatile long maxNanos;
+    private volatile long lastNanos;
+    private volatile long warmUpNanos = -1;
+
+    void onWarmUp(long nanos) {
+        warmUpNanos = nanos;
+    }
+
+    void onInference(long nanos) {
+        count++;
+        totalNanos += nanos;
+        lastNanos = nanos;
+        if (nanos > maxNanos) maxNanos = nanos;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public float getAverageMillis() {
+        final long n = count;
+        return n > 0 ? totalNanos / 1e6f / n : 0f;
+    }
+
+    public float getMaxMillis() {
+        return maxNanos / 1e6f;
+    }
+
+    public float getLastMillis() {
+        return lastNanos / 1e6f;
+    }
+
+    /**
+     * @return how long the warm-up inference at load time took, or -1 if there was none.
+     */
+    public float getWarmUpMillis() {
+        final long nanos = warmUpNanos;
+        return nanos >= 0 ? nanos / 1e6f : -1f;
+    }
+
+    public String summary() {
+        return String.format(Locale.US, "%d inferences, %.1f ms avg, %.1f ms max, %.1f ms warm-up",
+                count, getAverageMillis(), getMaxMillis(), getWarmUpMillis());
+    }
+}
@@ -0,0 +1,37 @@
+package eu.mrogalski.saidit.ml;
+
+import java.util.List;
+
+/**
+ * One canonical label string per category index, so results can hand out labels without
+ * creating new strings.
+ */
+final class LabelTable {
+    private String[] labels = new String[0];
+
+    /**
+     * Seeds the table, e.g. from the model's label file.
+     */
+    void load(List<String> list) {
+        labels = list.toArray(new String[0]);
+    }
+
+    /**
+     * @param label What the model reported for the index, used if the table has nothing yet.
+     * @return the canonical label for the index.
+     */
+    String intern(int index, String label) {
+        if (index < 0) return label;
+        if (index >= labels.length) {
+            String[] grown = new String[Math.max(index + 1, labels.length * 2)];
+            System.arraycopy(labels, 0, grown, 0, labels.length);
+            labels = grown;
+        }
+        String known = labels[index];
+        if (known == null || known.isEmpty()) {
+            known = label == null || label.isEmpty() ? Integer.toString(index) : label;
+            labels[index] = known;
+        }
+        return known;
+    }
+}
@@ -2,33 +2,60 @@ package eu.mrogalski.saidit.ml;
 
 import android.content.Context;
 import java.io.IOException;
-import java.util.List;
 
 public interface TfLiteClassifier {
 
-    class Recognition {
-        private final String id;
-        private final String title;
-        private final Float confidence;
-
-        public Recognition(final String id, final String title, final Float confidence) {
-            this.id = id;
-            this.title = title;
-            this.confidence = confidence;
-        }
-
-        public String getTitle() {
-            return title;
-        }
+    enum Delegate {
+        /** TFLite's CPU kernels, accelerated by XNNPACK. */
+        XNNPACK,
+        /** Android Neural Networks API, which may run on a DSP or NPU. */
+        NNAPI
+    }
 
-        public Float getConfidence() {
-            return confidence;
-        }
+    class Options {
+        public Delegate delegate = Delegate.XNNPACK;
+        public int numThreads = 2;
+        // Runs one inference at load time so the first real one does not pay for initialization
+        public boolean warmUp = true;
+        // Only the best few categories above the threshold ever leave the native side
+        public int maxResults = 5;
+        public float scoreThreshold = 0.3f;
     }
 
-    void load(Context context, String modelPath, String labelPath) throws IOException;
+    default void load(Context context, String modelPath, String labelPath) throws IOException {
+        load(context, modelPath, labelPath, new Options());
+    }
 
-    List<Recognition> recognize(short[] audioBuffer);
+    /**
+     * Loads the model, falling back to {@link Delegate#XNNPACK} if the requested delegate cannot
+     * run it.
+     */
+    void load(Context context, String modelPath, String labelPath, Options options) throws IOException;
+
+    /**
+     * @return the delegate actually in use, once loaded.
+     */
+    Delegate getDelegate();
+
+    InferenceStats getInferenceStats();
+
+    /**
+     * @return sample rate the model expects, once loaded.
+     */
+    int getSampleRate();
+
+    /**
+     * @return samples in one input window, once loaded.
+     */
+    int getWindowSamples();
+
+    /**
+     * Classifies one window of {@link #getWindowSamples()} samples in [-1, 1] at
+     * {@link #getSampleRate()}.
+     * @param out Receives the top categories scoring at least the threshold; cleared first.
+     * @return the number of categories in out.
+     */
+    int classify(float[] window, ClassificationResult out);
 
     void close();
 }
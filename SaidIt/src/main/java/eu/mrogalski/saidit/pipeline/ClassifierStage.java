@@ -0,0 +1,66 @@
+package eu.mrogalski.saidit.pipeline;
+
+import eu.mrogalski.saidit.ml.ClassificationResult;
+import eu.mrogalski.saidit.ml.ClassifierScheduler;
+import eu.mrogalski.saidit.ml.ClassifierWindow;
+import eu.mrogalski.saidit.ml.TfLiteClassifier;
+
+/**
+ * Runs the audio event classifier over overlapping windows of the audio and emits one tag frame
+ * per recognition.
+ *
+ * Frames are resampled to the model's rate into a {@link ClassifierWindow}; inference only runs
+ * once per hop, or once per batch of hops, rather than on every frame, and only for the windows
+ * the {@link ClassifierScheduler} lets through.
+ */
+public final class ClassifierStage extends Stage {
+    private final TfLiteClassifier classifier;
+    private final ClassifierWindow window;
+    private final ClassifierScheduler scheduler;
+    private final Link tags;
+    private final Frame tag = Frame.borrowing();
+    private final ClassificationResult result;
+
+    /**
+     * @param classifier A loaded classifier.
+     * @param inputRate Sample rate of the frames this stage receives.
+     * @param hopMs Time between the starts of consecutive windows.
+     * @param batchSize Windows to collect before running them through the model together.
+     * @param maxResults Most tags to emit per window.
+     */
+    public ClassifierStage(TfLiteClassifier classifier, ClassifierScheduler scheduler,
+                           int inputRate, int hopMs, int batchSize, int maxResults, Link tags) {
+        super("classifier");
+        this.classifier = classifier;
+        this.scheduler = scheduler;
+        final int modelRate = classifier.getSampleRate();
+        this.window = new ClassifierWindow(inputRate, modelRate, classifier.getWindowSamples(),
+                Math.max(1, (int) ((long) modelRate * hopMs / 1000)), batchSize);
+        this.tags = tags;
+        this.result = new ClassificationResult(maxResults);
+    }
+
+    @Override
+    protected void process(Frame frame) {
+        if (frame.kind != Frame.Kind.AUDIO || frame.pcm == null) return;
+        scheduler.onFrame(frame.pcm, frame.speech, frame.timestamp);
+        if (!window.add(frame.pcm)) return;
+
+        final float[][] batch = window.getBatch();
+        final int count = window.getReadyCount();
+        for (int i = 0; i < count; i++) {
+            if (!scheduler.shouldRun(frame.timestamp)) continue;
+            final int found = classifier.classify(batch[i], result);
+            final long now = System.currentTimeMillis();
+            for (int j = 0; j < found; j++) {
+                tag.clear();
+                tag.kind = Frame.Kind.TAG;
+                tag.timestamp = now;
+                tag.label = result.getLabel(j);
+                tag.confidence = result.getScore(j);
+                tags.send(tag);
+            }
+        }
+        window.clearBatch();
+    }
+}
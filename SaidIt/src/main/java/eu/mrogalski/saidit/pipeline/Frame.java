@@ -0,0 +1,106 @@
+package eu.mrogalski.saidit.pipeline;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import eu.mrogalski.saidit.analysis.SegmentStats;
+
+/**
+ * Unit of work passed between pipeline stages: a frame of audio or an event about one.
+ *
+ * Frames that cross threads are pooled by their {@link Link} and own a direct buffer the PCM is
+ * copied into. A frame handed to an inline stage may instead point at the caller's buffer, e.g.
+ * a view of the ring, and is only valid during the call.
+ */
+public final class Frame {
+    public enum Kind {
+        AUDIO,
+        SEGMENT_START,
+        SEGMENT_END,
+        /** A finished segment as a range of {@link #position} to {@link #end} in AudioMemory. */
+        SEGMENT_RANGE,
+        /** Statistics of the segment about to end, in {@link #stats}. */
+        SEGMENT_STATS,
+        /** Ends a segment too short to keep. */
+        SEGMENT_DISCARD,
+        TAG
+    }
+
+    public Kind kind = Kind.AUDIO;
+    /** 16-bit little-endian PCM between position and limit, for {@link Kind#AUDIO}. */
+    public ByteBuffer pcm;
+    /** Wall clock time of the event in milliseconds. */
+    public long timestamp;
+    /** Absolute AudioMemory sample position of the first PCM sample, or -1 if unknown. */
+    public long position = -1;
+    /** For {@link Kind#SEGMENT_RANGE}: sample position just past the range. */
+    public long end = -1;
+    /** For {@link Kind#SEGMENT_STATS}; owned by the receiver. */
+    public SegmentStats stats;
+    /** Set by the VAD stage. */
+    public boolean speech;
+    /** For {@link Kind#TAG}. */
+    public String label;
+    public float confidence;
+
+    // Storage owned by pooled frames, null for frames that only borrow a buffer
+    private final ByteBuffer own;
+
+    Frame(int capacityBytes) {
+        this.own = capacityBytes > 0
+                ? ByteBuffer.allocateDirect(capacityBytes).order(ByteOrder.LITTLE_ENDIAN)
+                : null;
+    }
+
+    /**
+     * A frame without storage of its own, for feeding borrowed buffers to inline stages.
+     */
+    public static Frame borrowing() {
+        return new Frame(0);
+    }
+
+    int capacity() {
+        return own != null ? own.capacity() : 0;
+    }
+
+    /**
+     * Copies up to {@link #capacity()} bytes of src into this frame's own buffer, advancing src
+     * past them.
+     */
+    void copyPcm(ByteBuffer src) {
+        int end = src.limit();
+        int count = Math.min(src.remaining(), own.capacity());
+        own.clear();
+        src.limit(src.position() + count);
+        own.put(src);
+        src.limit(end);
+        own.flip();
+        pcm = own;
+    }
+
+    /**
+     * Copies everything but the PCM.
+     */
+    void copyHeader(Frame other) {
+        kind = other.kind;
+        timestamp = other.timestamp;
+        position = other.position;
+        end = other.end;
+        stats = other.stats;
+        speech = other.speech;
+        label = other.label;
+        confidence = other.confidence;
+    }
+
+    void clear() {
+        kind = Kind.AUDIO;
+        pcm = null;
+        timestamp = 0;
+        position = -1;
+        end = -1;
+        stats = null;
+        speech = false;
+        label = null;
+        confidence = 0f;
+    }
+}
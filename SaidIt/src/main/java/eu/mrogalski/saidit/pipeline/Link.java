@@ -0,0 +1,188 @@
+package eu.mrogalski.saidit.pipeline;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Edge of the analysis graph, from one producer thread into a {@link Stage}.
+ *
+ * An inline link simply calls the stage. A queued link copies each frame into one of a fixed
+ * pool of {@link Frame}s, hands it over through a {@link SpscQueue} and wakes the stage's
+ * executor, which drains everything queued in one go. Used frames travel back to the producer
+ * through a second queue, so the steady state neither locks nor allocates.
+ *
+ * When the pool is exhausted the {@link Overflow} policy decides: optional stages drop the frame,
+ * stages that must see everything make the producer wait. A waiting producer parks until the
+ * stage hands a frame back, so a long stall costs no CPU.
+ */
+public final class Link {
+    private static final String TAG = "Link";
+    // Upper bound on a park, in case a wakeup raced with the producer going to sleep
+    private static final long PARK_NANOS = 1_000_000;
+
+    public enum Overflow {
+        /** The producer waits for the stage to catch up. */
+        BLOCK,
+        /** The frame is dropped and counted. */
+        DROP
+    }
+
+    private final Stage target;
+    // Null for inline links
+    private final Executor executor;
+    private final SpscQueue<Frame> pending;
+    private final SpscQueue<Frame> free;
+    private final Overflow overflow;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Runnable drain = this::drain;
+    private volatile boolean closed;
+    // Producer parked for a free frame, if any
+    private volatile Thread waiter;
+
+    private Link(Stage target, Executor executor, int frames, int frameBytes, Overflow overflow) {
+        this.target = target;
+        this.executor = executor;
+        this.overflow = overflow;
+        if (executor != null) {
+            pending = new SpscQueue<>(frames);
+            free = new SpscQueue<>(frames);
+            for (int i = 0; i < frames; i++) {
+                free.offer(new Frame(frameBytes));
+            }
+        } else {
+            pending = null;
+            free = null;
+        }
+    }
+
+    /**
+     * Runs the stage on the sender's thread.
+     */
+    public static Link inline(Stage target) {
+        return new Link(target, null, 0, 0, Overflow.BLOCK);
+    }
+
+    /**
+     * Runs the stage on the executor, buffering up to frames frames of up to frameBytes each.
+     */
+    public static Link queued(Stage target, Executor executor, int frames, int frameBytes, Overflow overflow) {
+        if (frames < 1 || frameBytes < 1) {
+            throw new IllegalArgumentException("Invalid pool: " + frames + " x " + frameBytes + " bytes");
+        }
+        return new Link(target, executor, frames, frameBytes, overflow);
+    }
+
+    /**
+     * Passes the frame on, leaving its PCM position and limit as they were. Producer thread only.
+     * PCM longer than a pooled frame is split over several.
+     * @return false if the frame, or part of it, was dropped.
+     */
+    public boolean send(Frame frame) {
+        final ByteBuffer src = frame.pcm;
+        final int position = src != null ? src.position() : 0;
+        final int limit = src != null ? src.limit() : 0;
+        try {
+            if (executor == null) {
+                target.process(frame);
+                return true;
+            }
+            do {
+                Frame copy = obtain();
+                if (copy == null) return false;
+                copy.copyHeader(frame);
+                if (src != null) {
+                    // Later pieces start further into the ring
+                    if (frame.position >= 0) copy.position = frame.position + (src.position() - position) / 2;
+                    copy.copyPcm(src);
+                }
+                submit(copy);
+            } while (src != null && src.hasRemaining());
+            return true;
+        } finally {
+            if (src != null) {
+                src.limit(limit);
+                src.position(position);
+            }
+        }
+    }
+
+    private Frame obtain() {
+        Frame frame;
+        while ((frame = free.poll()) == null) {
+            if (overflow == Overflow.DROP || closed) {
+                dropped.incrementAndGet();
+                return null;
+            }
+            waiter = Thread.currentThread();
+            // Check again now that drain() can see us, then sleep until it returns a frame
+            if ((frame = free.poll()) == null && !closed) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            waiter = null;
+            if (frame != null) break;
+        }
+        return frame;
+    }
+
+    private void wakeWaiter() {
+        final Thread thread = waiter;
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    private void submit(Frame frame) {
+        // Never fails: there are no more frames than queue slots
+        pending.offer(frame);
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(drain);
+        }
+    }
+
+    private void drain() {
+        // Clear first so frames queued while draining schedule another pass
+        scheduled.set(false);
+        Frame frame;
+        while ((frame = pending.poll()) != null) {
+            try {
+                if (!closed) target.process(frame);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Stage " + target + " failed", e);
+            } finally {
+                frame.clear();
+                free.offer(frame);
+                wakeWaiter();
+            }
+        }
+    }
+
+    /**
+     * Stops delivering frames and releases any producer waiting for a free one.
+     */
+    public void close() {
+        closed = true;
+        wakeWaiter();
+    }
+
+    public Stage getTarget() {
+        return target;
+    }
+
+    /**
+     * @return frames dropped because the stage fell behind.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return frames waiting for the stage.
+     */
+    public int getBacklog() {
+        return pending != null ? pending.size() : 0;
+    }
+}
@@ -0,0 +1,95 @@
+package eu.mrogalski.saidit.pipeline;
+
+import java.nio.ByteBuffer;
+
+import eu.mrogalski.saidit.analysis.SegmentStats;
+import eu.mrogalski.saidit.analysis.SegmentationController;
+
+/**
+ * Feeds frames to a {@link SegmentationController} and turns its callbacks into segment
+ * frames for the storage stage. Every frame is also offered to the classifier, if there is one.
+ */
+public final class SegmenterStage extends Stage {
+    private final SegmentationController controller;
+    private final Link storage;
+    private volatile Link classifier;
+    // Reused for the controller's callbacks, which all arrive on this stage's thread
+    private final Frame event = Frame.borrowing();
+
+    public SegmenterStage(SegmentationController controller, Link storage) {
+        super("segmenter");
+        this.controller = controller;
+        this.storage = storage;
+        controller.setListener(new SegmentationController.SegmentListener() {
+            @Override
+            public void onSegmentStart(long timestamp) {
+                sendEvent(Frame.Kind.SEGMENT_START, timestamp, null);
+            }
+
+            @Override
+            public void onSegmentEnd(long timestamp) {
+                sendEvent(Frame.Kind.SEGMENT_END, timestamp, null);
+            }
+
+            @Override
+            public void onSegmentData(ByteBuffer data) {
+                sendEvent(Frame.Kind.AUDIO, 0, data);
+            }
+
+            @Override
+            public void onSegmentRange(long startSample, long endSample) {
+                event.clear();
+                event.kind = Frame.Kind.SEGMENT_RANGE;
+                event.position = startSample;
+                event.end = endSample;
+                storage.send(event);
+            }
+
+            @Override
+            public void onSegmentStats(SegmentStats stats) {
+                event.clear();
+                event.kind = Frame.Kind.SEGMENT_STATS;
+                event.stats = stats;
+                storage.send(event);
+                event.stats = null;
+            }
+
+            @Override
+            public void onSegmentDiscarded(long timestamp) {
+                sendEvent(Frame.Kind.SEGMENT_DISCARD, timestamp, null);
+            }
+        });
+    }
+
+    /**
+     * @param classifier Where to offer frames for classification, or null for nowhere.
+     */
+    public void setClassifier(Link classifier) {
+        this.classifier = classifier;
+    }
+
+    private void sendEvent(Frame.Kind kind, long timestamp, ByteBuffer data) {
+        event.clear();
+        event.kind = kind;
+        event.timestamp = timestamp;
+        event.pcm = data;
+        storage.send(event);
+        event.pcm = null;
+    }
+
+    @Override
+    protected void process(Frame frame) {
+        final ByteBuffer pcm = frame.pcm;
+        final int position = pcm.position();
+        final int limit = pcm.limit();
+        controller.process(pcm, frame.speech, frame.position);
+        // The controller consumes the frame; rewind it for the classifier
+        pcm.limit(limit);
+        pcm.position(position);
+
+        final Link next = classifier;
+        if (next != null) {
+            next.send(frame);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package eu.mrogalski.saidit.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread.
+ *
+ * The producer owns the tail and the consumer owns the head; each only publishes its own index
+ * (with a lazy set) and reads the other's, so neither ever waits on or allocates for the other.
+ */
+public final class SpscQueue<T> {
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param capacity Rounded up to a power of two.
+     */
+    public SpscQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Producer only.
+     * @return false if the queue is full.
+     */
+    public boolean offer(T item) {
+        long t = tail.get();
+        if (t - head.get() > mask) return false;
+        slots.lazySet((int) t & mask, item);
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Consumer only.
+     * @return the oldest item, or null if the queue is empty.
+     */
+    public T poll() {
+        long h = head.get();
+        if (h == tail.get()) return null;
+        int slot = (int) h & mask;
+        T item = slots.get(slot);
+        slots.lazySet(slot, null);
+        head.lazySet(h + 1);
+        return item;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
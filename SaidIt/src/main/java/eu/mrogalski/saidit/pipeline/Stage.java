@@ -0,0 +1,27 @@
+package eu.mrogalski.saidit.pipeline;
+
+/**
+ * One step of the analysis graph. A stage only ever runs on one thread at a time: either the
+ * thread of whoever sends to it through an inline {@link Link}, or its {@link StageThread}.
+ */
+public abstract class Stage {
+    private final String name;
+
+    protected Stage(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Handles one frame. The frame and its PCM are only valid during the call.
+     */
+    protected abstract void process(Frame frame);
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,39 @@
+package eu.mrogalski.saidit.pipeline;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Thread hosting the stages behind one or more queued {@link Link}s.
+ */
+public final class StageThread implements Executor {
+    private static final long JOIN_TIMEOUT_MS = 1000;
+
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    public StageThread(String name, int priority) {
+        thread = new HandlerThread(name, priority);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        handler.post(command);
+    }
+
+    /**
+     * Finishes what is already queued, then stops the thread.
+     */
+    public void quit() {
+        thread.quitSafely();
+        try {
+            thread.join(JOIN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
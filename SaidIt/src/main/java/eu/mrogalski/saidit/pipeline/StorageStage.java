@@ -0,0 +1,56 @@
+package eu.mrogalski.saidit.pipeline;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+import eu.mrogalski.saidit.storage.AudioTag;
+import eu.mrogalski.saidit.storage.RecordingStoreManager;
+
+/**
+ * Writes segments and their tags through a {@link RecordingStoreManager}.
+ *
+ * Both the segmenter and the tagger feed it. Run inline it may be called from both of their
+ * threads, so calls are serialized.
+ */
+public final class StorageStage extends Stage {
+    private static final String TAG = "StorageStage";
+
+    private final RecordingStoreManager store;
+
+    public StorageStage(RecordingStoreManager store) {
+        super("storage");
+        this.store = store;
+    }
+
+    @Override
+    protected synchronized void process(Frame frame) {
+        switch (frame.kind) {
+            case SEGMENT_START:
+                try {
+                    store.onSegmentStart(frame.timestamp);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to start segment", e);
+                }
+                break;
+            case AUDIO:
+                if (frame.pcm != null) store.onSegmentData(frame.pcm);
+                break;
+            case SEGMENT_RANGE:
+                store.onSegmentRange(frame.position, frame.end);
+                break;
+            case SEGMENT_STATS:
+                store.onSegmentStats(frame.stats);
+                break;
+            case SEGMENT_END:
+                store.onSegmentEnd(frame.timestamp);
+                break;
+            case SEGMENT_DISCARD:
+                store.onSegmentDiscarded(frame.timestamp);
+                break;
+            case TAG:
+                store.onTag(new AudioTag(frame.label, frame.confidence, frame.timestamp));
+                break;
+        }
+    }
+}
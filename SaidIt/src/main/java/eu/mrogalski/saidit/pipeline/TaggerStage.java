@@ -0,0 +1,22 @@
+package eu.mrogalski.saidit.pipeline;
+
+/**
+ * Keeps the classifier's tags that are confident enough and forwards them to storage.
+ */
+public final class TaggerStage extends Stage {
+    private final float minConfidence;
+    private final Link storage;
+
+    public TaggerStage(float minConfidence, Link storage) {
+        super("tagger");
+        this.minConfidence = minConfidence;
+        this.storage = storage;
+    }
+
+    @Override
+    protected void process(Frame frame) {
+        if (frame.kind == Frame.Kind.TAG && frame.confidence > minConfidence) {
+            storage.send(frame);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package eu.mrogalski.saidit.pipeline;
+
+import eu.mrogalski.saidit.vad.Vad;
+
+/**
+ * Marks each audio frame as speech or not, then passes it on.
+ */
+public final class VadStage extends Stage {
+    private final Vad vad;
+    private final Link next;
+
+    public VadStage(Vad vad, Link next) {
+        super("vad");
+        this.vad = vad;
+        this.next = next;
+    }
+
+    @Override
+    protected void process(Frame frame) {
+        frame.speech = vad != null && vad.process(frame.pcm);
+        next.send(frame);
+    }
+}
@@ -2,6 +2,10 @@ package eu.mrogalski.saidit.storage;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import eu.mrogalski.saidit.analysis.SegmentStats;
+import eu.mrogalski.saidit.export.PcmSource;
 
 public interface RecordingStoreManager {
     /**
@@ -16,6 +20,22 @@ public interface RecordingStoreManager {
      */
     void onSegmentEnd(long timestamp);
 
+    /**
+     * Ends the current segment without keeping it, as it turned out too short. Stores that
+     * cannot drop a segment keep it.
+     * @param timestamp The end time of the segment.
+     */
+    default void onSegmentDiscarded(long timestamp) {
+        onSegmentEnd(timestamp);
+    }
+
+    /**
+     * Gives the statistics of the current segment just before it ends.
+     * @param stats The segment's statistics; the store may keep them.
+     */
+    default void onSegmentStats(SegmentStats stats) {
+    }
+
     /**
      * Appends audio data to the current segment.
      * @param data The PCM audio data.
@@ -24,12 +44,45 @@ public interface RecordingStoreManager {
      */
     void onSegmentData(byte[] data, int offset, int length);
 
+    /**
+     * Appends the PCM between the buffer's position and limit to the current segment.
+     * @param data The PCM audio data, e.g. a view of the ring; only valid during the call.
+     */
+    void onSegmentData(ByteBuffer data);
+
+    /**
+     * Gives the current segment's audio as a range of AudioMemory instead of as data. Stores that
+     * only take data ignore it.
+     * @param startSample Absolute sample position of the segment's first sample.
+     * @param endSample Position just past its last sample.
+     */
+    default void onSegmentRange(long startSample, long endSample) {
+    }
+
+    /**
+     * Called just before AudioMemory is released or reallocated, on the thread that does it.
+     * Writes the ended segments still only held as ranges of it and returns once they are
+     * written. Stores that only take data have nothing to do.
+     */
+    default void onMemoryReleasing() {
+    }
+
     /**
      * Adds an audio tag to the current segment.
      * @param tag The tag to add.
      */
     void onTag(AudioTag tag);
 
+    /**
+     * Opens the last X seconds of audio from segment files for reading in place, e.g. straight
+     * into an encoder.
+     * @param durationSeconds The duration of the audio to open.
+     * @return The audio, to be closed by the caller, or null if no audio segments available.
+     */
+    default PcmSource openExport(float durationSeconds) throws IOException {
+        return null;
+    }
+
     /**
      * Exports the last X seconds of audio from segment files.
      * @param durationSeconds The duration of the audio to export.
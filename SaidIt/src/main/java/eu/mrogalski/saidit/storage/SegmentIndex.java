@@ -0,0 +1,323 @@
+package eu.mrogalski.saidit.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Append-only index of the segment store, kept in memory.
+ *
+ * The index file holds a header and one fixed-size record per segment, oldest first. Dropping
+ * the oldest segment only bumps a counter in the header; the dropped records are compacted away
+ * once they outnumber the live ones. Each segment's tags are one line of a separate append-only
+ * log, which a record points into.
+ *
+ * Tag lines are written before their record, so a record torn by a crash is cut off on load and
+ * never points at a torn line. Lines start with their file id, so tags a crash during compaction
+ * left out of step with the index are not handed out as another segment's.
+ */
+public final class SegmentIndex implements Closeable {
+    static final int HEADER_BYTES = 16;
+    static final int RECORD_BYTES = 48;
+    private static final int MAGIC = 0x53494458; // "SIDX"
+    private static final int VERSION = 1;
+    // Dropped records are compacted away past this many, and once they outnumber live ones
+    private static final int COMPACT_MIN_DROPPED = 64;
+
+    /**
+     * One segment's record.
+     */
+    public static final class Entry {
+        /** Wall clock times the segment started and ended, in milliseconds. */
+        public final long startTime;
+        public final long endTime;
+        /** AudioMemory position of the first sample, or -1 if the audio was streamed in. */
+        public final long startSample;
+        /** PCM bytes in the segment's file, header excluded. */
+        public final long byteLength;
+        /** Names the segment's file, see {@link #fileName(int)}. */
+        public final int fileId;
+        final long tagOffset;
+        final int tagLength;
+        // PCM bytes of every segment indexed before this one, dropped ones included
+        final long bytesBefore;
+
+        Entry(long startTime, long endTime, long startSample, long byteLength, int fileId,
+              long tagOffset, int tagLength, long bytesBefore) {
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.startSample = startSample;
+            this.byteLength = byteLength;
+            this.fileId = fileId;
+            this.tagOffset = tagOffset;
+            this.tagLength = tagLength;
+            this.bytesBefore = bytesBefore;
+        }
+    }
+
+    private final File indexFile;
+    private final File tagFile;
+    private FileChannel index;
+    private FileChannel tags;
+    // Live entries from head on, oldest first
+    private final List<Entry> entries = new ArrayList<>();
+    private int head = 0;
+    // Records in the file before the first live one
+    private long dropped = 0;
+    private int nextFileId = 0;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Opens the index, creating it if need be, and loads every live record.
+     */
+    public SegmentIndex(File indexFile, File tagFile) throws IOException {
+        this.indexFile = indexFile;
+        this.tagFile = tagFile;
+        final boolean found = indexFile.length() >= HEADER_BYTES;
+        open();
+        if (found && load()) return;
+        // Missing or unreadable: start over
+        index.truncate(0);
+        tags.truncate(0);
+        dropped = 0;
+        writeHeader();
+    }
+
+    @SuppressWarnings("resource")
+    private void open() throws IOException {
+        index = new RandomAccessFile(indexFile, "rw").getChannel();
+        tags = new RandomAccessFile(tagFile, "rw").getChannel();
+    }
+
+    /**
+     * @return false if the file is not an index this version can read.
+     */
+    private boolean load() throws IOException {
+        header.clear();
+        readFully(index, header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) return false;
+        dropped = header.getLong();
+
+        final long records = (index.size() - HEADER_BYTES) / RECORD_BYTES;
+        if (dropped > records) return false;
+        // Cut a record torn by a crash
+        index.truncate(HEADER_BYTES + records * RECORD_BYTES);
+
+        final long liveStart = HEADER_BYTES + dropped * RECORD_BYTES;
+        final ByteBuffer all = ByteBuffer.allocate((int) (index.size() - liveStart)).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(index, all, liveStart);
+        all.flip();
+        long bytesBefore = 0;
+        while (all.remaining() >= RECORD_BYTES) {
+            final Entry entry = readRecord(all, bytesBefore);
+            entries.add(entry);
+            bytesBefore += entry.byteLength;
+            nextFileId = Math.max(nextFileId, entry.fileId + 1);
+        }
+        return true;
+    }
+
+    private static Entry readRecord(ByteBuffer buffer, long bytesBefore) {
+        final long startTime = buffer.getLong();
+        final long endTime = buffer.getLong();
+        final long startSample = buffer.getLong();
+        final long byteLength = buffer.getLong();
+        final long tagOffset = buffer.getLong();
+        final int fileId = buffer.getInt();
+        final int tagLength = buffer.getInt();
+        return new Entry(startTime, endTime, startSample, byteLength, fileId, tagOffset, tagLength, bytesBefore);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) throw new IOException("Unexpected end of " + channel);
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        header.clear();
+        header.putInt(MAGIC).putInt(VERSION).putLong(dropped);
+        header.flip();
+        writeFully(index, header, 0);
+    }
+
+    /**
+     * @return a file id no indexed segment uses yet.
+     */
+    public synchronized int reserveFileId() {
+        return nextFileId++;
+    }
+
+    /**
+     * @return the file name of the segment with the given id.
+     */
+    public static String fileName(int fileId) {
+        return String.format(Locale.US, "segment_%08d.wav", fileId);
+    }
+
+    /**
+     * Indexes a segment whose file is complete, after every segment indexed so far.
+     * @param tagsJson The segment's tags, on one line.
+     */
+    public synchronized Entry append(long startTime, long endTime, long startSample, long byteLength,
+                                     int fileId, String tagsJson) throws IOException {
+        final byte[] line = (fileId + " " + tagsJson + "\n").getBytes(StandardCharsets.UTF_8);
+        final long tagOffset = tags.size();
+        writeFully(tags, ByteBuffer.wrap(line), tagOffset);
+
+        final Entry last = size() > 0 ? get(size() - 1) : null;
+        final long bytesBefore = last != null ? last.bytesBefore + last.byteLength : 0;
+        final Entry entry = new Entry(startTime, endTime, startSample, byteLength, fileId,
+                tagOffset, line.length - 1, bytesBefore);
+        record.clear();
+        record.putLong(startTime).putLong(endTime).putLong(startSample).putLong(byteLength)
+                .putLong(tagOffset).putInt(fileId).putInt(entry.tagLength);
+        record.flip();
+        writeFully(index, record, index.size());
+        entries.add(entry);
+        nextFileId = Math.max(nextFileId, fileId + 1);
+        return entry;
+    }
+
+    public synchronized int size() {
+        return entries.size() - head;
+    }
+
+    /**
+     * @param i 0 for the oldest live segment.
+     */
+    public synchronized Entry get(int i) {
+        return entries.get(head + i);
+    }
+
+    /**
+     * Drops the oldest segment from the index. Deleting its file is up to the caller.
+     * @return the dropped entry, or null if the index is empty.
+     */
+    public synchronized Entry removeOldest() throws IOException {
+        if (size() == 0) return null;
+        final Entry entry = entries.get(head++);
+        dropped++;
+        if (dropped >= COMPACT_MIN_DROPPED && dropped > size()) {
+            compact();
+        } else {
+            writeHeader();
+        }
+        return entry;
+    }
+
+    /**
+     * @return PCM bytes of all live segments.
+     */
+    public synchronized long totalBytes() {
+        if (size() == 0) return 0;
+        final Entry last = get(size() - 1);
+        return last.bytesBefore + last.byteLength - get(0).bytesBefore;
+    }
+
+    /**
+     * Finds the oldest segment needed for the newest bytes of audio.
+     * @return index of the segment holding the first of those bytes, or 0 if the index holds
+     *         fewer.
+     */
+    public synchronized int findCovering(long bytes) {
+        if (size() == 0) return 0;
+        final Entry last = get(size() - 1);
+        final long from = last.bytesBefore + last.byteLength - bytes;
+        // Last live entry starting at or before from
+        int low = head;
+        int high = entries.size() - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (entries.get(mid).bytesBefore <= from) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low - head;
+    }
+
+    /**
+     * @return bytes of the segment to skip so that it and the ones after hold exactly the newest
+     *         bytes of audio; 0 if they hold no more than that.
+     */
+    public synchronized long skipFor(int i, long bytes) {
+        final Entry last = get(size() - 1);
+        return Math.max(0, last.bytesBefore + last.byteLength - bytes - get(i).bytesBefore);
+    }
+
+    /**
+     * @return the segment's tags, as given to {@link #append}, or null if they were lost.
+     */
+    public synchronized String readTags(Entry entry) throws IOException {
+        if (entry.tagOffset + entry.tagLength > tags.size()) return null;
+        final ByteBuffer buffer = ByteBuffer.allocate(entry.tagLength);
+        readFully(tags, buffer, entry.tagOffset);
+        final String line = new String(buffer.array(), StandardCharsets.UTF_8);
+        final String prefix = entry.fileId + " ";
+        return line.startsWith(prefix) ? line.substring(prefix.length()) : null;
+    }
+
+    /**
+     * Rewrites both files with the live segments only.
+     */
+    private void compact() throws IOException {
+        final File indexTemp = new File(indexFile.getPath() + ".tmp");
+        final File tagTemp = new File(tagFile.getPath() + ".tmp");
+        final List<Entry> live = new ArrayList<>(entries.subList(head, entries.size()));
+        final List<String> lines = new ArrayList<>(live.size());
+        for (Entry entry : live) {
+            final String line = readTags(entry);
+            lines.add(line != null ? line : "{}");
+        }
+        close();
+        if ((indexTemp.exists() && !indexTemp.delete()) || (tagTemp.exists() && !tagTemp.delete())) {
+            throw new IOException("Cannot replace " + indexTemp);
+        }
+        try (RandomAccessFile indexOut = new RandomAccessFile(indexTemp, "rw");
+             RandomAccessFile tagOut = new RandomAccessFile(tagTemp, "rw")) {
+            index = indexOut.getChannel();
+            tags = tagOut.getChannel();
+            entries.clear();
+            head = 0;
+            dropped = 0;
+            writeHeader();
+            for (int i = 0; i < live.size(); i++) {
+                final Entry entry = live.get(i);
+                append(entry.startTime, entry.endTime, entry.startSample, entry.byteLength, entry.fileId, lines.get(i));
+            }
+        }
+        if (!tagTemp.renameTo(tagFile) || !indexTemp.renameTo(indexFile)) {
+            throw new IOException("Failed to replace " + indexFile);
+        }
+        open();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (index != null) index.close();
+        } finally {
+            if (tags != null) tags.close();
+        }
+    }
+}
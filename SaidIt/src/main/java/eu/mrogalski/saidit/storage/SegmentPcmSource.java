@@ -0,0 +1,128 @@
+package eu.mrogalski.saidit.storage;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import eu.mrogalski.saidit.export.PcmSource;
+
+/**
+ * The PCM of consecutive segment files, read in place. A file deleted before it is reached is
+ * skipped; one already open stays readable.
+ */
+final class SegmentPcmSource implements PcmSource {
+    private static final String TAG = SegmentPcmSource.class.getSimpleName();
+
+    private final File dir;
+    private final List<SegmentIndex.Entry> segments;
+    private final int headerBytes;
+    // Bytes of the first segment before the requested audio
+    private final long firstSkip;
+    private final long length;
+    private int next = 0;
+    private long skip;
+    private FileChannel current;
+    // Bytes left in the current file
+    private long remaining;
+    private long delivered;
+
+    /**
+     * @param segments Oldest first.
+     * @param skip Bytes of the first segment's PCM to leave out.
+     */
+    SegmentPcmSource(File dir, List<SegmentIndex.Entry> segments, int headerBytes, long skip) {
+        this(dir, segments, headerBytes, skip, Long.MAX_VALUE);
+    }
+
+    private SegmentPcmSource(File dir, List<SegmentIndex.Entry> segments, int headerBytes, long skip, long maxLength) {
+        this.dir = dir;
+        this.segments = segments;
+        this.headerBytes = headerBytes;
+        this.firstSkip = skip;
+        this.skip = skip;
+        long total = -skip;
+        for (SegmentIndex.Entry segment : segments) {
+            total += segment.byteLength;
+        }
+        this.length = Math.max(0, Math.min(total, maxLength));
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (delivered >= length) return -1;
+        while (current == null || remaining == 0) {
+            if (!openNext()) return -1;
+        }
+        final int limit = dst.limit();
+        dst.limit(dst.position() + (int) Math.min(dst.remaining() & ~1, Math.min(remaining, length - delivered)));
+        try {
+            final int read = current.read(dst);
+            if (read < 0) {
+                // File shorter than indexed
+                remaining = 0;
+                return 0;
+            }
+            remaining -= read;
+            delivered += read;
+            return read;
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    @SuppressWarnings("resource")
+    private boolean openNext() throws IOException {
+        closeCurrent();
+        while (next < segments.size()) {
+            final SegmentIndex.Entry segment = segments.get(next++);
+            final long start = skip;
+            skip = 0;
+            final File file = new File(dir, SegmentIndex.fileName(segment.fileId));
+            try {
+                current = new RandomAccessFile(file, "r").getChannel();
+            } catch (FileNotFoundException e) {
+                Log.w(TAG, "Indexed segment missing: " + file.getName());
+                continue;
+            }
+            current.position(headerBytes + start);
+            remaining = segment.byteLength - start;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public long remaining() {
+        return length - delivered;
+    }
+
+    @Override
+    public PcmSource slice(long from, long to) {
+        long position = firstSkip + from;
+        int first = 0;
+        while (first < segments.size() && position >= segments.get(first).byteLength) {
+            position -= segments.get(first++).byteLength;
+        }
+        return new SegmentPcmSource(dir, segments.subList(first, segments.size()), headerBytes, position,
+                Math.max(0, Math.min(to, length) - from));
+    }
+
+    private void closeCurrent() throws IOException {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        next = segments.size();
+        closeCurrent();
+    }
+}
@@ -2,6 +2,9 @@ package eu.mrogalski.saidit.storage;
 
 import android.content.Context;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.util.Log;
 
 import org.json.JSONArray;
@@ -10,32 +13,83 @@ import org.json.JSONObject;
 
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.Date;
-import java.util.Locale;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
 import eu.mrogalski.saidit.AudioMemory;
 import eu.mrogalski.saidit.R;
+import eu.mrogalski.saidit.analysis.SegmentStats;
+import eu.mrogalski.saidit.export.PcmSource;
+import eu.mrogalski.saidit.export.WavExporter;
 import simplesound.pcm.WavAudioFormat;
 import simplesound.pcm.WavFileWriter;
 
 public class SimpleRecordingStoreManager implements RecordingStoreManager {
     private static final String TAG = "RecordingStoreManager";
     private static final String SEGMENTS_SUBDIR = "segments";
+    private static final String INDEX_FILE = "segments.idx";
+    private static final String TAGS_FILE = "segments.tags";
+    private static final int WAV_HEADER_BYTES = 44;
     private static final int MAX_SEGMENTS = 100; // Simple retention policy
+    // Range mode writes a segment this long before the ring would overwrite it
+    private static final long EVICTION_MARGIN_MS = 30_000;
+
+    /**
+     * When segments received as ranges are copied from AudioMemory into segment files.
+     */
+    public enum Persist {
+        /** As soon as the segment ends. */
+        ON_END,
+        /** Shortly before the ring overwrites the segment, or on export. */
+        BEFORE_EVICTION,
+        /** Only on export; segments the ring overwrites first are lost. */
+        ON_EXPORT
+    }
+
+    private static final class PendingSegment {
+        final long startTime;
+        final JSONArray tags = new JSONArray();
+        long startSample = -1;
+        long endSample = -1;
+        long endTime;
+        SegmentStats stats;
+
+        PendingSegment(long startTime) {
+            this.startTime = startTime;
+        }
+    }
 
     private final Context context;
     private final File storageDir;
     private final int sampleRate;
+    // Null if it could not be opened, in which case nothing is stored
+    private SegmentIndex index;
     private WavFileWriter currentWriter;
     private File currentFile;
-    private File currentTagFile;
+    private int currentFileId;
+    private long currentStartTime;
     private JSONArray currentTags;
+    private SegmentStats currentStats;
+
+    // Range mode, see setRangeSource()
+    private AudioMemory memory;
+    private Persist persist;
+    private HandlerThread persisterThread;
+    private Handler persister;
+    private final Runnable persistDue = () -> persistPending(false);
+    private PendingSegment currentRange;
+    // Ended segments not written yet, oldest first; guarded by itself
+    private final ArrayDeque<PendingSegment> pending = new ArrayDeque<>();
+    // Serializes writing pending segments between the persister and exports
+    private final Object persistLock = new Object();
 
     public SimpleRecordingStoreManager(Context context, int sampleRate) {
         this.context = context;
@@ -49,45 +103,175 @@ public class SimpleRecordingStoreManager implements RecordingStoreManager {
         if (!storageDir.exists() && !storageDir.mkdirs()) {
             Log.e(TAG, "Failed to create storage directory.");
         }
+        openIndex();
+    }
+
+    /**
+     * Loads the segment index, first indexing segment files from before there was one.
+     */
+    private void openIndex() {
+        final File indexFile = new File(storageDir, INDEX_FILE);
+        final boolean existed = indexFile.exists();
+        try {
+            index = new SegmentIndex(indexFile, new File(storageDir, TAGS_FILE));
+            if (!existed) importSegmentFiles();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open segment index", e);
+        }
+    }
+
+    /**
+     * Indexes the segment files earlier versions left, oldest first, renaming each after its file
+     * id. Runs once, when the index is created.
+     */
+    private void importSegmentFiles() throws IOException {
+        File[] files = storageDir.listFiles((dir, name) -> name.startsWith("segment_")
+                && name.endsWith(".wav") && !name.endsWith(".tmp.wav"));
+        if (files == null || files.length == 0) return;
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            final long bytes = Math.max(0, file.length() - WAV_HEADER_BYTES);
+            final long endTime = file.lastModified();
+            final long startTime = endTime - bytes * 1000 / (sampleRate * 2L);
+            File target;
+            int fileId;
+            do {
+                fileId = index.reserveFileId();
+                target = new File(storageDir, SegmentIndex.fileName(fileId));
+            } while (target.exists() && !target.equals(file));
+
+            final File tagFile = new File(storageDir, file.getName().replace(".wav", ".json"));
+            JSONArray tags = new JSONArray();
+            if (tagFile.exists()) {
+                try {
+                    tags = new JSONArray(new String(Files.readAllBytes(tagFile.toPath()), StandardCharsets.UTF_8));
+                } catch (JSONException e) {
+                    Log.w(TAG, "Unreadable tags " + tagFile.getName(), e);
+                }
+            }
+            if (!file.renameTo(target)) {
+                Log.w(TAG, "Failed to rename segment " + file.getName());
+                continue;
+            }
+            index.append(startTime, endTime, -1, bytes, fileId, segmentMeta(tags, null));
+            if (tagFile.exists() && !tagFile.delete()) {
+                Log.w(TAG, "Failed to delete " + tagFile.getName());
+            }
+        }
+        Log.i(TAG, "Indexed " + index.size() + " existing segments");
+    }
+
+    /**
+     * Switches to range mode: segments arrive as ranges of memory through
+     * {@link #onSegmentRange} rather than as data, and each is copied to its segment file in one
+     * sequential pass on a background thread when persist says so.
+     */
+    public void setRangeSource(AudioMemory memory, Persist persist) {
+        this.memory = memory;
+        this.persist = persist;
+        persisterThread = new HandlerThread("segment-persister", Process.THREAD_PRIORITY_BACKGROUND);
+        persisterThread.start();
+        persister = new Handler(persisterThread.getLooper());
+    }
+
+    private static String tempName(int fileId) {
+        return SegmentIndex.fileName(fileId).replace(".wav", ".tmp.wav");
     }
 
     @Override
     public void onSegmentStart(long timestamp) throws IOException {
+        if (memory != null) {
+            if (currentRange != null) {
+                onSegmentEnd(System.currentTimeMillis());
+            }
+            currentRange = new PendingSegment(timestamp);
+            return;
+        }
         if (currentWriter != null) {
             Log.w(TAG, "Segment started without ending the previous one. Finalizing now.");
             onSegmentEnd(System.currentTimeMillis());
         }
-        String fileName = new SimpleDateFormat("'segment'_yyyy-MM-dd_HH-mm-ss", Locale.US).format(new Date(timestamp));
-        currentFile = new File(storageDir, fileName + ".tmp.wav");
-        currentTagFile = new File(storageDir, fileName + ".tmp.json");
+        if (index == null) {
+            throw new IOException("Segment index unavailable");
+        }
+        currentFileId = index.reserveFileId();
+        currentStartTime = timestamp;
+        currentFile = new File(storageDir, tempName(currentFileId));
         currentTags = new JSONArray();
         currentWriter = new WavFileWriter(WavAudioFormat.wavFormat(sampleRate, 16, 1), currentFile);
         Log.d(TAG, "Started new segment file: " + currentFile.getAbsolutePath());
     }
 
+    @Override
+    public void onSegmentRange(long startSample, long endSample) {
+        if (currentRange != null) {
+            currentRange.startSample = startSample;
+            currentRange.endSample = endSample;
+        }
+    }
+
+    @Override
+    public void onSegmentStats(SegmentStats stats) {
+        if (currentRange != null) {
+            currentRange.stats = stats;
+        } else {
+            currentStats = stats;
+        }
+    }
+
+    @Override
+    public void onSegmentDiscarded(long timestamp) {
+        if (memory != null) {
+            currentRange = null;
+            return;
+        }
+        if (currentWriter != null) {
+            try {
+                currentWriter.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing discarded segment file", e);
+            }
+            if (!currentFile.delete()) {
+                Log.w(TAG, "Failed to delete discarded segment: " + currentFile.getName());
+            }
+        }
+        currentWriter = null;
+        currentFile = null;
+        currentStats = null;
+    }
+
     @Override
     public void onSegmentEnd(long timestamp) {
+        if (memory != null) {
+            final PendingSegment segment = currentRange;
+            currentRange = null;
+            if (segment != null && segment.endSample > segment.startSample) {
+                segment.endTime = timestamp;
+                synchronized (pending) {
+                    pending.add(segment);
+                }
+                schedulePersist();
+            }
+            return;
+        }
         if (currentWriter != null) {
             try {
                 currentWriter.close();
-                File finalFile = new File(currentFile.getAbsolutePath().replace(".tmp.wav", ".wav"));
+                File finalFile = new File(storageDir, SegmentIndex.fileName(currentFileId));
                 if (currentFile.renameTo(finalFile)) {
+                    index.append(currentStartTime, timestamp, -1, currentWriter.getTotalSampleBytesWritten(),
+                            currentFileId, segmentMeta(currentTags, currentStats));
                     Log.d(TAG, "Segment finalized: " + finalFile.getAbsolutePath());
                 } else {
                     Log.e(TAG, "Failed to rename segment file.");
                 }
-
-                // Save tags
-                File finalTagFile = new File(currentTagFile.getAbsolutePath().replace(".tmp.json", ".json"));
-                try (FileWriter fileWriter = new FileWriter(finalTagFile)) {
-                    fileWriter.write(currentTags.toString());
-                }
             } catch (IOException e) {
                 Log.e(TAG, "Error finalizing segment file", e);
             }
         }
         currentWriter = null;
         currentFile = null;
+        currentStats = null;
         applyRetentionPolicy();
     }
 
@@ -102,56 +286,199 @@ public class SimpleRecordingStoreManager implements RecordingStoreManager {
         }
     }
 
+    @Override
+    public void onSegmentData(ByteBuffer data) {
+        if (currentWriter != null) {
+            try {
+                currentWriter.write(data);
+            } catch (IOException e) {
+                Log.e(TAG, "Error writing to segment file", e);
+            }
+        }
+    }
+
     @Override
     public void onTag(AudioTag tag) {
-        if (currentTags != null) {
+        final JSONArray tags = currentRange != null ? currentRange.tags : currentTags;
+        if (tags != null) {
             try {
                 JSONObject tagJson = new JSONObject();
                 tagJson.put("label", tag.getLabel());
                 tagJson.put("confidence", tag.getConfidence());
                 tagJson.put("timestamp", tag.getTimestamp());
-                currentTags.put(tagJson);
+                tags.put(tagJson);
             } catch (JSONException e) {
                 Log.e(TAG, "Error creating tag JSON", e);
             }
         }
     }
+
     @Override
-    public File export(float durationSeconds, String fileName) throws IOException {
-        File[] files = storageDir.listFiles((dir, name) -> name.endsWith(".wav"));
-        if (files == null || files.length == 0) {
-            return null;
+    public void onMemoryReleasing() {
+        if (memory != null && persist != Persist.ON_EXPORT) {
+            persistPending(true);
         }
-        Arrays.sort(files, Comparator.comparingLong(File::lastModified).reversed());
+    }
 
-        File exportFile = new File(context.getCacheDir(), fileName + ".wav");
-        WavFileWriter writer = new WavFileWriter(WavAudioFormat.wavFormat(sampleRate, 16, 1), exportFile);
+    /**
+     * Wakes the persister when the oldest pending segment is due.
+     */
+    private void schedulePersist() {
+        final Handler handler = persister;
+        if (handler == null || persist == Persist.ON_EXPORT) return;
+        final PendingSegment head;
+        synchronized (pending) {
+            head = pending.peek();
+        }
+        handler.removeCallbacks(persistDue);
+        if (head != null) {
+            handler.postDelayed(persistDue, persist == Persist.ON_END ? 0 : millisUntilDue(head));
+        }
+    }
 
-        long bytesToExport = (long) (durationSeconds * sampleRate * 2);
-        long bytesExported = 0;
+    /**
+     * @return time left before the segment should be written, going by how far the writer is
+     *         from overwriting its first sample.
+     */
+    private long millisUntilDue(PendingSegment segment) {
+        final long capacitySamples = memory.getAllocatedMemorySize() / AudioMemory.BYTES_PER_SAMPLE;
+        final long remaining = segment.startSample + capacitySamples - memory.getWriteSamplePosition();
+        return Math.max(0, remaining * 1000 / sampleRate - EVICTION_MARGIN_MS);
+    }
 
-        for (File file : files) {
-            if (bytesExported >= bytesToExport) {
-                break;
+    /**
+     * Writes the pending segments that are due, or all of them.
+     */
+    private void persistPending(boolean all) {
+        synchronized (persistLock) {
+            while (true) {
+                final PendingSegment segment;
+                synchronized (pending) {
+                    segment = pending.peek();
+                    if (segment == null) break;
+                    if (!all && persist == Persist.BEFORE_EVICTION && millisUntilDue(segment) > 0) break;
+                    pending.poll();
+                }
+                writeSegment(segment);
+            }
+        }
+        if (!all) schedulePersist();
+    }
+
+    /**
+     * Copies a segment's range from memory into a segment file and indexes it with its tags.
+     */
+    private void writeSegment(PendingSegment segment) {
+        if (index == null) return;
+        final int fileId = index.reserveFileId();
+        final String name = SegmentIndex.fileName(fileId);
+        final File tempFile = new File(storageDir, tempName(fileId));
+        final long wanted = (segment.endSample - segment.startSample) * AudioMemory.BYTES_PER_SAMPLE;
+        long written;
+        try (WavFileWriter writer = new WavFileWriter(WavAudioFormat.wavFormat(sampleRate, 16, 1), tempFile)) {
+            long position = segment.startSample;
+            while (position < segment.endSample) {
+                int count = (int) Math.min(segment.endSample - position, Integer.MAX_VALUE / 2);
+                long next = memory.read(position, count, (array, offset, length) -> {
+                    writer.write(array, offset, length);
+                    return length;
+                });
+                if (next <= position) break;
+                position = next;
             }
-            long fileBytes = file.length() - 44; // Exclude WAV header
-            long bytesToWrite = Math.min(bytesToExport - bytesExported, fileBytes);
-
-            try (java.io.FileInputStream fis = new java.io.FileInputStream(file)) {
-                fis.skip(44); // Skip WAV header
-                byte[] buffer = new byte[4096];
-                int read;
-                while ((read = fis.read(buffer)) > 0 && bytesToWrite > 0) {
-                    int toWrite = (int) Math.min(read, bytesToWrite);
-                    writer.write(buffer, 0, toWrite);
-                    bytesToWrite -= toWrite;
-                    bytesExported += toWrite;
+            written = writer.getTotalSampleBytesWritten();
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing segment " + name, e);
+            if (!tempFile.delete()) Log.w(TAG, "Failed to delete " + tempFile.getName());
+            return;
+        }
+        if (written < wanted) {
+            Log.w(TAG, "Segment " + name + " lost " + (wanted - written) + " bytes the ring had overwritten");
+        }
+        if (written == 0) {
+            if (!tempFile.delete()) Log.w(TAG, "Failed to delete " + tempFile.getName());
+            return;
+        }
+        if (!tempFile.renameTo(new File(storageDir, name))) {
+            Log.e(TAG, "Failed to rename segment file.");
+            return;
+        }
+        try {
+            index.append(segment.startTime, segment.endTime, segment.startSample, written, fileId,
+                    segmentMeta(segment.tags, segment.stats));
+        } catch (IOException e) {
+            Log.e(TAG, "Error indexing segment " + name, e);
+        }
+        Log.d(TAG, "Segment persisted: " + name + ", " + written + " bytes");
+        applyRetentionPolicy();
+    }
+
+    /**
+     * @return the segment's tags, and its statistics with how often each tag label came up, as
+     *         one line of JSON for the index.
+     */
+    private static String segmentMeta(JSONArray tags, SegmentStats stats) {
+        final JSONObject json = new JSONObject();
+        try {
+            json.put("tags", tags);
+            if (stats != null) {
+                JSONObject histogram = new JSONObject();
+                for (int i = 0; i < tags.length(); i++) {
+                    JSONObject tag = tags.optJSONObject(i);
+                    if (tag == null) continue;
+                    String label = tag.optString("label", "");
+                    histogram.put(label, histogram.optInt(label, 0) + 1);
                 }
+                JSONObject statsJson = new JSONObject();
+                statsJson.put("duration_ms", stats.getDurationMs());
+                statsJson.put("speech_ratio", stats.getSpeechRatio());
+                statsJson.put("peak", stats.getPeak());
+                statsJson.put("rms", stats.getRms());
+                statsJson.put("tag_histogram", histogram);
+                json.put("stats", statsJson);
             }
+        } catch (JSONException e) {
+            Log.e(TAG, "Error creating segment JSON", e);
         }
+        return json.toString();
+    }
 
-        writer.close();
-        return exportFile;
+    @Override
+    public PcmSource openExport(float durationSeconds) throws IOException {
+        if (memory != null) {
+            // Segments still only in memory are part of the history too
+            persistPending(true);
+        }
+        if (index == null) {
+            return null;
+        }
+        final long bytesToExport = (long) (durationSeconds * sampleRate * 2);
+        // The newest segments holding the requested audio, oldest first
+        final List<SegmentIndex.Entry> segments = new ArrayList<>();
+        final long skip;
+        synchronized (index) {
+            if (index.size() == 0) {
+                return null;
+            }
+            final int first = index.findCovering(bytesToExport);
+            skip = index.skipFor(first, bytesToExport);
+            for (int i = first; i < index.size(); i++) {
+                segments.add(index.get(i));
+            }
+        }
+        return new SegmentPcmSource(storageDir, segments, WAV_HEADER_BYTES, skip);
+    }
+
+    @Override
+    public File export(float durationSeconds, String fileName) throws IOException {
+        try (PcmSource source = openExport(durationSeconds)) {
+            if (source == null) {
+                return null;
+            }
+            File exportFile = new File(context.getCacheDir(), fileName + ".wav");
+            new WavExporter().export(source, exportFile, sampleRate, 1, 16);
+            return exportFile;
+        }
     }
 
     @Override
@@ -176,7 +503,8 @@ public class SimpleRecordingStoreManager implements RecordingStoreManager {
 
         // Calculate how many bytes we actually want to export
         long requestedBytes = (long) (durationSeconds * sampleRate * 2);
-        long bytesToExport = Math.min(requestedBytes, stats.filled);
+        long availableBytes = stats.filled + stats.archivedSamples * AudioMemory.BYTES_PER_SAMPLE;
+        long bytesToExport = Math.min(Math.min(requestedBytes, availableBytes), Integer.MAX_VALUE);
         Log.i(TAG, "exportFromBuffer: requested=" + requestedBytes + " bytes, will export=" + bytesToExport + " bytes");
 
         File exportFile = new File(context.getCacheDir(), fileName + ".wav");
@@ -187,20 +515,21 @@ public class SimpleRecordingStoreManager implements RecordingStoreManager {
             writerRef[0] = new WavFileWriter(WavAudioFormat.wavFormat(sampleRate, 16, 1), exportFile);
             Log.d(TAG, "exportFromBuffer: WAV file created at " + exportFile.getAbsolutePath());
 
-            // Dump audio data from memory to file
-            memory.dump((byte[] buffer, int offset, int count) -> {
+            // Write audio straight from the memory's buffer to the file
+            long overwritten = memory.dump((ByteBuffer view) -> {
                 WavFileWriter writer = writerRef[0];
                 if (writer == null) {
                     Log.e(TAG, "exportFromBuffer: writer is null in lambda!");
-                    return 0;
+                    return;
                 }
                 
                 if (bytesWritten.get() >= bytesToExport) {
-                    return 0;
+                    return;
                 }
-                int toWrite = (int) Math.min(count, bytesToExport - bytesWritten.get());
+                int toWrite = (int) Math.min(view.remaining(), bytesToExport - bytesWritten.get());
+                view.limit(view.position() + toWrite);
                 try {
-                    writer.write(buffer, offset, toWrite);
+                    writer.write(view);
                     bytesWritten.addAndGet(toWrite);
                     if (bytesWritten.get() % 8192 == 0 || bytesWritten.get() == bytesToExport) {
                         Log.d(TAG, "exportFromBuffer: progress - written=" + bytesWritten.get() + "/" + bytesToExport);
@@ -208,8 +537,10 @@ public class SimpleRecordingStoreManager implements RecordingStoreManager {
                 } catch (IOException e) {
                     Log.e(TAG, "exportFromBuffer: ERROR writing to export file", e);
                 }
-                return toWrite;
             }, (int) bytesToExport);
+            if (overwritten > 0) {
+                Log.w(TAG, "exportFromBuffer: " + overwritten + " bytes were overwritten by capture during export");
+            }
             
             Log.d(TAG, "exportFromBuffer: dump completed, total written=" + bytesWritten.get());
         } catch (Exception e) {
@@ -250,21 +581,47 @@ public class SimpleRecordingStoreManager implements RecordingStoreManager {
     }
 
     private void applyRetentionPolicy() {
-        File[] files = storageDir.listFiles((dir, name) -> name.endsWith(".wav"));
-        if (files != null && files.length > MAX_SEGMENTS) {
-            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
-            for (int i = 0; i < files.length - MAX_SEGMENTS; i++) {
-                if (files[i].delete()) {
-                    Log.d(TAG, "Deleted old segment: " + files[i].getName());
+        if (index == null) return;
+        try {
+            while (index.size() > MAX_SEGMENTS) {
+                final SegmentIndex.Entry oldest = index.removeOldest();
+                final File file = new File(storageDir, SegmentIndex.fileName(oldest.fileId));
+                if (file.delete()) {
+                    Log.d(TAG, "Deleted old segment: " + file.getName());
                 } else {
-                    Log.w(TAG, "Failed to delete old segment: " + files[i].getName());
+                    Log.w(TAG, "Failed to delete old segment: " + file.getName());
                 }
             }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to update segment index", e);
+        }
+    }
+
+    private void closeIndex() {
+        if (index == null) return;
+        try {
+            index.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing segment index", e);
         }
     }
 
     @Override
     public void close() {
         onSegmentEnd(System.currentTimeMillis());
+        if (persisterThread != null) {
+            persister = null;
+            persisterThread.quitSafely();
+            persisterThread = null;
+            // Written before returning rather than on the persister, so that the memory cannot
+            // be released first
+            if (persist != Persist.ON_EXPORT) {
+                persistPending(true);
+            }
+        }
+        // After whatever the persister was still writing
+        synchronized (persistLock) {
+            closeIndex();
+        }
     }
 }
@@ -2,6 +2,9 @@ package eu.mrogalski.saidit.vad;
 
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
  * A simple energy-based Voice Activity Detector.
  * This is a placeholder implementation and should be replaced with a more robust VAD.
@@ -41,6 +44,29 @@ public class EnergyVad implements Vad {
             sum += (sample / 32768.0) * (sample / 32768.0);
         }
 
+        return isAboveThreshold(sum, count);
+    }
+
+    @Override
+    public boolean process(ByteBuffer pcm) {
+        int count = pcm.remaining() / 2;
+        if (count == 0) {
+            return false;
+        }
+
+        ByteOrder order = pcm.order();
+        pcm.order(ByteOrder.LITTLE_ENDIAN);
+        double sum = 0.0;
+        int start = pcm.position();
+        for (int i = 0; i < count; i++) {
+            short sample = pcm.getShort(start + i * 2);
+            sum += (sample / 32768.0) * (sample / 32768.0);
+        }
+        pcm.order(order);
+        return isAboveThreshold(sum, count);
+    }
+
+    private boolean isAboveThreshold(double sum, int count) {
         double rms = Math.sqrt(sum / count);
         double energy = 20 * Math.log10(rms);
 
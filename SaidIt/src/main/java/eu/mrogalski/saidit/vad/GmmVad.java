@@ -0,0 +1,748 @@
+package eu.mrogalski.saidit.vad;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Pure Java, fixed-point port of the WebRTC voice activity detector.
+ *
+ * Audio is brought down to 8 kHz and split by a tree of all-pass QMF filters into six sub-bands
+ * (80-250, 250-500, 500-1000, 1000-2000, 2000-3000 and 3000-4000 Hz). The log energy of each band
+ * is scored against a two-Gaussian noise model and a two-Gaussian speech model; the per-band and
+ * the weighted total log likelihood ratios decide, and the models then adapt to the frame.
+ * Decisions are held for a few frames after speech ends, as in the original.
+ *
+ * Frames are 10, 20 or 30 ms at 8, 16, 32 or 48 kHz. Input of any length is collected into frames
+ * internally; all buffers are allocated in {@link #init}, none per frame.
+ *
+ * Modes follow {@link Vad}: 0 is least sensitive, which is WebRTC's most aggressive mode 3.
+ * 16 and 32 kHz use WebRTC's own half-band downsamplers; 48 kHz uses a single decimating FIR
+ * instead of the signal processing library's 48-to-8 kHz resampler chain.
+ */
+public class GmmVad implements Vad {
+    private static final String TAG = "GmmVad";
+
+    private static final int NUM_CHANNELS = 6;
+    private static final int NUM_GAUSSIANS = 2;
+    private static final int TABLE_SIZE = NUM_CHANNELS * NUM_GAUSSIANS;
+    private static final int MIN_ENERGY = 10;
+
+    // Filter bank
+    private static final int[] HP_ZERO_COEFS = {6631, -13262, 6631};
+    private static final int[] HP_POLE_COEFS = {16384, -7756, 5620};
+    private static final int[] ALL_PASS_COEFS_Q15 = {20972, 5571};
+    private static final int[] OFFSET_VECTOR = {368, 368, 272, 176, 176, 176};
+    // 160 * log10(2) in Q9
+    private static final int LOG_CONST = 24660;
+    // 14 in Q10
+    private static final int LOG_ENERGY_INT_PART = 14336;
+
+    // Half-band downsampler, Q13
+    private static final int[] DOWNSAMPLE_COEFS_Q13 = {5243, 1392};
+
+    // Gaussian probability
+    private static final int COMP_VAR = 22005;
+    // log2(e) in Q12
+    private static final int LOG2_EXP = 5909;
+
+    // Minimum statistics of each band's log energy
+    private static final int SMOOTHING_DOWN = 6553;
+    private static final int SMOOTHING_UP = 32439;
+
+    // Model
+    private static final int[] SPECTRUM_WEIGHT = {6, 8, 10, 12, 14, 16};
+    private static final int NOISE_UPDATE_CONST = 655;
+    private static final int SPEECH_UPDATE_CONST = 6554;
+    private static final int BACK_ETA = 154;
+    private static final int[] MINIMUM_DIFFERENCE = {544, 544, 576, 576, 576, 576};
+    private static final int[] MAXIMUM_SPEECH = {11392, 11392, 11520, 11520, 11520, 11520};
+    private static final int[] MINIMUM_MEAN = {640, 768};
+    private static final int[] MAXIMUM_NOISE = {9216, 9088, 8960, 8832, 8704, 8576};
+    private static final int[] NOISE_DATA_WEIGHTS = {34, 62, 72, 66, 53, 25, 94, 66, 56, 62, 75, 103};
+    private static final int[] SPEECH_DATA_WEIGHTS = {48, 82, 45, 87, 50, 47, 80, 46, 83, 41, 78, 81};
+    private static final short[] NOISE_DATA_MEANS =
+            {6738, 4892, 7065, 6715, 6771, 3369, 7646, 3863, 7820, 7266, 5020, 4362};
+    private static final short[] SPEECH_DATA_MEANS =
+            {8306, 10085, 10078, 11823, 11843, 6309, 9473, 9571, 10879, 7581, 8180, 7483};
+    private static final short[] NOISE_DATA_STDS =
+            {378, 1064, 493, 582, 688, 593, 474, 697, 475, 688, 421, 455};
+    private static final short[] SPEECH_DATA_STDS =
+            {555, 505, 567, 524, 585, 1231, 509, 828, 492, 1540, 1079, 850};
+    private static final int MAX_SPEECH_FRAMES = 6;
+    private static final int MIN_STD = 384;
+
+    // By WebRTC mode (0 quality ... 3 very aggressive), then by 10, 20 and 30 ms frames
+    private static final int[][] OVER_HANG_MAX_1 = {{8, 4, 3}, {8, 4, 3}, {6, 3, 2}, {6, 3, 2}};
+    private static final int[][] OVER_HANG_MAX_2 = {{14, 7, 5}, {14, 7, 5}, {9, 5, 3}, {9, 5, 3}};
+    private static final int[][] LOCAL_THRESHOLD = {{24, 21, 24}, {37, 32, 37}, {82, 78, 82}, {94, 94, 94}};
+    private static final int[][] GLOBAL_THRESHOLD =
+            {{57, 48, 57}, {100, 80, 100}, {285, 260, 285}, {1100, 1050, 1100}};
+
+    // 48 to 8 kHz decimator: windowed-sinc low-pass at 3.4 kHz, Q15
+    private static final int DECIMATION = 6;
+    private static final short[] DECIMATOR_TAPS = decimatorTaps(97, 3400.0 / 48000);
+
+    private int sampleRate;
+    private int frameMs = 20;
+    private int webRtcMode;
+
+    // Input collected into frames
+    private short[] frame;
+    private int frameSamples;
+    private int filled;
+    private boolean speech;
+
+    // Scratch, sized for a 30 ms frame
+    private final short[] wideband = new short[480];
+    private final short[] narrowband = new short[240];
+    private final short[] hp120 = new short[120];
+    private final short[] lp120 = new short[120];
+    private final short[] hp60 = new short[60];
+    private final short[] lp60 = new short[60];
+    // Package-private for tests
+    final short[] features = new short[NUM_CHANNELS];
+    private final short[] deltaN = new short[TABLE_SIZE];
+    private final short[] deltaS = new short[TABLE_SIZE];
+    private final short[] ngprvec = new short[TABLE_SIZE];
+    private final short[] sgprvec = new short[TABLE_SIZE];
+    private final int[] noiseProbability = new int[NUM_GAUSSIANS];
+    private final int[] speechProbability = new int[NUM_GAUSSIANS];
+    private int totalEnergy;
+
+    // Detector state
+    private final int[] downsamplingFilterStates = new int[4];
+    private final short[] decimatorHistory = new short[DECIMATOR_TAPS.length];
+    private int decimatorPos;
+    private int decimatorPhase;
+    private final short[] upperState = new short[5];
+    private final short[] lowerState = new short[5];
+    private final short[] hpFilterState = new short[4];
+    private final short[] noiseMeans = new short[TABLE_SIZE];
+    private final short[] speechMeans = new short[TABLE_SIZE];
+    private final short[] noiseStds = new short[TABLE_SIZE];
+    private final short[] speechStds = new short[TABLE_SIZE];
+    private final short[] lowValueVector = new short[16 * NUM_CHANNELS];
+    private final short[] indexVector = new short[16 * NUM_CHANNELS];
+    private final short[] meanValue = new short[NUM_CHANNELS];
+    private int frameCounter;
+    private int overHang;
+    private int numOfSpeech;
+
+    public GmmVad() {
+        setMode(3);
+    }
+
+    public static boolean isSupported(int sampleRate) {
+        return sampleRate == 8000 || sampleRate == 16000 || sampleRate == 32000 || sampleRate == 48000;
+    }
+
+    private static short[] decimatorTaps(int length, double cutoff) {
+        double[] h = new double[length];
+        int middle = length / 2;
+        double sum = 0;
+        for (int i = 0; i < length; i++) {
+            int n = i - middle;
+            double sinc = n == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * n) / (Math.PI * n);
+            h[i] = sinc * (0.54 - 0.46 * Math.cos(2 * Math.PI * i / (length - 1)));
+            sum += h[i];
+        }
+        short[] taps = new short[length];
+        for (int i = 0; i < length; i++) {
+            taps[i] = (short) Math.round(h[i] / sum * 32768);
+        }
+        return taps;
+    }
+
+    @Override
+    public void init(int sampleRate) {
+        if (!isSupported(sampleRate)) {
+            throw new IllegalArgumentException("Unsupported sample rate: " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+        this.frame = new short[sampleRate * 30 / 1000];
+        setFrameMs(frameMs);
+        reset();
+        Log.d(TAG, "Initialized with sample rate: " + sampleRate + ", " + frameMs + " ms frames");
+    }
+
+    @Override
+    public void setMode(int mode) {
+        webRtcMode = 3 - Math.max(0, Math.min(3, mode));
+    }
+
+    /**
+     * @param frameMs 10, 20 or 30. Audio collected towards the current frame is discarded.
+     */
+    public void setFrameMs(int frameMs) {
+        if (frameMs != 10 && frameMs != 20 && frameMs != 30) {
+            throw new IllegalArgumentException("Unsupported frame length: " + frameMs + " ms");
+        }
+        this.frameMs = frameMs;
+        this.frameSamples = sampleRate * frameMs / 1000;
+        this.filled = 0;
+    }
+
+    /**
+     * Returns the detector to its initial models, as WebRtcVad_InitCore does.
+     */
+    public void reset() {
+        filled = 0;
+        speech = false;
+        frameCounter = 0;
+        overHang = 0;
+        numOfSpeech = 0;
+        Arrays.fill(downsamplingFilterStates, 0);
+        Arrays.fill(decimatorHistory, (short) 0);
+        decimatorPos = 0;
+        decimatorPhase = 0;
+        System.arraycopy(NOISE_DATA_MEANS, 0, noiseMeans, 0, TABLE_SIZE);
+        System.arraycopy(SPEECH_DATA_MEANS, 0, speechMeans, 0, TABLE_SIZE);
+        System.arraycopy(NOISE_DATA_STDS, 0, noiseStds, 0, TABLE_SIZE);
+        System.arraycopy(SPEECH_DATA_STDS, 0, speechStds, 0, TABLE_SIZE);
+        Arrays.fill(lowValueVector, (short) 10000);
+        Arrays.fill(indexVector, (short) 0);
+        Arrays.fill(upperState, (short) 0);
+        Arrays.fill(lowerState, (short) 0);
+        Arrays.fill(hpFilterState, (short) 0);
+        Arrays.fill(meanValue, (short) 1600);
+    }
+
+    @Override
+    public boolean process(byte[] pcm, int offset, int length) {
+        return process(ByteBuffer.wrap(pcm, offset, length).order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    /**
+     * @return true if any frame completed by this audio was speech; if none was completed, the
+     *         last decision.
+     */
+    @Override
+    public boolean process(ByteBuffer pcm) {
+        final int end = pcm.limit() - 1;
+        final boolean swap = pcm.order() != ByteOrder.LITTLE_ENDIAN;
+        boolean completed = false;
+        boolean any = false;
+        for (int i = pcm.position(); i < end; i += 2) {
+            short sample = pcm.getShort(i);
+            frame[filled++] = swap ? Short.reverseBytes(sample) : sample;
+            if (filled == frameSamples) {
+                filled = 0;
+                speech = calcVad() > 0;
+                completed = true;
+                any |= speech;
+            }
+        }
+        return completed ? any : speech;
+    }
+
+    private int calcVad() {
+        final short[] in;
+        final int length;
+        switch (sampleRate) {
+            case 8000:
+                in = frame;
+                length = frameSamples;
+                break;
+            case 16000:
+                downsample(frame, frameSamples, narrowband, 0);
+                in = narrowband;
+                length = frameSamples / 2;
+                break;
+            case 32000:
+                downsample(frame, frameSamples, wideband, 2);
+                downsample(wideband, frameSamples / 2, narrowband, 0);
+                in = narrowband;
+                length = frameSamples / 4;
+                break;
+            default:
+                in = narrowband;
+                length = decimate(frame, frameSamples, narrowband);
+                break;
+        }
+        int totalPower = calculateFeatures(in, length);
+        return gmmProbability(totalPower, length);
+    }
+
+    // ---- Resampling ----
+
+    /** Half-band all-pass downsampler, WebRtcVad_Downsampling. */
+    private void downsample(short[] in, int inLength, short[] out, int state) {
+        int state1 = downsamplingFilterStates[state];
+        int state2 = downsamplingFilterStates[state + 1];
+        int index = 0;
+        for (int n = 0; n < inLength >> 1; n++) {
+            short upper = (short) ((state1 >> 1) + ((DOWNSAMPLE_COEFS_Q13[0] * in[index]) >> 14));
+            state1 = in[index++] - ((DOWNSAMPLE_COEFS_Q13[0] * upper) >> 12);
+            short lower = (short) ((state2 >> 1) + ((DOWNSAMPLE_COEFS_Q13[1] * in[index]) >> 14));
+            state2 = in[index++] - ((DOWNSAMPLE_COEFS_Q13[1] * lower) >> 12);
+            out[n] = (short) (upper + lower);
+        }
+        downsamplingFilterStates[state] = state1;
+        downsamplingFilterStates[state + 1] = state2;
+    }
+
+    /** 48 to 8 kHz. */
+    private int decimate(short[] in, int inLength, short[] out) {
+        final int taps = DECIMATOR_TAPS.length;
+        int produced = 0;
+        for (int i = 0; i < inLength; i++) {
+            decimatorHistory[decimatorPos] = in[i];
+            if (++decimatorPos == taps) decimatorPos = 0;
+            if (++decimatorPhase < DECIMATION) continue;
+            decimatorPhase = 0;
+            long acc = 1 << 14;
+            int index = decimatorPos;
+            for (int k = 0; k < taps; k++) {
+                acc += DECIMATOR_TAPS[k] * decimatorHistory[index];
+                if (++index == taps) index = 0;
+            }
+            out[produced++] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, acc >> 15));
+        }
+        return produced;
+    }
+
+    // ---- Filter bank, vad_filterbank.c ----
+
+    private void highPassFilter(short[] in, int length, short[] out) {
+        final short[] state = hpFilterState;
+        for (int i = 0; i < length; i++) {
+            // All-zero section, Q14
+            int tmp = HP_ZERO_COEFS[0] * in[i];
+            tmp += HP_ZERO_COEFS[1] * state[0];
+            tmp += HP_ZERO_COEFS[2] * state[1];
+            state[1] = state[0];
+            state[0] = in[i];
+            // All-pole section, Q14
+            tmp -= HP_POLE_COEFS[1] * state[2];
+            tmp -= HP_POLE_COEFS[2] * state[3];
+            state[3] = state[2];
+            state[2] = (short) (tmp >> 14);
+            out[i] = state[2];
+        }
+    }
+
+    /** First-order all-pass on every other sample from inOffset. */
+    private static void allPassFilter(short[] in, int inOffset, int length, int coefficient,
+                                      short[] state, int band, short[] out) {
+        int state32 = state[band] * (1 << 16);
+        for (int i = 0; i < length; i++, inOffset += 2) {
+            int tmp32 = state32 + coefficient * in[inOffset];
+            short tmp16 = (short) (tmp32 >> 16);
+            out[i] = tmp16;
+            state32 = (in[inOffset] * (1 << 14)) - coefficient * tmp16;
+            state32 *= 2;
+        }
+        state[band] = (short) (state32 >> 16);
+    }
+
+    /** Splits into high and low half-bands, each downsampled by two. */
+    private void splitFilter(short[] in, int length, int band, short[] hpOut, short[] lpOut) {
+        final int half = length >> 1;
+        allPassFilter(in, 0, half, ALL_PASS_COEFS_Q15[0], upperState, band, hpOut);
+        allPassFilter(in, 1, half, ALL_PASS_COEFS_Q15[1], lowerState, band, lpOut);
+        for (int i = 0; i < half; i++) {
+            short upper = hpOut[i];
+            hpOut[i] = (short) (hpOut[i] - lpOut[i]);
+            lpOut[i] = (short) (lpOut[i] + upper);
+        }
+    }
+
+    /**
+     * @return 10 * log10(energy) in Q4 plus offset. Also tops up {@link #totalEnergy} while it
+     *         is at most {@link #MIN_ENERGY}.
+     */
+    private short logOfEnergy(short[] in, int length, int offset) {
+        int max = 0;
+        for (int i = 0; i < length; i++) {
+            max = Math.max(max, Math.abs(in[i]));
+        }
+        // WebRtcSpl_Energy: scaled so the sum fits in 31 bits
+        int totalRshifts = 0;
+        if (max != 0) {
+            int bits = 32 - Integer.numberOfLeadingZeros(length);
+            int norm = normW32(max * max);
+            totalRshifts = norm > bits ? 0 : bits - norm;
+        }
+        int energy = 0;
+        for (int i = 0; i < length; i++) {
+            energy += (in[i] * in[i]) >> totalRshifts;
+        }
+        if (energy == 0) {
+            return (short) offset;
+        }
+
+        // Normalize to 15 bits; log2 is then 14 plus the fraction, in Q10
+        int normalizingRshifts = 17 - Integer.numberOfLeadingZeros(energy);
+        totalRshifts += normalizingRshifts;
+        if (normalizingRshifts < 0) {
+            energy <<= -normalizingRshifts;
+        } else {
+            energy >>>= normalizingRshifts;
+        }
+        int log2Energy = (short) (LOG_ENERGY_INT_PART + ((energy & 0x3FFF) >> 4));
+        int logEnergy = (short) (((LOG_CONST * log2Energy) >> 19) + ((totalRshifts * LOG_CONST) >> 9));
+        if (logEnergy < 0) {
+            logEnergy = 0;
+        }
+        logEnergy += offset;
+
+        if (totalEnergy <= MIN_ENERGY) {
+            if (totalRshifts >= 0) {
+                totalEnergy += MIN_ENERGY + 1;
+            } else {
+                totalEnergy += energy >> -totalRshifts;
+            }
+        }
+        return (short) logEnergy;
+    }
+
+    /**
+     * Fills {@link #features} with the log energies of the six bands.
+     * @return an energy indicator, compared against {@link #MIN_ENERGY}.
+     */
+    int calculateFeatures(short[] in, int length) {
+        totalEnergy = 0;
+        final int half = length >> 1;
+
+        // [0, 4000] Hz -> [2000, 4000] in hp120, [0, 2000] in lp120
+        splitFilter(in, length, 0, hp120, lp120);
+
+        // [2000, 4000] -> [3000, 4000] in hp60, [2000, 3000] in lp60
+        splitFilter(hp120, half, 1, hp60, lp60);
+        int quarter = half >> 1;
+        features[5] = logOfEnergy(hp60, quarter, OFFSET_VECTOR[5]);
+        features[4] = logOfEnergy(lp60, quarter, OFFSET_VECTOR[4]);
+
+        // [0, 2000] -> [1000, 2000] in hp60, [0, 1000] in lp60
+        splitFilter(lp120, half, 2, hp60, lp60);
+        features[3] = logOfEnergy(hp60, quarter, OFFSET_VECTOR[3]);
+
+        // [0, 1000] -> [500, 1000] in hp120, [0, 500] in lp120
+        splitFilter(lp60, quarter, 3, hp120, lp120);
+        int eighth = quarter >> 1;
+        features[2] = logOfEnergy(hp120, eighth, OFFSET_VECTOR[2]);
+
+        // [0, 500] -> [250, 500] in hp60, [0, 250] in lp60
+        splitFilter(lp120, eighth, 4, hp60, lp60);
+        int sixteenth = eighth >> 1;
+        features[1] = logOfEnergy(hp60, sixteenth, OFFSET_VECTOR[1]);
+
+        // [80, 250] Hz
+        highPassFilter(lp60, sixteenth, hp120);
+        features[0] = logOfEnergy(hp120, sixteenth, OFFSET_VECTOR[0]);
+
+        return (short) totalEnergy;
+    }
+
+    // ---- Models, vad_gmm.c, vad_sp.c and vad_core.c ----
+
+    private static int normW32(int value) {
+        if (value == 0) return 0;
+        return Integer.numberOfLeadingZeros(value < 0 ? ~value : value) - 1;
+    }
+
+    private static int divW32W16(int num, int den) {
+        den = (short) den;
+        return den != 0 ? num / den : 0x7FFFFFFF;
+    }
+
+    /**
+     * @param input Feature in Q4.
+     * @param mean Mean in Q7.
+     * @param std Standard deviation in Q7.
+     * @param deltas Receives (input - mean) / std^2 in Q11 at index.
+     * @return (1 / std) * exp(-(input - mean)^2 / (2 * std^2)) in Q20.
+     */
+    private static int gaussianProbability(int input, int mean, int std, short[] deltas, int index) {
+        // 1 / std in Q10, rounded
+        int invStd = (short) divW32W16(131072 + (std >> 1), std);
+        // 1 / std^2 in Q14
+        int tmp16 = invStd >> 2;
+        int invStd2 = (short) ((tmp16 * tmp16) >> 2);
+
+        tmp16 = (short) (input << 3);
+        tmp16 = (short) (tmp16 - mean);
+        int delta = (short) ((invStd2 * tmp16) >> 10);
+        deltas[index] = (short) delta;
+        // (x - m)^2 / (2 * s^2) in Q10
+        int tmp32 = (delta * tmp16) >> 9;
+
+        int expValue = 0;
+        if (tmp32 < COMP_VAR) {
+            // exp(-x) = 2^(-log2(e) * x), with the fraction approximated linearly
+            tmp16 = (short) ((LOG2_EXP * tmp32) >> 12);
+            tmp16 = (short) -tmp16;
+            expValue = (short) (0x0400 | (tmp16 & 0x03FF));
+            tmp16 = (short) (tmp16 ^ 0xFFFF);
+            tmp16 = (short) (tmp16 >> 10);
+            tmp16 = (short) (tmp16 + 1);
+            expValue = (short) (expValue >> tmp16);
+        }
+        return invStd * expValue;
+    }
+
+    /**
+     * Tracks the 16 smallest values of the last 100 frames of one channel and returns their
+     * smoothed median-ish level, WebRtcVad_FindMinimum.
+     */
+    private int findMinimum(int featureValue, int channel) {
+        final int offset = channel << 4;
+        final short[] age = indexVector;
+        final short[] smallest = lowValueVector;
+
+        for (int i = 0; i < 16; i++) {
+            if (age[offset + i] != 100) {
+                age[offset + i]++;
+            } else {
+                // Too old: drop it and shift larger values down
+                for (int j = i; j < 15; j++) {
+                    smallest[offset + j] = smallest[offset + j + 1];
+                    age[offset + j] = age[offset + j + 1];
+                }
+                age[offset + 15] = 101;
+                smallest[offset + 15] = 10000;
+            }
+        }
+
+        int position = -1;
+        for (int i = 0; i < 16; i++) {
+            if (featureValue < smallest[offset + i]) {
+                position = i;
+                break;
+            }
+        }
+        if (position > -1) {
+            for (int i = 15; i > position; i--) {
+                smallest[offset + i] = smallest[offset + i - 1];
+                age[offset + i] = age[offset + i - 1];
+            }
+            smallest[offset + position] = (short) featureValue;
+            age[offset + position] = 1;
+        }
+
+        int currentMedian = 1600;
+        if (frameCounter > 2) {
+            currentMedian = smallest[offset + 2];
+        } else if (frameCounter > 0) {
+            currentMedian = smallest[offset];
+        }
+
+        int alpha = 0;
+        if (frameCounter > 0) {
+            alpha = currentMedian < meanValue[channel] ? SMOOTHING_DOWN : SMOOTHING_UP;
+        }
+        int tmp32 = (alpha + 1) * meanValue[channel];
+        tmp32 += (Short.MAX_VALUE - alpha) * currentMedian;
+        tmp32 += 16384;
+        meanValue[channel] = (short) (tmp32 >> 15);
+        return meanValue[channel];
+    }
+
+    /** Shifts both Gaussians of the channel by offset and returns their weighted sum. */
+    private static int weightedAverage(short[] data, int channel, int offset, int[] weights) {
+        int average = 0;
+        for (int k = 0; k < NUM_GAUSSIANS; k++) {
+            int index = channel + k * NUM_CHANNELS;
+            data[index] = (short) (data[index] + offset);
+            average += data[index] * weights[index];
+        }
+        return average;
+    }
+
+    private int gmmProbability(int totalPower, int frameLength) {
+        final int lengthIndex = frameLength == 80 ? 0 : frameLength == 160 ? 1 : 2;
+        final int overhead1 = OVER_HANG_MAX_1[webRtcMode][lengthIndex];
+        final int overhead2 = OVER_HANG_MAX_2[webRtcMode][lengthIndex];
+        final int individualTest = LOCAL_THRESHOLD[webRtcMode][lengthIndex];
+        final int totalTest = GLOBAL_THRESHOLD[webRtcMode][lengthIndex];
+
+        int vadflag = 0;
+        if (totalPower > MIN_ENERGY) {
+            // Likelihood ratio test, H0 noise against H1 speech, per band and overall
+            Arrays.fill(ngprvec, (short) 0);
+            Arrays.fill(sgprvec, (short) 0);
+            int sumLogLikelihoodRatios = 0;
+            for (int channel = 0; channel < NUM_CHANNELS; channel++) {
+                int h0Test = 0;
+                int h1Test = 0;
+                for (int k = 0; k < NUM_GAUSSIANS; k++) {
+                    int gaussian = channel + k * NUM_CHANNELS;
+                    // Q27 = Q7 * Q20
+                    noiseProbability[k] = NOISE_DATA_WEIGHTS[gaussian] * gaussianProbability(
+                            features[channel], noiseMeans[gaussian], noiseStds[gaussian], deltaN, gaussian);
+                    h0Test += noiseProbability[k];
+                    speechProbability[k] = SPEECH_DATA_WEIGHTS[gaussian] * gaussianProbability(
+                            features[channel], speechMeans[gaussian], speechStds[gaussian], deltaS, gaussian);
+                    h1Test += speechProbability[k];
+                }
+
+                // log2(h1 / h0) approximated by the difference of the normalization shifts
+                int shiftsH0 = h0Test == 0 ? 31 : normW32(h0Test);
+                int shiftsH1 = h1Test == 0 ? 31 : normW32(h1Test);
+                int logLikelihoodRatio = shiftsH0 - shiftsH1;
+                sumLogLikelihoodRatios += logLikelihoodRatio * SPECTRUM_WEIGHT[channel];
+                if (logLikelihoodRatio * 4 > individualTest) {
+                    vadflag = 1;
+                }
+
+                // Each Gaussian's share of the probability, Q14, for the model update
+                int h0 = (short) (h0Test >> 12);
+                if (h0 > 0) {
+                    int tmp32 = (noiseProbability[0] & 0xFFFFF000) << 2;
+                    ngprvec[channel] = (short) divW32W16(tmp32, h0);
+                    ngprvec[channel + NUM_CHANNELS] = (short) (16384 - ngprvec[channel]);
+                } else {
+                    ngprvec[channel] = 16384;
+                }
+                int h1 = (short) (h1Test >> 12);
+                if (h1 > 0) {
+                    int tmp32 = (speechProbability[0] & 0xFFFFF000) << 2;
+                    sgprvec[channel] = (short) divW32W16(tmp32, h1);
+                    sgprvec[channel + NUM_CHANNELS] = (short) (16384 - sgprvec[channel]);
+                }
+            }
+            if (sumLogLikelihoodRatios >= totalTest) {
+                vadflag = 1;
+            }
+
+            updateModels(vadflag);
+            frameCounter++;
+        }
+
+        // Hang over after speech, longer after a run of speech frames
+        if (vadflag == 0) {
+            if (overHang > 0) {
+                vadflag = 2 + overHang;
+                overHang--;
+            }
+            numOfSpeech = 0;
+        } else {
+            numOfSpeech++;
+            if (numOfSpeech > MAX_SPEECH_FRAMES) {
+                numOfSpeech = MAX_SPEECH_FRAMES;
+                overHang = overhead2;
+            } else {
+                overHang = overhead1;
+            }
+        }
+        return vadflag;
+    }
+
+    private void updateModels(int vadflag) {
+        int maxspe = 12800;
+        for (int channel = 0; channel < NUM_CHANNELS; channel++) {
+            // Long-term minimum, Q4
+            int featureMinimum = findMinimum(features[channel], channel);
+            int noiseGlobalMean = weightedAverage(noiseMeans, channel, 0, NOISE_DATA_WEIGHTS);
+            int noiseGlobalQ8 = (short) (noiseGlobalMean >> 6);
+
+            for (int k = 0; k < NUM_GAUSSIANS; k++) {
+                int gaussian = channel + k * NUM_CHANNELS;
+                int nmk = noiseMeans[gaussian];
+                int smk = speechMeans[gaussian];
+                int nsk = noiseStds[gaussian];
+                int ssk = speechStds[gaussian];
+
+                // Noise mean follows noise frames
+                int nmk2 = nmk;
+                if (vadflag == 0) {
+                    int delt = (short) ((ngprvec[gaussian] * deltaN[gaussian]) >> 11);
+                    nmk2 = (short) (nmk + (short) ((delt * NOISE_UPDATE_CONST) >> 22));
+                }
+                // ... and is pulled towards the long-term minimum
+                int ndelt = (short) ((featureMinimum << 4) - noiseGlobalQ8);
+                int nmk3 = (short) (nmk2 + (short) ((ndelt * BACK_ETA) >> 9));
+                int bound = (k + 5) << 7;
+                if (nmk3 < bound) nmk3 = bound;
+                bound = (72 + k - channel) << 7;
+                if (nmk3 > bound) nmk3 = bound;
+                noiseMeans[gaussian] = (short) nmk3;
+
+                if (vadflag != 0) {
+                    // Speech mean
+                    int delt = (short) ((sgprvec[gaussian] * deltaS[gaussian]) >> 11);
+                    int tmp16 = (short) ((delt * SPEECH_UPDATE_CONST) >> 21);
+                    int smk2 = (short) (smk + ((tmp16 + 1) >> 1));
+                    int maxmu = maxspe + 640;
+                    if (smk2 < MINIMUM_MEAN[k]) smk2 = MINIMUM_MEAN[k];
+                    if (smk2 > maxmu) smk2 = maxmu;
+                    speechMeans[gaussian] = (short) smk2;
+
+                    // Speech standard deviation
+                    tmp16 = (short) ((smk + 4) >> 3);
+                    tmp16 = (short) (features[channel] - tmp16);
+                    int tmp1 = (deltaS[gaussian] * tmp16) >> 3;
+                    int tmp2 = tmp1 - 4096;
+                    tmp16 = sgprvec[gaussian] >> 2;
+                    tmp1 = tmp16 * tmp2;
+                    tmp2 = tmp1 >> 4;
+                    if (tmp2 > 0) {
+                        tmp16 = (short) divW32W16(tmp2, ssk * 10);
+                    } else {
+                        tmp16 = (short) -(short) divW32W16(-tmp2, ssk * 10);
+                    }
+                    tmp16 = (short) (tmp16 + 128);
+                    ssk = (short) (ssk + (tmp16 >> 8));
+                    if (ssk < MIN_STD) ssk = MIN_STD;
+                    speechStds[gaussian] = (short) ssk;
+                } else {
+                    // Noise standard deviation
+                    int tmp16 = (short) (features[channel] - (nmk >> 3));
+                    int tmp1 = (deltaN[gaussian] * tmp16) >> 3;
+                    tmp1 -= 4096;
+                    tmp16 = (ngprvec[gaussian] + 2) >> 2;
+                    int tmp2 = tmp16 * tmp1;
+                    tmp1 = tmp2 >> 14;
+                    if (tmp1 > 0) {
+                        tmp16 = (short) divW32W16(tmp1, nsk);
+                    } else {
+                        tmp16 = (short) -(short) divW32W16(-tmp1, nsk);
+                    }
+                    tmp16 = (short) (tmp16 + 32);
+                    nsk = (short) (nsk + (tmp16 >> 6));
+                    if (nsk < MIN_STD) nsk = MIN_STD;
+                    noiseStds[gaussian] = (short) nsk;
+                }
+            }
+
+            // Push the models apart if they got too close
+            noiseGlobalMean = weightedAverage(noiseMeans, channel, 0, NOISE_DATA_WEIGHTS);
+            int speechGlobalMean = weightedAverage(speechMeans, channel, 0, SPEECH_DATA_WEIGHTS);
+            int diff = (short) ((short) (speechGlobalMean >> 9) - (short) (noiseGlobalMean >> 9));
+            if (diff < MINIMUM_DIFFERENCE[channel]) {
+                int tmp16 = (short) (MINIMUM_DIFFERENCE[channel] - diff);
+                int speechShift = (short) ((13 * tmp16) >> 2);
+                int noiseShift = (short) ((3 * tmp16) >> 2);
+                speechGlobalMean = weightedAverage(speechMeans, channel, speechShift, SPEECH_DATA_WEIGHTS);
+                noiseGlobalMean = weightedAverage(noiseMeans, channel, -noiseShift, NOISE_DATA_WEIGHTS);
+            }
+
+            // Keep both models below their ceilings
+            maxspe = MAXIMUM_SPEECH[channel];
+            int excess = (short) (speechGlobalMean >> 7);
+            if (excess > maxspe) {
+                excess -= maxspe;
+                for (int k = 0; k < NUM_GAUSSIANS; k++) {
+                    int gaussian = channel + k * NUM_CHANNELS;
+                    speechMeans[gaussian] = (short) (speechMeans[gaussian] - excess);
+                }
+            }
+            excess = (short) (noiseGlobalMean >> 7);
+            if (excess > MAXIMUM_NOISE[channel]) {
+                excess -= MAXIMUM_NOISE[channel];
+                for (int k = 0; k < NUM_GAUSSIANS; k++) {
+                    int gaussian = channel + k * NUM_CHANNELS;
+                    noiseMeans[gaussian] = (short) (noiseMeans[gaussian] - excess);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        Log.d(TAG, "Closing VAD.");
+    }
+}
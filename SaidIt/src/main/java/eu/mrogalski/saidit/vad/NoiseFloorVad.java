@@ -0,0 +1,170 @@
+package eu.mrogalski.saidit.vad;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Energy VAD that adapts to the room instead of using a fixed level.
+ *
+ * The noise floor is tracked with minimum statistics: the smoothed frame power's minimum over a
+ * few seconds, kept per sub-window so it can rise again when the room gets louder. A frame starts
+ * speech when its power exceeds the floor by the mode's onset margin and stays speech until it
+ * drops below the smaller release margin (hysteresis). Optionally, onsets must also look like
+ * speech rather than hiss or clicks: a zero-crossing rate and a high-band energy ratio (the
+ * energy of the first difference against the energy itself) within speech-like bounds.
+ *
+ * All per-frame work is integer sums and float comparisons against squared-sample thresholds;
+ * margins are converted from dB once in {@link #setMode}.
+ */
+public class NoiseFloorVad implements Vad {
+    private static final String TAG = "NoiseFloorVad";
+
+    // Minimum statistics over SUBWINDOWS x SUBWINDOW_MS
+    private static final int SUBWINDOWS = 8;
+    private static final int SUBWINDOW_MS = 250;
+    // The minimum of a noisy power estimate sits below its mean; scale it back up
+    private static final float MIN_BIAS = 1.5f;
+    // Weight of the previous smoothed power
+    private static final float SMOOTHING = 0.7f;
+    // -60 dBFS as mean squared sample: never speech below this, however quiet the room
+    private static final float ABSOLUTE_FLOOR = 1074f;
+    // Onset bounds for the optional spectral check
+    private static final int MAX_CROSSINGS_PER_SECOND = 5000;
+    private static final float MAX_DIFF_RATIO = 1.5f;
+
+    // Onset and release margins above the noise floor, in dB, by mode
+    private static final float[] ONSET_DB = {12f, 10f, 8f, 6f};
+    private static final float[] RELEASE_DB = {8f, 6f, 4f, 3f};
+
+    private int sampleRate;
+    private int subwindowSamples;
+    private boolean spectralFeatures = true;
+    private float onsetRatio;
+    private float releaseRatio;
+
+    private final float[] minima = new float[SUBWINDOWS];
+    private int subwindow;
+    private int filledSubwindows;
+    private int samplesInSubwindow;
+    private float currentMin = Float.MAX_VALUE;
+    private float smoothed = -1f;
+    private float noiseFloor;
+    private int previousSample;
+    private boolean speech;
+
+    public NoiseFloorVad() {
+        setMode(2);
+    }
+
+    @Override
+    public void init(int sampleRate) {
+        this.sampleRate = sampleRate;
+        this.subwindowSamples = sampleRate * SUBWINDOW_MS / 1000;
+        reset();
+        Log.d(TAG, "Initialized with sample rate: " + sampleRate);
+    }
+
+    @Override
+    public void setMode(int mode) {
+        int index = Math.max(0, Math.min(ONSET_DB.length - 1, mode));
+        onsetRatio = (float) Math.pow(10, ONSET_DB[index] / 10.0);
+        releaseRatio = (float) Math.pow(10, RELEASE_DB[index] / 10.0);
+    }
+
+    /**
+     * @param enabled Whether onsets must also pass the zero-crossing and high-band checks.
+     */
+    public void setSpectralFeatures(boolean enabled) {
+        this.spectralFeatures = enabled;
+    }
+
+    /**
+     * @return the current noise floor as a mean squared sample.
+     */
+    public float getNoiseFloor() {
+        return noiseFloor;
+    }
+
+    public void reset() {
+        subwindow = 0;
+        filledSubwindows = 0;
+        samplesInSubwindow = 0;
+        currentMin = Float.MAX_VALUE;
+        smoothed = -1f;
+        noiseFloor = 0f;
+        previousSample = 0;
+        speech = false;
+    }
+
+    @Override
+    public boolean process(byte[] pcm, int offset, int length) {
+        return process(ByteBuffer.wrap(pcm, offset, length).order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    @Override
+    public boolean process(ByteBuffer pcm) {
+        final int start = pcm.position();
+        final int count = pcm.remaining() / 2;
+        if (count == 0) {
+            return speech;
+        }
+        final boolean swap = pcm.order() != ByteOrder.LITTLE_ENDIAN;
+
+        long energy = 0;
+        long diffEnergy = 0;
+        int crossings = 0;
+        int previous = previousSample;
+        for (int i = 0; i < count; i++) {
+            short raw = pcm.getShort(start + i * 2);
+            int sample = swap ? Short.reverseBytes(raw) : raw;
+            energy += sample * sample;
+            int diff = sample - previous;
+            diffEnergy += (long) diff * diff;
+            if ((sample ^ previous) < 0) crossings++;
+            previous = sample;
+        }
+        previousSample = previous;
+
+        final float power = (float) energy / count;
+        trackNoiseFloor(power, count);
+
+        if (!speech) {
+            speech = power > Math.max(noiseFloor * onsetRatio, ABSOLUTE_FLOOR)
+                    && (!spectralFeatures || looksLikeSpeech(energy, diffEnergy, crossings, count));
+        } else {
+            speech = power > Math.max(noiseFloor * releaseRatio, ABSOLUTE_FLOOR);
+        }
+        return speech;
+    }
+
+    private void trackNoiseFloor(float power, int count) {
+        smoothed = smoothed < 0 ? power : SMOOTHING * smoothed + (1 - SMOOTHING) * power;
+        if (smoothed < currentMin) currentMin = smoothed;
+        samplesInSubwindow += count;
+        if (samplesInSubwindow >= subwindowSamples) {
+            minima[subwindow] = currentMin;
+            subwindow = (subwindow + 1) % SUBWINDOWS;
+            if (filledSubwindows < SUBWINDOWS) filledSubwindows++;
+            currentMin = Float.MAX_VALUE;
+            samplesInSubwindow = 0;
+        }
+        float min = currentMin;
+        for (int i = 0; i < filledSubwindows; i++) {
+            if (minima[i] < min) min = minima[i];
+        }
+        noiseFloor = min * MIN_BIAS;
+    }
+
+    private boolean looksLikeSpeech(long energy, long diffEnergy, int crossings, int count) {
+        // Hiss and clicks cross zero constantly and carry most of their energy up high
+        return (long) crossings * sampleRate <= (long) MAX_CROSSINGS_PER_SECOND * count
+                && diffEnergy <= MAX_DIFF_RATIO * energy;
+    }
+
+    @Override
+    public void close() {
+        Log.d(TAG, "Closing VAD.");
+    }
+}
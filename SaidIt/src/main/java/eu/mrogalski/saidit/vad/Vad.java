@@ -1,5 +1,7 @@
 package eu.mrogalski.saidit.vad;
 
+import java.nio.ByteBuffer;
+
 public interface Vad {
     /**
      * Initializes the VAD with a specific sample rate.
@@ -22,6 +24,18 @@ public interface Vad {
      */
     boolean process(byte[] pcm, int offset, int length);
 
+    /**
+     * Processes the 16-bit little-endian PCM between the buffer's position and limit, without
+     * moving either. Implementations should read it in place; this default copies it out.
+     * @param pcm Audio to process, e.g. a read-only view of the ring.
+     * @return true if speech is detected, false otherwise.
+     */
+    default boolean process(ByteBuffer pcm) {
+        byte[] copy = new byte[pcm.remaining()];
+        pcm.duplicate().get(copy);
+        return process(copy, 0, copy.length);
+    }
+
     /**
      * Closes the VAD and releases any resources.
      */
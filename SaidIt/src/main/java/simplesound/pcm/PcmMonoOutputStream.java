@@ -4,20 +4,27 @@ import org.jcaki.Bytes;
 import org.jcaki.IOs;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public class PcmMonoOutputStream extends OutputStream implements Closeable {
 
     final PcmAudioFormat format;
     final DataOutputStream dos;
+    // Set when writing to a file, so direct buffers can be written without a copy
+    final FileChannel channel;
 
     public PcmMonoOutputStream(PcmAudioFormat format, DataOutputStream dos) {
         this.format = format;
         this.dos = dos;
+        this.channel = null;
     }
 
     public PcmMonoOutputStream(PcmAudioFormat format, File file) throws IOException {
         this.format = format;
-        this.dos = new DataOutputStream(new FileOutputStream(file));
+        FileOutputStream fos = new FileOutputStream(file);
+        this.dos = new DataOutputStream(fos);
+        this.channel = fos.getChannel();
     }
 
     public void write(int b) throws IOException {
@@ -29,6 +36,21 @@ public class PcmMonoOutputStream extends OutputStream implements Closeable {
         dos.write(buffer, offset, count);
     }
 
+    /**
+     * Writes the bytes between the buffer's position and limit, advancing its position.
+     */
+    public void write(ByteBuffer buffer) throws IOException {
+        if (channel != null) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } else {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            dos.write(bytes);
+        }
+    }
+
     public void write(short[] shorts) throws IOException {
         dos.write(Bytes.toByteArray(shorts, shorts.length, format.isBigEndian()));
     }
@@ -5,6 +5,7 @@ import android.util.Log;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Writes a wav file. Careful that it writes the total amount of the bytes information once the close method
@@ -43,6 +44,17 @@ public class WavFileWriter implements Closeable {
         return this;
     }
 
+    /**
+     * Writes the sample bytes between the buffer's position and limit, advancing its position.
+     */
+    public WavFileWriter write(ByteBuffer buffer) throws IOException {
+        int count = buffer.remaining();
+        checkLimit(totalSampleBytesWritten, count);
+        pos.write(buffer);
+        totalSampleBytesWritten += count;
+        return this;
+    }
+
     private void checkLimit(int total, int toAdd) {
         final long result = total + toAdd;
         if (result >= Integer.MAX_VALUE) {
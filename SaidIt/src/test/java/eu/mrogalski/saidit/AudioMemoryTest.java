@@ -3,7 +3,11 @@ package eu.mrogalski.saidit;
 import org.junit.Before;
 import org.junit.Test;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import static org.junit.Assert.*;
 
 public class AudioMemoryTest {
@@ -163,4 +167,335 @@ public class AudioMemoryTest {
         assertEquals(AudioMemory.CHUNK_SIZE, stats.filled);
         assertTrue(stats.overwriting);
     }
+
+    @Test
+    public void testConcurrentDumpNeverSeesTornData() throws Exception {
+        audioMemory.allocate(AudioMemory.CHUNK_SIZE);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        // Writer laps the ring continuously with a counting byte pattern
+        Thread writer = new Thread(() -> {
+            final int[] next = {0};
+            AudioMemory.Consumer filler = (array, offset, count) -> {
+                if (!running.get()) return 0;
+                for (int i = 0; i < count; i++) array[offset + i] = (byte) next[0]++;
+                return count;
+            };
+            try {
+                while (running.get()) audioMemory.fill(filler);
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        writer.start();
+
+        try {
+            for (int round = 0; round < 50; round++) {
+                audioMemory.dump((array, offset, count) -> {
+                    for (int i = 1; i < count; i++) {
+                        if ((byte) (array[offset + i - 1] + 1) != array[offset + i]) {
+                            fail("Torn read at " + i);
+                        }
+                    }
+                    return count;
+                }, AudioMemory.CHUNK_SIZE);
+            }
+        } finally {
+            running.set(false);
+            writer.join();
+        }
+        assertNull(failure.get());
+    }
+
+    private static byte[] pattern(long fromByte, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            long sequence = fromByte + i;
+            data[i] = (byte) (sequence * 31 + (sequence >> 11));
+        }
+        return data;
+    }
+
+    private byte[] dumpAll() throws IOException {
+        CapturingConsumer consumer = new CapturingConsumer();
+        audioMemory.dump(consumer, Integer.MAX_VALUE);
+        return consumer.getCapturedData();
+    }
+
+    @Test
+    public void testResizeKeepsNewestAudio() throws IOException {
+        int chunk = AudioMemory.CHUNK_SIZE;
+        long written = 0;
+        // Wrap the single-chunk ring so the oldest data shares a chunk with the newest
+        audioMemory.fill(new TestFiller(pattern(written, chunk + chunk / 3)));
+        written += chunk + chunk / 3;
+
+        audioMemory.allocate(3L * chunk);
+        assertEquals(3 * chunk, audioMemory.getAllocatedMemorySize());
+        assertArrayEquals(pattern(written - chunk, chunk), dumpAll());
+
+        // Keeps growing into the new chunks without losing anything
+        audioMemory.fill(new TestFiller(pattern(written, chunk)));
+        written += chunk;
+        assertArrayEquals(pattern(written - 2L * chunk, 2 * chunk), dumpAll());
+
+        audioMemory.fill(new TestFiller(pattern(written, 2 * chunk)));
+        written += 2L * chunk;
+        assertArrayEquals(pattern(written - 3L * chunk, 3 * chunk), dumpAll());
+
+        // Shrinking drops the oldest chunks and keeps what is left of the newest
+        audioMemory.allocate(chunk);
+        AudioMemory.Stats stats = audioMemory.getStats(0);
+        assertEquals(chunk, stats.total);
+        assertTrue(stats.filled > 0);
+        assertArrayEquals(pattern(written - stats.filled, stats.filled), dumpAll());
+
+        int kept = stats.filled;
+        audioMemory.fill(new TestFiller(pattern(written, chunk / 2)));
+        written += chunk / 2;
+        assertArrayEquals(pattern(written - kept - chunk / 2, kept + chunk / 2), dumpAll());
+        assertEquals(written / 2, audioMemory.getWriteSamplePosition());
+    }
+
+    @Test
+    public void testSamplePositionsAreAbsolute() throws IOException {
+        int bufferSize = (int) audioMemory.getAllocatedMemorySize();
+        audioMemory.fill(new TestFiller(new byte[bufferSize + 100]));
+
+        assertEquals((bufferSize + 100) / 2, audioMemory.getWriteSamplePosition());
+        assertEquals(50, audioMemory.getOldestSamplePosition());
+    }
+
+    @Test
+    public void testPositionsCarryOnAfterRelease() throws IOException {
+        audioMemory.fill(new TestFiller(new byte[1000]));
+        audioMemory.allocate(0);
+        assertEquals(500, audioMemory.getWriteSamplePosition());
+
+        audioMemory.allocate(1024 * 4);
+        audioMemory.fill(new TestFiller(new byte[200]));
+        assertEquals(600, audioMemory.getWriteSamplePosition());
+        assertEquals(500, audioMemory.getOldestSamplePosition());
+    }
+
+    @Test
+    public void testCursorReadsEverySampleOnce() throws IOException {
+        AudioMemory.Cursor cursor = audioMemory.newCursor("analysis");
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+        audioMemory.fill(new TestFiller(data));
+
+        byte[] frame = new byte[200];
+        ByteArrayOutputStream seen = new ByteArrayOutputStream();
+        while (cursor.available() > 0) {
+            int read = cursor.read(frame, 0, 100);
+            seen.write(frame, 0, read * 2);
+        }
+        assertArrayEquals(data, seen.toByteArray());
+        assertEquals(500, cursor.getPosition());
+        assertEquals(0, cursor.getLagSamples());
+        assertFalse(cursor.checkAndClearOverrun());
+    }
+
+    @Test
+    public void testCursorReportsOverrun() throws IOException {
+        int bufferSize = (int) audioMemory.getAllocatedMemorySize();
+        AudioMemory.Cursor cursor = audioMemory.newCursor("export");
+        audioMemory.fill(new TestFiller(new byte[bufferSize + 400]));
+
+        assertEquals(bufferSize / 2, cursor.available());
+        CapturingConsumer consumer = new CapturingConsumer();
+        cursor.read(bufferSize, consumer);
+
+        assertEquals(bufferSize, consumer.getCapturedData().length);
+        assertEquals(200, cursor.getOverrunSamples());
+        assertTrue(cursor.checkAndClearOverrun());
+        assertFalse(cursor.checkAndClearOverrun());
+    }
+
+    @Test
+    public void testViewsMatchCopies() throws IOException {
+        int chunk = AudioMemory.CHUNK_SIZE;
+        audioMemory.allocate(3L * chunk);
+        long written = 3L * chunk + chunk / 2;
+        audioMemory.fill(new TestFiller(pattern(0, (int) written)));
+
+        ByteArrayOutputStream viewed = new ByteArrayOutputStream();
+        AudioMemory.ViewConsumer collect = view -> {
+            assertTrue(view.isReadOnly());
+            while (view.hasRemaining()) viewed.write(view.get());
+        };
+        assertEquals(0, audioMemory.dump(collect, Integer.MAX_VALUE));
+        assertArrayEquals(dumpAll(), viewed.toByteArray());
+
+        // A frame straddling a chunk boundary arrives as two views
+        AudioMemory.Cursor cursor = audioMemory.newCursor("views");
+        cursor.seek(2L * chunk / 2 - 50);
+        viewed.reset();
+        int[] views = new int[1];
+        assertEquals(100, cursor.read(100, view -> {
+            views[0]++;
+            while (view.hasRemaining()) viewed.write(view.get());
+        }));
+        assertEquals(2, views[0]);
+        assertArrayEquals(pattern(2L * chunk - 100, 200), viewed.toByteArray());
+        assertFalse(cursor.checkAndClearOverrun());
+    }
+
+    @Test
+    public void testDirectFillWritesInPlaceAcrossChunks() throws IOException {
+        int chunk = AudioMemory.CHUNK_SIZE;
+        audioMemory.allocate(2L * chunk);
+        audioMemory.fill(new TestFiller(pattern(0, chunk - 300)));
+
+        // Each call gets one contiguous region, so a read crossing a chunk end is split in two
+        byte[] source = pattern(chunk - 300, 1000);
+        int[] calls = new int[1];
+        int[] fed = new int[1];
+        AudioMemory.DirectFiller filler = region -> {
+            assertTrue(region.isDirect());
+            assertEquals(0, region.position());
+            calls[0]++;
+            int count = Math.min(region.limit(), source.length - fed[0]);
+            region.put(source, fed[0], count);
+            fed[0] += count;
+            return count;
+        };
+        assertEquals(1000, audioMemory.fillOnce(filler, 1000));
+        assertEquals(2, calls[0]);
+        assertEquals((chunk + 700) / AudioMemory.BYTES_PER_SAMPLE, audioMemory.getWriteSamplePosition());
+
+        // Draining stops at the first empty read
+        assertEquals(0, audioMemory.fill(region -> 0));
+        assertArrayEquals(pattern(0, chunk + 700), dumpAll());
+    }
+
+    @Test
+    public void testReattachedHistoryIsDatedBeforeTheOutage() throws IOException {
+        File file = File.createTempFile("audio_memory", ".ring");
+        try {
+            AudioMemory first = new AudioMemory(clock);
+            first.setBackingFile(file, 1000);
+            first.allocate(AudioMemory.CHUNK_SIZE);
+            first.fill(new TestFiller(new byte[4000]));
+
+            // Down for five seconds
+            clock.advance(5000);
+            AudioMemory second = new AudioMemory(clock);
+            second.setBackingFile(file, 1000);
+            assertTrue(second.allocate(AudioMemory.CHUNK_SIZE));
+            assertEquals(2000, second.getOutageSamplePosition());
+            assertEquals(5000, second.getOutageSamples());
+            second.fill(new TestFiller(new byte[4000]));
+
+            // The last two seconds are all new audio
+            assertEquals(2000, second.getPositionBefore(2000));
+            // Six seconds reach back over the outage into nothing older
+            assertEquals(2000, second.getPositionBefore(6000));
+            // Eight seconds take the newest second of the old history too
+            assertEquals(1000, second.getPositionBefore(8000));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testFileBackedHistorySurvivesReopen() throws IOException {
+        File file = File.createTempFile("audio_memory", ".ring");
+        try {
+            byte[] data = new byte[1000];
+            for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+
+            AudioMemory first = new AudioMemory(clock);
+            first.setBackingFile(file, 16000);
+            assertFalse(first.allocate(AudioMemory.CHUNK_SIZE));
+            assertTrue(first.isFileBacked());
+            first.fill(new TestFiller(data));
+
+            // A new instance stands in for the restarted process
+            AudioMemory second = new AudioMemory(clock);
+            second.setBackingFile(file, 16000);
+            assertTrue(second.allocate(AudioMemory.CHUNK_SIZE));
+            assertEquals(500, second.getWriteSamplePosition());
+
+            CapturingConsumer consumer = new CapturingConsumer();
+            second.dump(consumer, data.length);
+            assertArrayEquals(data, consumer.getCapturedData());
+            assertEquals(-1, first.getOutageSamplePosition());
+            assertEquals(0, second.getOutageSamples());
+
+            // A different sample rate must not reattach
+            AudioMemory third = new AudioMemory(clock);
+            third.setBackingFile(file, 48000);
+            assertFalse(third.allocate(AudioMemory.CHUNK_SIZE));
+            assertEquals(0, third.getStats(0).filled);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testArchiveExtendsHistoryPastTheRing() throws IOException {
+        CompressedHistory archive = new CompressedHistory(audioMemory, 2 * AudioMemory.CHUNK_SIZE);
+        audioMemory.setArchive(archive);
+
+        // Three times the ring, written in pieces with the archive keeping up in between
+        byte[] data = new byte[3 * AudioMemory.CHUNK_SIZE];
+        for (int i = 0; i < data.length / 2; i++) {
+            short sample = (short) (6000 * Math.sin(i * 0.03));
+            data[2 * i] = (byte) sample;
+            data[2 * i + 1] = (byte) (sample >> 8);
+        }
+        byte[] piece = new byte[64 * 1024];
+        for (int offset = 0; offset < data.length; offset += piece.length) {
+            int length = Math.min(piece.length, data.length - offset);
+            System.arraycopy(data, offset, piece, 0, length);
+            audioMemory.fill(new TestFiller(Arrays.copyOf(piece, length)));
+            archive.encodePending();
+        }
+        assertEquals(AudioMemory.CHUNK_SIZE, audioMemory.getOldestSamplePosition());
+        assertTrue(archive.getCompressedBytes() < 2 * AudioMemory.CHUNK_SIZE);
+
+        AudioMemory.Stats stats = audioMemory.getStats(0);
+        assertEquals(data.length, stats.filled + stats.archivedSamples * AudioMemory.BYTES_PER_SAMPLE);
+
+        CapturingConsumer consumer = new CapturingConsumer();
+        audioMemory.dump(consumer, data.length);
+        assertArrayEquals(data, consumer.getCapturedData());
+
+        // Absolute reads straddling the two tiers
+        consumer = new CapturingConsumer();
+        long from = AudioMemory.CHUNK_SIZE - 1000;
+        assertEquals(from + 3000, audioMemory.read(from, 3000, consumer));
+        assertArrayEquals(Arrays.copyOfRange(data, (int) from * 2, (int) (from + 3000) * 2),
+                consumer.getCapturedData());
+    }
+
+    @Test
+    public void testArchiveReadDoesNotHoldUpTheArchiver() throws Exception {
+        CompressedHistory archive = new CompressedHistory(audioMemory, 2 * AudioMemory.CHUNK_SIZE);
+        audioMemory.setArchive(archive);
+        for (int i = 0; i < 4; i++) {
+            audioMemory.fill(new TestFiller(new byte[64 * 1024]));
+            archive.encodePending();
+        }
+        audioMemory.fill(new TestFiller(new byte[64 * 1024]));
+
+        // The archiver runs on another thread while the consumer is still busy with a block
+        boolean[] archived = {false};
+        long from = archive.getOldestSamplePosition();
+        archive.read(from, from + CompressedHistory.BLOCK_SAMPLES, (array, offset, count) -> {
+            Thread archiver = new Thread(archive::encodePending);
+            archiver.start();
+            try {
+                archiver.join(5000);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            archived[0] = !archiver.isAlive();
+            return count;
+        });
+        assertTrue(archived[0]);
+    }
 }
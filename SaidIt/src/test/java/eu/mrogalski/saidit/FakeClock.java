@@ -8,6 +8,11 @@ public class FakeClock implements Clock {
         return currentTime;
     }
 
+    @Override
+    public long currentTimeMillis() {
+        return currentTime;
+    }
+
     public void advance(long millis) {
         currentTime += millis;
     }
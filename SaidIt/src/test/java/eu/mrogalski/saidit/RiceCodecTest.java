@@ -0,0 +1,66 @@
+package eu.mrogalski.saidit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class RiceCodecTest {
+
+    private static short[] roundTrip(short[] pcm) {
+        byte[] encoded = new byte[RiceCodec.maxEncodedSize(pcm.length)];
+        int length = RiceCodec.encode(pcm, pcm.length, encoded);
+        short[] decoded = new short[pcm.length];
+        RiceCodec.decode(encoded, 0, length, decoded, pcm.length);
+        assertArrayEquals(pcm, decoded);
+        return decoded;
+    }
+
+    @Test
+    public void smoothSignalCompresses() {
+        short[] pcm = new short[4096];
+        Random random = new Random(1);
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short) (8000 * Math.sin(i * 0.05) + random.nextInt(64) - 32);
+        }
+        byte[] encoded = new byte[RiceCodec.maxEncodedSize(pcm.length)];
+        int length = RiceCodec.encode(pcm, pcm.length, encoded);
+        assertTrue("compressed to " + length, length < pcm.length);
+        roundTrip(pcm);
+    }
+
+    @Test
+    public void silenceAndExtremesRoundTrip() {
+        roundTrip(new short[4096]);
+
+        // Full-scale square wave exercises the escape path
+        short[] square = new short[4096];
+        for (int i = 0; i < square.length; i++) {
+            square[i] = (i / 3) % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+        }
+        roundTrip(square);
+    }
+
+    @Test
+    public void noiseFallsBackToVerbatim() {
+        short[] pcm = new short[4096];
+        Random random = new Random(2);
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short) random.nextInt();
+        }
+        byte[] encoded = new byte[RiceCodec.maxEncodedSize(pcm.length)];
+        int length = RiceCodec.encode(pcm, pcm.length, encoded);
+        assertEquals(1 + pcm.length * 2, length);
+        assertEquals(RiceCodec.VERBATIM, encoded[0] & 0xFF);
+        roundTrip(pcm);
+    }
+
+    @Test
+    public void shortBlocksRoundTrip() {
+        roundTrip(new short[]{});
+        roundTrip(new short[]{-5});
+        roundTrip(new short[]{1, -1, 300});
+    }
+}
@@ -0,0 +1,246 @@
+package eu.mrogalski.saidit.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class SimpleSegmentationControllerTest {
+    private static final int RATE = 16000;
+    // 20 ms of 16-bit mono
+    private static final int FRAME_BYTES = 640;
+
+    private static class Recorder implements SegmentationController.SegmentListener {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int starts;
+        int ends;
+        int discarded;
+        SegmentStats stats;
+        int slices;
+        long rangeStart = -1;
+        long rangeEnd = -1;
+
+        @Override
+        public void onSegmentStart(long timestamp) {
+            starts++;
+        }
+
+        @Override
+        public void onSegmentEnd(long timestamp) {
+            ends++;
+        }
+
+        @Override
+        public void onSegmentData(ByteBuffer pcm) {
+            assertTrue(pcm.hasRemaining());
+            byte[] copy = new byte[pcm.remaining()];
+            pcm.duplicate().get(copy);
+            data.write(copy, 0, copy.length);
+            slices++;
+        }
+
+        @Override
+        public void onSegmentDiscarded(long timestamp) {
+            discarded++;
+        }
+
+        @Override
+        public void onSegmentStats(SegmentStats stats) {
+            this.stats = stats;
+        }
+
+        @Override
+        public void onSegmentRange(long startSample, long endSample) {
+            assertEquals(0, ends);
+            rangeStart = startSample;
+            rangeEnd = endSample;
+        }
+    }
+
+    /** A frame whose every byte is the frame's index, so the order can be checked. */
+    private static ByteBuffer frame(int index) {
+        byte[] bytes = new byte[FRAME_BYTES];
+        Arrays.fill(bytes, (byte) index);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    @Test
+    public void testPreRollHoldsTheNewestSilenceInOrder() {
+        SimpleSegmentationController controller = new SimpleSegmentationController(RATE, 16);
+        Recorder recorder = new Recorder();
+        controller.setListener(recorder);
+
+        // 37 silent frames wrap the 300 ms ring a few times
+        for (int i = 0; i < 37; i++) {
+            ByteBuffer silence = frame(i);
+            controller.process(silence, false);
+            assertEquals(0, silence.position());
+        }
+        // 200 ms of speech: the first nine frames go to the pre-roll, the tenth starts the segment
+        for (int i = 37; i < 47; i++) {
+            controller.process(frame(i), true);
+        }
+        assertEquals(1, recorder.starts);
+
+        byte[] out = recorder.data.toByteArray();
+        // 300 ms of pre-roll from frames 31..45, then frame 46 itself
+        assertEquals(16 * FRAME_BYTES, out.length);
+        for (int i = 0; i < out.length; i++) {
+            assertEquals("byte " + i, 31 + i / FRAME_BYTES, out[i]);
+        }
+        assertTrue(recorder.slices <= 3);
+    }
+
+    @Test
+    public void testOversizedFrameKeepsItsTail() {
+        SimpleSegmentationController controller = new SimpleSegmentationController(RATE, 16);
+        Recorder recorder = new Recorder();
+        controller.setListener(recorder);
+
+        byte[] big = new byte[40 * FRAME_BYTES];
+        for (int i = 0; i < big.length; i++) big[i] = (byte) (i / FRAME_BYTES);
+        controller.process(ByteBuffer.wrap(big), false);
+        controller.process(ByteBuffer.wrap(new byte[10 * FRAME_BYTES]), true);
+
+        byte[] out = recorder.data.toByteArray();
+        // The last 300 ms of the long silence, then the speech frame that started the segment
+        for (int i = 0; i < 15 * FRAME_BYTES; i++) {
+            assertEquals(25 + i / FRAME_BYTES, out[i]);
+        }
+        assertEquals(1, recorder.starts);
+    }
+
+    @Test
+    public void testRangeModeLooksBackInsteadOfCopying() {
+        SimpleSegmentationController.Config config = new SimpleSegmentationController.Config();
+        config.mergeGapMs = 0;
+        config.minSegmentMs = 0;
+        SimpleSegmentationController controller = new SimpleSegmentationController(RATE, 16, config);
+        controller.setEmitRanges(true);
+        Recorder recorder = new Recorder();
+        controller.setListener(recorder);
+
+        final int frameSamples = FRAME_BYTES / 2;
+        long position = 1_000_000;
+        for (int i = 0; i < 30; i++, position += frameSamples) {
+            controller.process(frame(i), false, position);
+        }
+        final long speechStart = position;
+        for (int i = 0; i < 20; i++, position += frameSamples) {
+            controller.process(frame(i), true, position);
+        }
+        // Silence past the 500 ms hangover ends the segment
+        for (int i = 0; i < 30 && recorder.ends == 0; i++, position += frameSamples) {
+            controller.process(frame(i), false, position);
+        }
+
+        assertEquals(1, recorder.starts);
+        assertEquals(1, recorder.ends);
+        assertEquals(0, recorder.slices);
+        // The segment starts at the tenth speech frame; 300 ms of pre-roll reach back before it
+        assertEquals(speechStart + 9 * frameSamples - RATE * 300 / 1000, recorder.rangeStart);
+        assertTrue(recorder.rangeEnd > speechStart + 20 * frameSamples);
+        assertTrue(recorder.rangeEnd <= position);
+    }
+
+    @Test
+    public void testCloseEndsTheOpenSegmentWithItsRange() {
+        SimpleSegmentationController.Config config = new SimpleSegmentationController.Config();
+        config.minSegmentMs = 0;
+        SimpleSegmentationController controller = new SimpleSegmentationController(RATE, 16, config);
+        controller.setEmitRanges(true);
+        Recorder recorder = new Recorder();
+        controller.setListener(recorder);
+
+        final int frameSamples = FRAME_BYTES / 2;
+        long position = 0;
+        for (int i = 0; i < 40; i++, position += frameSamples) {
+            controller.process(frame(i), true, position);
+        }
+        assertEquals(1, recorder.starts);
+        assertEquals(0, recorder.ends);
+
+        // Stopping mid-segment keeps everything up to the last frame
+        controller.close();
+        assertEquals(1, recorder.ends);
+        assertEquals(0, recorder.discarded);
+        assertTrue(recorder.rangeStart >= 0);
+        assertEquals(position, recorder.rangeEnd);
+        assertNotNull(recorder.stats);
+
+        controller.close();
+        assertEquals(1, recorder.ends);
+    }
+
+    @Test
+    public void testShortBlipIsDiscarded() {
+        SimpleSegmentationController controller = new SimpleSegmentationController(RATE, 16);
+        Recorder recorder = new Recorder();
+        controller.setListener(recorder);
+
+        for (int i = 0; i < 15; i++) controller.process(frame(i), true);
+        for (int i = 0; i < 100; i++) controller.process(frame(i), false);
+
+        assertEquals(1, recorder.starts);
+        assertEquals(1, recorder.discarded);
+        assertEquals(0, recorder.ends);
+    }
+
+    @Test
+    public void testSpeechWithinMergeGapStaysOneSegment() {
+        SimpleSegmentationController controller = new SimpleSegmentationController(RATE, 16);
+        Recorder recorder = new Recorder();
+        controller.setListener(recorder);
+
+        // 30 silent, 50 speech, a 1 s gap, 50 speech, then silence until the gap closes
+        int index = 0;
+        for (; index < 30; index++) controller.process(frame(index), false);
+        for (; index < 80; index++) controller.process(frame(index), true);
+        for (; index < 130; index++) controller.process(frame(index), false);
+        for (; index < 180; index++) controller.process(frame(index), true);
+        for (; index < 300 && recorder.ends == 0; index++) controller.process(frame(index), false);
+
+        assertEquals(1, recorder.starts);
+        assertEquals(1, recorder.ends);
+        assertEquals(0, recorder.discarded);
+
+        // 300 ms of pre-roll before frame 39, everything up to the last speech, 500 ms of post-roll
+        byte[] out = recorder.data.toByteArray();
+        assertEquals((205 - 24) * FRAME_BYTES, out.length);
+        for (int i = 0; i < out.length; i++) {
+            assertEquals("byte " + i, (byte) (24 + i / FRAME_BYTES), out[i]);
+        }
+
+        // Counted from frame 39: 91 speech frames of 166
+        assertNotNull(recorder.stats);
+        assertEquals(166 * 20, recorder.stats.getDurationMs());
+        assertEquals(91f / 166, recorder.stats.getSpeechRatio(), 1e-6);
+    }
+
+    @Test
+    public void testMaxLengthSplitKeepsEveryFrame() {
+        SimpleSegmentationController.Config config = new SimpleSegmentationController.Config();
+        config.maxSegmentMs = 1000;
+        config.minSegmentMs = 0;
+        SimpleSegmentationController controller = new SimpleSegmentationController(RATE, 16, config);
+        Recorder recorder = new Recorder();
+        controller.setListener(recorder);
+
+        int index = 0;
+        for (; index < 200; index++) controller.process(frame(index), true);
+        for (; index < 400 && recorder.ends < recorder.starts; index++) controller.process(frame(index), false);
+
+        assertTrue(recorder.starts >= 4);
+        assertEquals(recorder.starts, recorder.ends);
+        // Every frame from the first, through the pre-roll, up to the end of the post-roll
+        byte[] out = recorder.data.toByteArray();
+        assertEquals(225 * FRAME_BYTES, out.length);
+        for (int i = 0; i < out.length; i++) {
+            assertEquals("byte " + i, (byte) (i / FRAME_BYTES), out[i]);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package eu.mrogalski.saidit.export;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FragmentedMp4WriterTest {
+    private static final int SAMPLE_RATE = 48000;
+    // 46 frames of 1024 samples per second at 48 kHz
+    private static final int FRAMES_PER_FRAGMENT = 46;
+    private static final byte[] CONFIG = {0x11, (byte) 0x88};
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("fragmented", ".m4a").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static byte[] frame(int i) {
+        byte[] frame = new byte[100 + i % 50];
+        Arrays.fill(frame, (byte) i);
+        return frame;
+    }
+
+    private static String type(ByteBuffer file, int box) {
+        return new String(new byte[]{file.get(box + 4), file.get(box + 5), file.get(box + 6), file.get(box + 7)});
+    }
+
+    /** @return offsets of the top-level boxes. */
+    private static List<Integer> boxes(ByteBuffer file) {
+        List<Integer> boxes = new ArrayList<>();
+        for (int box = 0; box < file.limit(); box += file.getInt(box)) {
+            boxes.add(box);
+        }
+        return boxes;
+    }
+
+    /** @return offset of the first box of the given type inside the box, -1 if none. */
+    private static int child(ByteBuffer file, int parent, int headerBytes, String type) {
+        int end = parent + file.getInt(parent);
+        for (int box = parent + 8 + headerBytes; box < end; box += file.getInt(box)) {
+            if (type(file, box).equals(type)) return box;
+        }
+        return -1;
+    }
+
+    @Test
+    public void testFragmentsDescribeTheirFrames() throws IOException {
+        int count = 2 * FRAMES_PER_FRAGMENT + 8;
+        try (FragmentedMp4Writer writer = new FragmentedMp4Writer(file, SAMPLE_RATE, 1, CONFIG, 96000, 1000)) {
+            for (int i = 0; i < count; i++) writer.write(ByteBuffer.wrap(frame(i)));
+            assertEquals(2 * FRAMES_PER_FRAGMENT, writer.getFramesWritten());
+        }
+
+        ByteBuffer mp4 = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        List<Integer> boxes = boxes(mp4);
+        assertEquals(8, boxes.size());
+        assertEquals("ftyp", type(mp4, boxes.get(0)));
+        assertEquals("moov", type(mp4, boxes.get(1)));
+        int mvex = child(mp4, boxes.get(1), 0, "mvex");
+        assertEquals(FragmentedMp4Writer.FRAME_SAMPLES, mp4.getInt(child(mp4, mvex, 0, "trex") + 20));
+
+        int next = 0;
+        for (int fragment = 0; fragment < 3; fragment++) {
+            int moof = boxes.get(2 + 2 * fragment);
+            int mdat = boxes.get(3 + 2 * fragment);
+            assertEquals("moof", type(mp4, moof));
+            assertEquals("mdat", type(mp4, mdat));
+            assertEquals(fragment + 1, mp4.getInt(child(mp4, moof, 0, "mfhd") + 12));
+            int traf = child(mp4, moof, 0, "traf");
+            assertEquals((long) next * FragmentedMp4Writer.FRAME_SAMPLES, mp4.getLong(child(mp4, traf, 0, "tfdt") + 12));
+
+            int trun = child(mp4, traf, 0, "trun");
+            int frames = mp4.getInt(trun + 12);
+            assertEquals(fragment < 2 ? FRAMES_PER_FRAGMENT : 8, frames);
+            int data = moof + mp4.getInt(trun + 16);
+            assertEquals(mdat + 8, data);
+            for (int i = 0; i < frames; i++, next++) {
+                byte[] expected = frame(next);
+                assertEquals(expected.length, mp4.getInt(trun + 20 + 4 * i));
+                byte[] actual = new byte[expected.length];
+                ((ByteBuffer) mp4.duplicate().position(data)).get(actual);
+                assertArrayEquals(expected, actual);
+                data += expected.length;
+            }
+            assertEquals(mdat + mp4.getInt(mdat), data);
+        }
+        assertEquals(count, next);
+    }
+
+    @Test
+    public void testUnclosedFileEndsAfterLastFragment() throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file, SAMPLE_RATE, 1, CONFIG, 96000, 1000);
+        for (int i = 0; i < FRAMES_PER_FRAGMENT + 5; i++) writer.write(ByteBuffer.wrap(frame(i)));
+
+        // As if the process died here: only whole boxes are on disk
+        ByteBuffer mp4 = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        List<Integer> boxes = boxes(mp4);
+        assertEquals(4, boxes.size());
+        assertEquals("mdat", type(mp4, boxes.get(3)));
+        assertEquals(mp4.limit(), boxes.get(3) + mp4.getInt(boxes.get(3)));
+        writer.close();
+    }
+}
@@ -0,0 +1,153 @@
+package eu.mrogalski.saidit.export;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import eu.mrogalski.saidit.AudioMemory;
+import eu.mrogalski.saidit.FakeClock;
+
+public class PcmSourceTest {
+    private static final int SAMPLE_RATE = 100;
+
+    private static byte[] pattern(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) data[i] = (byte) (i * 31 + (i >> 7));
+        return data;
+    }
+
+    /** Reads the source to its end through a small direct buffer, as an encoder would. */
+    private static byte[] readAll(PcmSource source) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(62);
+        int read;
+        while ((read = source.read(buffer)) != -1) {
+            assertEquals(0, read % 2);
+            buffer.flip();
+            byte[] chunk = new byte[buffer.remaining()];
+            buffer.get(chunk);
+            out.write(chunk, 0, chunk.length);
+            buffer.clear();
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testMemorySourceReadsNewestSeconds() throws IOException {
+        AudioMemory memory = new AudioMemory(new FakeClock());
+        memory.allocate(16 * 1024);
+        byte[] data = pattern(3000);
+        fill(memory, data);
+
+        try (PcmSource source = PcmSource.lastSeconds(memory, SAMPLE_RATE, 5f)) {
+            assertArrayEquals(Arrays.copyOfRange(data, 2000, 3000), readAll(source));
+        }
+        try (PcmSource source = PcmSource.lastSeconds(memory, SAMPLE_RATE, 60f)) {
+            assertArrayEquals(data, readAll(source));
+        }
+    }
+
+    @Test
+    public void testMemorySourceReadsPastTheWritersGuard() throws IOException {
+        // Long enough that the newest samples are read from the ring in place
+        AudioMemory memory = new AudioMemory(new FakeClock());
+        memory.allocate(4 * 1024 * 1024);
+        byte[] data = pattern(3_000_000);
+        fill(memory, data);
+
+        try (PcmSource source = PcmSource.lastSeconds(memory, SAMPLE_RATE, 60_000f)) {
+            assertArrayEquals(data, readAll(source));
+        }
+    }
+
+    @Test
+    public void testFollowingSourceWaitsForTheWriter() throws IOException {
+        AudioMemory memory = new AudioMemory(new FakeClock());
+        memory.allocate(16 * 1024);
+        byte[] data = pattern(1000);
+        PcmSource source = PcmSource.follow(memory, 0);
+        ByteBuffer buffer = ByteBuffer.allocate(2000);
+        assertEquals(0, source.read(buffer));
+
+        fill(memory, Arrays.copyOf(data, 600));
+        assertEquals(600, source.read(buffer));
+        assertEquals(0, source.read(buffer));
+        fill(memory, Arrays.copyOfRange(data, 600, 1000));
+        assertEquals(400, source.read(buffer));
+        assertArrayEquals(data, Arrays.copyOf(buffer.array(), buffer.position()));
+    }
+
+    @Test
+    public void testFollowingSourceStopsWhereItIsEnded() throws IOException {
+        AudioMemory memory = new AudioMemory(new FakeClock());
+        memory.allocate(16 * 1024);
+        byte[] data = pattern(1000);
+        PcmSource source = PcmSource.follow(memory, 0);
+        fill(memory, Arrays.copyOf(data, 600));
+        source.endAt(memory.getWriteSamplePosition());
+        fill(memory, Arrays.copyOfRange(data, 600, 1000));
+
+        assertEquals(600, source.remaining());
+        assertArrayEquals(Arrays.copyOf(data, 600), readAll(source));
+    }
+
+    private static void fill(AudioMemory memory, byte[] data) throws IOException {
+        int[] filled = {0};
+        memory.fill((array, offset, count) -> {
+            int n = Math.min(count, data.length - filled[0]);
+            System.arraycopy(data, filled[0], array, offset, n);
+            filled[0] += n;
+            return n;
+        });
+    }
+
+    @Test
+    public void testSlicesReadIndependently() throws IOException {
+        AudioMemory memory = new AudioMemory(new FakeClock());
+        memory.allocate(16 * 1024);
+        byte[] data = pattern(3000);
+        fill(memory, data);
+
+        try (PcmSource source = PcmSource.lastSeconds(memory, SAMPLE_RATE, 10f);
+             PcmSource head = source.slice(0, 800);
+             PcmSource tail = source.slice(700, 5000)) {
+            assertEquals(2000, source.remaining());
+            assertArrayEquals(Arrays.copyOfRange(data, 1700, 3000), readAll(tail));
+            assertArrayEquals(Arrays.copyOfRange(data, 1000, 1800), readAll(head));
+            assertEquals(0, head.remaining());
+            assertEquals(2000, source.remaining());
+        }
+        assertNull(PcmSource.follow(memory, 0).slice(0, 100));
+    }
+
+    @Test
+    public void testMemorySourceIsNullWhenEmpty() {
+        AudioMemory memory = new AudioMemory(new FakeClock());
+        memory.allocate(16 * 1024);
+        assertNull(PcmSource.lastSeconds(memory, SAMPLE_RATE, 5f));
+    }
+
+    @Test
+    public void testStreamSourceKeepsSamplesWhole() throws IOException {
+        byte[] data = pattern(101);
+        // Hands out three bytes at a time, splitting samples
+        InputStream in = new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 3));
+            }
+        };
+        try (PcmSource source = PcmSource.of(in)) {
+            assertArrayEquals(Arrays.copyOf(data, 100), readAll(source));
+        }
+    }
+}
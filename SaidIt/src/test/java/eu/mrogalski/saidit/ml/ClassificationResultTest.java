@@ -0,0 +1,44 @@
+package eu.mrogalski.saidit.ml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+public class ClassificationResultTest {
+
+    @Test
+    public void testKeepsTopScoresInOrder() {
+        ClassificationResult result = new ClassificationResult(3);
+        assertTrue(result.add(1, 0.4f, "a"));
+        assertTrue(result.add(2, 0.9f, "b"));
+        assertTrue(result.add(3, 0.5f, "c"));
+        assertTrue(result.add(4, 0.6f, "d"));
+        assertFalse(result.add(5, 0.1f, "e"));
+
+        assertEquals(3, result.size());
+        assertEquals(2, result.getIndex(0));
+        assertEquals(4, result.getIndex(1));
+        assertEquals(3, result.getIndex(2));
+        assertEquals(0.5f, result.getScore(2), 0f);
+        assertEquals("c", result.getLabel(2));
+
+        result.clear();
+        assertEquals(0, result.size());
+    }
+
+    @Test
+    public void testLabelsAreInternedByIndex() {
+        LabelTable labels = new LabelTable();
+        labels.load(Arrays.asList("Speech", ""));
+        assertEquals("Speech", labels.intern(0, "ignored"));
+
+        String music = labels.intern(1, new String("Music"));
+        assertSame(music, labels.intern(1, new String("Music")));
+        assertEquals("7", labels.intern(7, null));
+        assertSame(labels.intern(7, null), labels.intern(7, "late"));
+    }
+}
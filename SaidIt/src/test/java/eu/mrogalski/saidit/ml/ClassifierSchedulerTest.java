@@ -0,0 +1,69 @@
+package eu.mrogalski.saidit.ml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Test;
+
+public class ClassifierSchedulerTest {
+
+    private static ByteBuffer frame(int amplitude) {
+        ByteBuffer pcm = ByteBuffer.allocate(640).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < 320; i++) pcm.putShort((short) (i % 2 == 0 ? amplitude : -amplitude));
+        pcm.flip();
+        return pcm;
+    }
+
+    @Test
+    public void testOnlyRunsNearActivity() {
+        ClassifierScheduler scheduler = new ClassifierScheduler(0, 2000);
+        scheduler.onFrame(frame(100), false, 0);
+        assertFalse(scheduler.shouldRun(5000));
+
+        scheduler.onFrame(frame(100), true, 5000);
+        assertTrue(scheduler.shouldRun(5500));
+        assertTrue(scheduler.shouldRun(7000));
+        assertFalse(scheduler.shouldRun(7500));
+
+        // A sudden loud frame counts as activity even without speech
+        for (int t = 8000; t < 10000; t += 20) scheduler.onFrame(frame(100), false, t);
+        assertFalse(scheduler.shouldRun(10000));
+        scheduler.onFrame(frame(8000), false, 10000);
+        assertTrue(scheduler.shouldRun(10500));
+    }
+
+    @Test
+    public void testPowerStateStretchesTheHop() {
+        ClassifierScheduler scheduler = new ClassifierScheduler(0, 0);
+        assertEquals(1, scheduler.getHopMultiplier());
+        scheduler.setThermalStatus(ClassifierScheduler.THERMAL_MODERATE);
+        scheduler.setBattery(20, false);
+        assertEquals(4, scheduler.getHopMultiplier());
+
+        int runs = 0;
+        for (int i = 0; i < 16; i++) {
+            if (scheduler.shouldRun(i * 500L)) runs++;
+        }
+        assertEquals(4, runs);
+
+        scheduler.setThermalStatus(ClassifierScheduler.THERMAL_CRITICAL);
+        assertEquals(0, scheduler.getHopMultiplier());
+        assertFalse(scheduler.shouldRun(10_000));
+    }
+
+    @Test
+    public void testBudgetLimitsInferencesPerMinute() {
+        ClassifierScheduler scheduler = new ClassifierScheduler(10, 0);
+        int runs = 0;
+        // Two windows a second for two minutes
+        for (long t = 0; t < 120_000; t += 500) {
+            if (scheduler.shouldRun(t)) runs++;
+        }
+        // The initial burst plus the refill over the following two minutes
+        assertTrue("runs " + runs, runs >= 29 && runs <= 30);
+        assertEquals(runs, scheduler.getRuns());
+    }
+}
@@ -0,0 +1,74 @@
+package eu.mrogalski.saidit.ml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Test;
+
+public class ClassifierWindowTest {
+
+    private static ByteBuffer tone(int sampleRate, double frequency, int samples, double amplitude) {
+        ByteBuffer pcm = ByteBuffer.allocate(samples * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < samples; i++) {
+            pcm.putShort((short) (amplitude * 32767 * Math.sin(2 * Math.PI * frequency * i / sampleRate)));
+        }
+        pcm.flip();
+        return pcm;
+    }
+
+    private static double rms(float[] window, int from) {
+        double sum = 0;
+        for (int i = from; i < window.length; i++) sum += window[i] * window[i];
+        return Math.sqrt(sum / (window.length - from));
+    }
+
+    @Test
+    public void testWindowsEveryHopAfterTheFirst() {
+        // 1000-sample windows at 16 kHz with a 500-sample hop, fed at 48 kHz
+        ClassifierWindow window = new ClassifierWindow(48000, 16000, 1000, 500, 1);
+        ByteBuffer pcm = tone(48000, 440, 2990, 0.5);
+        assertFalse(window.add(pcm));
+        assertEquals(0, pcm.position());
+
+        int windows = 0;
+        for (int i = 0; i < 20; i++) {
+            if (window.add(tone(48000, 440, 480, 0.5))) {
+                windows++;
+                window.clearBatch();
+            }
+        }
+        // 2990 + 9600 input samples give just under 4200 outputs: windows at 1000, 1500, ... 4000
+        assertEquals(7, windows);
+    }
+
+    @Test
+    public void testDownsamplingKeepsSpeechAndRejectsAliases() {
+        ClassifierWindow window = new ClassifierWindow(48000, 16000, 4000, 4000, 1);
+        assertTrue(window.add(tone(48000, 1000, 12100, 0.5)));
+        double passband = rms(window.getBatch()[0], 100);
+        assertEquals(0.5 / Math.sqrt(2), passband, 0.01);
+
+        // 12 kHz would fold onto 4 kHz without the low-pass filter
+        window.reset();
+        assertTrue(window.add(tone(48000, 12000, 12100, 0.5)));
+        assertTrue("alias rms " + rms(window.getBatch()[0], 100), rms(window.getBatch()[0], 100) < 0.005);
+    }
+
+    @Test
+    public void testBatchCollectsConsecutiveWindows() {
+        ClassifierWindow window = new ClassifierWindow(16000, 16000, 100, 50, 3);
+        ByteBuffer pcm = ByteBuffer.allocate(400).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < 200; i++) pcm.putShort((short) (i * 100));
+        pcm.flip();
+        assertTrue(window.add(pcm));
+        assertEquals(3, window.getReadyCount());
+        float[][] batch = window.getBatch();
+        for (int w = 0; w < 3; w++) {
+            assertEquals(w * 50 * 100 / 32768f, batch[w][0], 1e-6);
+            assertEquals((w * 50 + 99) * 100 / 32768f, batch[w][99], 1e-6);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package eu.mrogalski.saidit.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.junit.Test;
+
+public class LinkTest {
+
+    // Runs posted drains only when asked, like a stage thread that is busy
+    private static class ManualExecutor implements Executor {
+        final ArrayDeque<Runnable> posted = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            posted.add(command);
+        }
+
+        void runAll() {
+            Runnable next;
+            while ((next = posted.poll()) != null) next.run();
+        }
+    }
+
+    private static class Collecting extends Stage {
+        final List<Integer> firstBytes = new ArrayList<>();
+
+        Collecting() {
+            super("collecting");
+        }
+
+        @Override
+        protected void process(Frame frame) {
+            firstBytes.add((int) frame.pcm.get(frame.pcm.position()));
+        }
+    }
+
+    private static Frame frame(int firstByte, int length) {
+        Frame frame = Frame.borrowing();
+        ByteBuffer pcm = ByteBuffer.allocate(length);
+        pcm.put(0, (byte) firstByte);
+        frame.pcm = pcm;
+        return frame;
+    }
+
+    @Test
+    public void testQueueIsBoundedAndOrdered() {
+        SpscQueue<Integer> queue = new SpscQueue<>(3);
+        assertEquals(4, queue.capacity());
+        for (int i = 0; i < 4; i++) assertTrue(queue.offer(i));
+        assertFalse(queue.offer(4));
+        assertEquals(Integer.valueOf(0), queue.poll());
+        assertTrue(queue.offer(4));
+        for (int i = 1; i <= 4; i++) assertEquals(Integer.valueOf(i), queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testDropPolicyCountsFramesAndRecyclesPool() {
+        ManualExecutor executor = new ManualExecutor();
+        Collecting stage = new Collecting();
+        Link link = Link.queued(stage, executor, 2, 16, Link.Overflow.DROP);
+
+        assertTrue(link.send(frame(1, 16)));
+        assertTrue(link.send(frame(2, 16)));
+        assertFalse(link.send(frame(3, 16)));
+        assertEquals(1, link.getDropped());
+        // Sends coalesce into a single wakeup
+        assertEquals(1, executor.posted.size());
+
+        executor.runAll();
+        assertEquals(List.of(1, 2), stage.firstBytes);
+        assertEquals(0, link.getBacklog());
+
+        // The pool is back to full size
+        assertTrue(link.send(frame(4, 16)));
+        assertTrue(link.send(frame(5, 16)));
+        executor.runAll();
+        assertEquals(List.of(1, 2, 4, 5), stage.firstBytes);
+    }
+
+    /** Waits until the thread parks, as a blocked producer does. */
+    private static void awaitParked(Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.TIMED_WAITING) {
+            assertTrue(thread.isAlive());
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testBlockedProducerSleepsUntilAFrameIsFree() throws InterruptedException {
+        ManualExecutor executor = new ManualExecutor();
+        Collecting stage = new Collecting();
+        Link link = Link.queued(stage, executor, 1, 16, Link.Overflow.BLOCK);
+        boolean[] sent = new boolean[2];
+        Thread producer = new Thread(() -> {
+            sent[0] = link.send(frame(1, 16));
+            sent[1] = link.send(frame(2, 16));
+        });
+        producer.start();
+        awaitParked(producer);
+
+        executor.runAll();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        executor.runAll();
+        assertTrue(sent[0] && sent[1]);
+        assertEquals(List.of(1, 2), stage.firstBytes);
+        assertEquals(0, link.getDropped());
+    }
+
+    @Test
+    public void testCloseReleasesBlockedProducer() throws InterruptedException {
+        ManualExecutor executor = new ManualExecutor();
+        Link link = Link.queued(new Collecting(), executor, 1, 16, Link.Overflow.BLOCK);
+        boolean[] sent = {true};
+        Thread producer = new Thread(() -> {
+            link.send(frame(1, 16));
+            sent[0] = link.send(frame(2, 16));
+        });
+        producer.start();
+        awaitParked(producer);
+
+        link.close();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertFalse(sent[0]);
+        assertEquals(1, link.getDropped());
+    }
+
+    @Test
+    public void testLongFramesAreSplitAndSourceIsLeftAlone() {
+        ManualExecutor executor = new ManualExecutor();
+        Collecting stage = new Collecting();
+        Link link = Link.queued(stage, executor, 4, 16, Link.Overflow.BLOCK);
+
+        Frame big = frame(7, 40);
+        big.pcm.put(16, (byte) 8);
+        big.pcm.put(32, (byte) 9);
+        assertTrue(link.send(big));
+        assertEquals(0, big.pcm.position());
+        assertEquals(40, big.pcm.limit());
+
+        executor.runAll();
+        assertEquals(List.of(7, 8, 9), stage.firstBytes);
+    }
+}
@@ -0,0 +1,128 @@
+package eu.mrogalski.saidit.storage;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentIndexTest {
+    private File dir;
+    private File indexFile;
+    private File tagFile;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("segment_index").toFile();
+        indexFile = new File(dir, "segments.idx");
+        tagFile = new File(dir, "segments.tags");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        dir.delete();
+    }
+
+    /** Segment i starts at i seconds and holds (i + 1) * 100 bytes. */
+    private static void append(SegmentIndex index, int i) throws IOException {
+        index.append(i * 1000L, i * 1000L + 500, i * 16000L, (i + 1) * 100L, index.reserveFileId(),
+                "{\"tags\":[" + i + "]}");
+    }
+
+    @Test
+    public void testReloadsRecordsAndTags() throws IOException {
+        try (SegmentIndex index = new SegmentIndex(indexFile, tagFile)) {
+            for (int i = 0; i < 5; i++) append(index, i);
+        }
+        assertEquals(SegmentIndex.HEADER_BYTES + 5 * SegmentIndex.RECORD_BYTES, indexFile.length());
+
+        try (SegmentIndex index = new SegmentIndex(indexFile, tagFile)) {
+            assertEquals(5, index.size());
+            SegmentIndex.Entry entry = index.get(3);
+            assertEquals(3000, entry.startTime);
+            assertEquals(3500, entry.endTime);
+            assertEquals(48000, entry.startSample);
+            assertEquals(400, entry.byteLength);
+            assertEquals(3, entry.fileId);
+            assertEquals("{\"tags\":[3]}", index.readTags(entry));
+            assertEquals(5, index.reserveFileId());
+        }
+    }
+
+    @Test
+    public void testDropsOldestAcrossReloadAndCompaction() throws IOException {
+        try (SegmentIndex index = new SegmentIndex(indexFile, tagFile)) {
+            for (int i = 0; i < 200; i++) append(index, i);
+            for (int i = 0; i < 150; i++) assertEquals(i, index.removeOldest().fileId);
+            assertEquals(50, index.size());
+        }
+        // Compacted when the 101st drop outnumbered the live records; 49 dropped since
+        assertEquals(SegmentIndex.HEADER_BYTES + 99 * SegmentIndex.RECORD_BYTES, indexFile.length());
+
+        try (SegmentIndex index = new SegmentIndex(indexFile, tagFile)) {
+            assertEquals(50, index.size());
+            assertEquals(150, index.get(0).fileId);
+            assertEquals("{\"tags\":[199]}", index.readTags(index.get(49)));
+            index.removeOldest();
+        }
+        try (SegmentIndex index = new SegmentIndex(indexFile, tagFile)) {
+            assertEquals(49, index.size());
+            assertEquals(151, index.get(0).fileId);
+        }
+    }
+
+    @Test
+    public void testFindsSegmentsCoveringTheNewestBytes() throws IOException {
+        try (SegmentIndex index = new SegmentIndex(indexFile, tagFile)) {
+            // 200, 300, 400 and 500 bytes live
+            for (int i = 0; i < 5; i++) append(index, i);
+            index.removeOldest();
+            assertEquals(1400, index.totalBytes());
+
+            assertEquals(3, index.findCovering(500));
+            assertEquals(0, index.skipFor(3, 500));
+            assertEquals(2, index.findCovering(600));
+            assertEquals(300, index.skipFor(2, 600));
+            assertEquals(0, index.findCovering(1400));
+            assertEquals(0, index.findCovering(100_000));
+            assertEquals(0, index.skipFor(0, 100_000));
+        }
+    }
+
+    @Test
+    public void testCutsTornRecord() throws IOException {
+        try (SegmentIndex index = new SegmentIndex(indexFile, tagFile)) {
+            for (int i = 0; i < 3; i++) append(index, i);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+            file.setLength(file.length() - 10);
+        }
+        try (SegmentIndex index = new SegmentIndex(indexFile, tagFile)) {
+            assertEquals(2, index.size());
+            append(index, 7);
+            assertEquals(3, index.size());
+        }
+        try (SegmentIndex index = new SegmentIndex(indexFile, tagFile)) {
+            assertEquals(3, index.size());
+            assertEquals("{\"tags\":[7]}", index.readTags(index.get(2)));
+        }
+    }
+
+    @Test
+    public void testStartsOverOnForeignFile() throws IOException {
+        Files.write(indexFile.toPath(), new byte[64]);
+        try (SegmentIndex index = new SegmentIndex(indexFile, tagFile)) {
+            assertEquals(0, index.size());
+            assertEquals(0, index.totalBytes());
+        }
+        assertEquals(SegmentIndex.HEADER_BYTES, indexFile.length());
+    }
+}
@@ -0,0 +1,149 @@
+package eu.mrogalski.saidit.vad;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import org.junit.Test;
+
+public class GmmVadTest {
+    private static final int[] RATES = {8000, 16000, 32000, 48000};
+    private static final int[] FRAME_MS = {10, 20, 30};
+
+    private static ByteBuffer pcm(short[] samples) {
+        ByteBuffer buffer = ByteBuffer.allocate(samples.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (short sample : samples) buffer.putShort(sample);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Synthetic vowel: 150 Hz harmonics shaped by two formants, over faint noise, or the noise
+     * alone when voiced is false.
+     */
+    private static short[] signal(int rate, int samples, boolean voiced, Random random) {
+        short[] out = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            double value = (random.nextDouble() * 2 - 1) * 100;
+            if (voiced) {
+                for (int h = 1; h * 150 < Math.min(4000, rate / 2); h++) {
+                    double f = h * 150;
+                    double envelope = 1 / (1 + Math.pow((f - 700) / 150, 2))
+                            + 0.5 / (1 + Math.pow((f - 1200) / 200, 2)) + 0.05;
+                    value += 4000 * envelope * Math.sin(2 * Math.PI * f * i / rate);
+                }
+            }
+            out[i] = (short) Math.max(-32768, Math.min(32767, Math.round(value)));
+        }
+        return out;
+    }
+
+    private static GmmVad vad(int rate, int frameMs, int mode) {
+        GmmVad vad = new GmmVad();
+        vad.setFrameMs(frameMs);
+        vad.init(rate);
+        vad.setMode(mode);
+        return vad;
+    }
+
+    @Test
+    public void testSilenceIsNotSpeech() {
+        for (int rate : RATES) {
+            for (int ms : FRAME_MS) {
+                GmmVad vad = vad(rate, ms, 3);
+                assertFalse(vad.process(pcm(new short[rate * ms / 1000])));
+            }
+        }
+    }
+
+    // The signal WebRTC's own unit tests use; i * i wraps around, which is intended
+    private static short[] reference(int samples) {
+        short[] out = new short[samples];
+        for (int i = 0; i < samples; i++) out[i] = (short) (i * i);
+        return out;
+    }
+
+    @Test
+    public void testFeaturesMatchWebRtc() {
+        // Expected total energy and band features from WebRTC's filter bank test
+        final int[] totals = {48, 11, 11};
+        final short[][] features = {
+                {1213, 759, 587, 462, 434, 272},
+                {1479, 1385, 1291, 1200, 1103, 1099},
+                {1732, 1692, 1681, 1629, 1436, 1436},
+        };
+        GmmVad vad = vad(8000, 10, 0);
+        short[] samples = reference(240);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(totals[i], vad.calculateFeatures(samples, 80 * (i + 1)));
+            assertArrayEquals(features[i], vad.features);
+        }
+    }
+
+    @Test
+    public void testReferenceSignalTriggersEveryMode() {
+        for (int rate : RATES) {
+            GmmVad vad = vad(rate, 10, 0);
+            // WebRTC's test reaches each rate with a detector already warmed up by the lower rates
+            vad.process(pcm(reference(rate / 100)));
+            for (int mode = 0; mode <= 3; mode++) {
+                vad.setMode(mode);
+                for (int ms : FRAME_MS) {
+                    vad.setFrameMs(ms);
+                    assertTrue(rate + " Hz, " + ms + " ms, mode " + mode,
+                            vad.process(pcm(reference(rate * ms / 1000))));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSeparatesVoiceFromNoise() {
+        for (int rate : RATES) {
+            GmmVad vad = vad(rate, 20, 1);
+            Random random = new Random(7);
+            int frame = rate / 50;
+            // Let the noise model settle
+            for (int i = 0; i < 100; i++) vad.process(pcm(signal(rate, frame, false, random)));
+
+            int noise = 0;
+            for (int i = 0; i < 50; i++) {
+                if (vad.process(pcm(signal(rate, frame, false, random)))) noise++;
+            }
+            int voice = 0;
+            for (int i = 0; i < 50; i++) {
+                if (vad.process(pcm(signal(rate, frame, true, random)))) voice++;
+            }
+            assertTrue(rate + " Hz: " + noise + " noise frames as speech", noise <= 5);
+            assertTrue(rate + " Hz: " + voice + " voice frames as speech", voice >= 45);
+        }
+    }
+
+    @Test
+    public void testCollectsFramesFromArbitraryChunks() {
+        GmmVad whole = vad(16000, 30, 2);
+        GmmVad chunked = vad(16000, 30, 2);
+        Random random = new Random(3);
+        for (int i = 0; i < 40; i++) {
+            ByteBuffer frame = pcm(signal(16000, 480, i >= 20, random));
+            boolean expected = whole.process(frame);
+            // 7 ms chunks; the last one completes the frame
+            boolean actual = false;
+            for (int start = 0; start < 960; start += 224) {
+                frame.limit(Math.min(960, start + 224)).position(start);
+                actual = chunked.process(frame);
+            }
+            frame.limit(960).position(0);
+            assertTrue(i + ": " + expected + " vs " + actual, expected == actual);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUnsupportedRate() {
+        new GmmVad().init(44100);
+    }
+}
@@ -0,0 +1,96 @@
+package eu.mrogalski.saidit.vad;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import org.junit.Test;
+
+public class NoiseFloorVadTest {
+    private static final int RATE = 16000;
+    private static final int FRAME = 320;
+
+    private final Random random = new Random(42);
+    private final ByteBuffer pcm = ByteBuffer.allocate(FRAME * 2).order(ByteOrder.LITTLE_ENDIAN);
+    private long sample;
+
+    /** One 20 ms frame of uniform noise plus a sine. */
+    private ByteBuffer frame(int noise, int tone, int toneHz) {
+        pcm.clear();
+        for (int i = 0; i < FRAME; i++, sample++) {
+            double value = (random.nextDouble() * 2 - 1) * noise
+                    + tone * Math.sin(2 * Math.PI * toneHz * sample / RATE);
+            pcm.putShort((short) Math.max(-32768, Math.min(32767, Math.round(value))));
+        }
+        pcm.flip();
+        return pcm;
+    }
+
+    /** @return true if any of the frames was speech. */
+    private boolean feed(NoiseFloorVad vad, int frames, int noise, int tone, int toneHz) {
+        boolean any = false;
+        for (int i = 0; i < frames; i++) {
+            any |= vad.process(frame(noise, tone, toneHz));
+        }
+        return any;
+    }
+
+    private NoiseFloorVad vad(boolean spectral) {
+        NoiseFloorVad vad = new NoiseFloorVad();
+        vad.setSpectralFeatures(spectral);
+        vad.init(RATE);
+        vad.setMode(2);
+        return vad;
+    }
+
+    @Test
+    public void testAdaptsToSteadyNoiseAtAnyLevel() {
+        NoiseFloorVad vad = vad(false);
+        feed(vad, 50, 300, 0, 0);
+        assertFalse(feed(vad, 150, 300, 0, 0));
+
+        // The room gets much louder: a burst of speech, then the floor catches up
+        assertTrue(feed(vad, 10, 3000, 0, 0));
+        feed(vad, 150, 3000, 0, 0);
+        assertFalse(feed(vad, 100, 3000, 0, 0));
+        assertTrue(vad.getNoiseFloor() > 1_000_000);
+    }
+
+    @Test
+    public void testDetectsToneAboveNoise() {
+        NoiseFloorVad vad = vad(true);
+        assertFalse(feed(vad, 100, 300, 0, 0));
+        assertTrue(vad.process(frame(300, 3000, 300)));
+        assertFalse(vad.process(frame(300, 0, 0)));
+    }
+
+    @Test
+    public void testHysteresisHoldsSpeechBetweenMargins() {
+        NoiseFloorVad vad = vad(false);
+        feed(vad, 100, 300, 0, 0);
+        // About 6 dB above the floor: not enough to start speech...
+        assertFalse(feed(vad, 5, 300, 500, 300));
+        // ...but enough to keep it going
+        assertTrue(vad.process(frame(300, 3000, 300)));
+        for (int i = 0; i < 5; i++) {
+            assertTrue(vad.process(frame(300, 500, 300)));
+        }
+        assertFalse(vad.process(frame(300, 0, 0)));
+    }
+
+    @Test
+    public void testSpectralFeaturesRejectHiss() {
+        NoiseFloorVad plain = vad(false);
+        NoiseFloorVad spectral = vad(true);
+        for (int i = 0; i < 100; i++) {
+            ByteBuffer quiet = frame(300, 0, 0);
+            plain.process(quiet);
+            spectral.process(quiet);
+        }
+        ByteBuffer hiss = frame(6000, 0, 0);
+        assertTrue(plain.process(hiss));
+        assertFalse(spectral.process(hiss));
+    }
+}